@@ -0,0 +1,479 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.processor;
+
+import com.arquivolivre.mongocom.annotations.Document;
+import com.arquivolivre.mongocom.annotations.GeneratedValue;
+import com.arquivolivre.mongocom.annotations.Id;
+import com.arquivolivre.mongocom.annotations.Index;
+import com.arquivolivre.mongocom.annotations.Internal;
+import com.arquivolivre.mongocom.annotations.ObjectId;
+import com.arquivolivre.mongocom.annotations.Reference;
+import com.arquivolivre.mongocom.mapping.ClassMapping;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a <code>DocumentMapper</code> for every <code>@Document</code>
+ * and <code>@Internal</code> class, and for the classes of
+ * <code>@Internal</code> fields compiled with them, so their mapping does not
+ * have to be scanned by reflection at runtime.
+ *
+ * <p>The generated code reads and writes the fields directly, as the
+ * reflective mapping does, so it never runs getters or setters. Private and
+ * final fields, and private constructors, are reached through
+ * <code>static final</code> method handles of the mapper, invoked with their
+ * exact types so the JIT can inline them like the direct accesses. Classes
+ * the mapper can not name, i.e. private, inner, local, abstract or generic
+ * ones, are reported with a note and keep being mapped by reflection.</p>
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+@SupportedAnnotationTypes({
+    "com.arquivolivre.mongocom.annotations.Document",
+    "com.arquivolivre.mongocom.annotations.Internal"})
+public class DocumentMapperProcessor extends AbstractProcessor {
+
+    private static final String MAPPING_PACKAGE = "com.arquivolivre.mongocom.mapping.";
+    private final Set<String> processed = new HashSet<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        Set<TypeElement> types = new LinkedHashSet<>();
+        for (Element element : roundEnv.getElementsAnnotatedWith(Document.class)) {
+            if (element.getKind() == ElementKind.CLASS) {
+                types.add((TypeElement) element);
+            }
+        }
+        for (Element element : roundEnv.getElementsAnnotatedWith(Internal.class)) {
+            if (element.getKind() == ElementKind.CLASS) {
+                types.add((TypeElement) element);
+            } else if (element.getKind() == ElementKind.FIELD) {
+                TypeElement internalType = internalType((VariableElement) element, roundEnv);
+                if (internalType != null) {
+                    types.add(internalType);
+                }
+            }
+        }
+        for (TypeElement type : types) {
+            if (processed.add(type.getQualifiedName().toString())) {
+                generate(type);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The class of an <code>@Internal</code> field, or of its elements, when
+     * it is compiled in this round.
+     */
+    private TypeElement internalType(VariableElement field, RoundEnvironment roundEnv) {
+        TypeMirror type = field.asType();
+        TypeMirror element = elementType(type);
+        if (element != null) {
+            type = element;
+        }
+        if (type.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        TypeElement typeElement = (TypeElement) ((DeclaredType) type).asElement();
+        Element outermost = typeElement;
+        while (outermost.getEnclosingElement().getKind() != ElementKind.PACKAGE) {
+            outermost = outermost.getEnclosingElement();
+        }
+        return roundEnv.getRootElements().contains(outermost) ? typeElement : null;
+    }
+
+    private void generate(TypeElement type) {
+        String problem = checkType(type);
+        Map<VariableElement, String[]> accessors = new LinkedHashMap<>();
+        for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+            if (problem != null) {
+                break;
+            }
+            if (field.getModifiers().contains(Modifier.STATIC)) {
+                continue;
+            }
+            TypeMirror element = elementType(field.asType());
+            if (!isVisible(field.asType()) || element != null && !isVisible(element)) {
+                problem = "the type of the field " + field.getSimpleName() + " is not visible in its package";
+            }
+            accessors.put(field, accessor(field));
+        }
+        if (problem != null) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                    "No mapper generated for " + type.getQualifiedName() + ", it will be mapped by reflection: " + problem + ".", type);
+            return;
+        }
+        PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(type);
+        String packageName = packageElement.isUnnamed() ? "" : packageElement.getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String mapperName = binaryName.substring(packageName.isEmpty() ? 0 : packageName.length() + 1).replace('$', '_') + ClassMapping.MAPPER_SUFFIX;
+        String typeName = type.getQualifiedName().toString();
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(
+                    packageName.isEmpty() ? mapperName : packageName + "." + mapperName, type);
+            try (PrintWriter out = new PrintWriter(file.openWriter())) {
+                writeMapper(out, packageName, mapperName, type, typeName, accessors);
+            }
+        } catch (IOException ex) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Unable to write the mapper of " + typeName + ": " + ex.getMessage(), type);
+        }
+    }
+
+    /**
+     * Whether the generated mapper, a top level class in the same package, can
+     * instantiate the given class.
+     */
+    private String checkType(TypeElement type) {
+        if (type.getModifiers().contains(Modifier.ABSTRACT)) {
+            return "it is abstract";
+        }
+        if (!type.getTypeParameters().isEmpty()) {
+            return "it is generic";
+        }
+        Element current = type;
+        while (current.getKind() != ElementKind.PACKAGE) {
+            if (current.getModifiers().contains(Modifier.PRIVATE)) {
+                return "it is not visible in its package";
+            }
+            if (current instanceof TypeElement && ((TypeElement) current).getNestingKind() == NestingKind.MEMBER
+                    && !current.getModifiers().contains(Modifier.STATIC)) {
+                return "it is an inner class";
+            }
+            if (current instanceof TypeElement && ((TypeElement) current).getNestingKind().isNested()
+                    && ((TypeElement) current).getNestingKind() != NestingKind.MEMBER) {
+                return "it is a local class";
+            }
+            current = current.getEnclosingElement();
+        }
+        List<ExecutableElement> constructors = ElementFilter.constructorsIn(type.getEnclosedElements());
+        for (ExecutableElement constructor : constructors) {
+            if (constructor.getParameters().isEmpty()) {
+                return null;
+            }
+        }
+        return "it has no no-arg constructor";
+    }
+
+    /**
+     * Whether a class literal of the erasure of the given type can be written
+     * in the package of the mapper.
+     */
+    private static boolean isVisible(TypeMirror type) {
+        while (type.getKind() == TypeKind.ARRAY) {
+            type = ((ArrayType) type).getComponentType();
+        }
+        if (type.getKind() != TypeKind.DECLARED) {
+            return true;
+        }
+        for (Element current = ((DeclaredType) type).asElement(); current.getKind() != ElementKind.PACKAGE;
+                current = current.getEnclosingElement()) {
+            if (current.getModifiers().contains(Modifier.PRIVATE)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isPrivate(ExecutableElement constructor) {
+        return constructor.getModifiers().contains(Modifier.PRIVATE);
+    }
+
+    /**
+     * The no-arg constructor of a class that passed {@link #checkType}.
+     */
+    private static ExecutableElement constructor(TypeElement type) {
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty()) {
+                return constructor;
+            }
+        }
+        throw new IllegalArgumentException(type + " has no no-arg constructor");
+    }
+
+    /**
+     * Whether the field can not be written from the package, so it is
+     * reached through the method handles of the mapper.
+     */
+    private static boolean usesHandles(VariableElement field) {
+        Set<Modifier> modifiers = field.getModifiers();
+        return modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL);
+    }
+
+    /**
+     * The expressions used to read and write a field, <code>{getter,
+     * setter}</code> where <code>%s</code> stands for the target and the
+     * value.
+     */
+    private String[] accessor(VariableElement field) {
+        String name = field.getSimpleName().toString();
+        if (usesHandles(field)) {
+            return new String[]{"(" + typeName(field.asType()) + ") GET_" + name + ".invokeExact(%s)",
+                "SET_" + name + ".invokeExact(%s, %s)"};
+        }
+        return new String[]{"%s." + name, "%s." + name + " = %s"};
+    }
+
+    private void writeMapper(PrintWriter out, String packageName, String mapperName, TypeElement type, String typeName,
+            Map<VariableElement, String[]> accessors) {
+        if (!packageName.isEmpty()) {
+            out.println("package " + packageName + ";");
+            out.println();
+        }
+        out.println("/**");
+        out.println(" * Mapper of {@link " + typeName + "} generated by the mongocom-processor.");
+        out.println(" */");
+        out.println("public final class " + mapperName + " implements " + MAPPING_PACKAGE + "DocumentMapper {");
+        out.println();
+        boolean constants = false;
+        String handles = "private static final java.lang.invoke.MethodHandle ";
+        String factory = MAPPING_PACKAGE + "MethodHandleAccessorFactory.";
+        for (VariableElement field : accessors.keySet()) {
+            if (usesHandles(field)) {
+                String name = field.getSimpleName().toString();
+                out.println("    " + handles + "GET_" + name + " = " + factory + "getter(" + typeName + ".class, \"" + name + "\");");
+                out.println("    " + handles + "SET_" + name + " = " + factory + "setter(" + typeName + ".class, \"" + name + "\");");
+                constants = true;
+            }
+        }
+        if (isPrivate(constructor(type))) {
+            out.println("    " + handles + "NEW = " + factory + "constructor(" + typeName + ".class);");
+            constants = true;
+        }
+        if (constants) {
+            out.println();
+        }
+        out.println("    @Override");
+        out.println("    @SuppressWarnings(\"unchecked\")");
+        out.println("    public " + MAPPING_PACKAGE + "ClassMapping createMapping() {");
+        out.println("        return " + MAPPING_PACKAGE + "ClassMapping.builder(" + typeName + ".class)");
+        Document document = type.getAnnotation(Document.class);
+        if (document != null) {
+            String collection = document.collection().equals("") ? type.getSimpleName().toString() : document.collection();
+            out.println("                .collection(" + processingEnv.getElementUtils().getConstantExpression(collection) + ")");
+        }
+        out.println("                .instantiator(new " + MAPPING_PACKAGE + "Instantiator() {");
+        out.println("                    @Override");
+        if (isPrivate(constructor(type))) {
+            out.println("                    public Object newInstance() throws InstantiationException {");
+            out.println("                        try {");
+            out.println("                            return (" + typeName + ") NEW.invokeExact();");
+            out.println("                        } catch (RuntimeException | Error ex) {");
+            out.println("                            throw ex;");
+            out.println("                        } catch (Throwable ex) {");
+            out.println("                            throw (InstantiationException) new InstantiationException(ex.getMessage()).initCause(ex);");
+            out.println("                        }");
+            out.println("                    }");
+        } else {
+            out.println("                    public Object newInstance() {");
+            out.println("                        return new " + typeName + "();");
+            out.println("                    }");
+        }
+        out.println("                })");
+        for (Map.Entry<VariableElement, String[]> entry : accessors.entrySet()) {
+            writeField(out, typeName, entry.getKey(), entry.getValue());
+        }
+        out.println("                .build();");
+        out.println("    }");
+        out.println();
+        out.println("}");
+    }
+
+    private void writeField(PrintWriter out, String typeName, VariableElement field, String[] accessor) {
+        TypeMirror type = field.asType();
+        String target = "((" + typeName + ") target)";
+        out.println("                .field(" + MAPPING_PACKAGE + "FieldMapping.builder(\"" + field.getSimpleName() + "\", "
+                + typeName + ".class, " + classLiteral(type) + ")");
+        TypeMirror element = elementType(type);
+        if (element != null) {
+            out.println("                        .elementType(" + classLiteral(element) + ")");
+        }
+        if (field.getAnnotation(Reference.class) != null) {
+            out.println("                        .reference()");
+        }
+        if (field.getAnnotation(Internal.class) != null) {
+            out.println("                        .internal()");
+        }
+        if (field.getAnnotation(ObjectId.class) != null) {
+            out.println("                        .objectId()");
+        }
+        Id id = field.getAnnotation(Id.class);
+        if (id != null) {
+            out.println("                        .id(" + id.autoIncrement() + ", " + annotationClass(field, Id.class, "generator") + ")");
+        }
+        GeneratedValue generated = field.getAnnotation(GeneratedValue.class);
+        if (generated != null) {
+            out.println("                        .generatedValue(" + generated.update() + ", " + annotationClass(field, GeneratedValue.class, "generator") + ")");
+        }
+        Index index = field.getAnnotation(Index.class);
+        if (index != null) {
+            javax.lang.model.util.Elements elements = processingEnv.getElementUtils();
+            out.println("                        .index(" + elements.getConstantExpression(index.value()) + ", " + index.unique() + ", "
+                    + index.sparse() + ", " + index.dropDups() + ", " + index.background() + ", " + index.order() + ", "
+                    + elements.getConstantExpression(index.type()) + ")");
+        }
+        boolean handles = usesHandles(field);
+        out.println("                        .accessor(new " + MAPPING_PACKAGE + "PropertyAccessor() {");
+        out.println("                            @Override");
+        out.println("                            public Object get(Object target) {");
+        if (handles) {
+            out.println("                                try {");
+            out.println("                                    return " + String.format(accessor[0], target) + ";");
+            writeRethrow(out);
+        } else {
+            out.println("                                return " + String.format(accessor[0], target) + ";");
+        }
+        out.println("                            }");
+        out.println();
+        out.println("                            @Override");
+        out.println("                            public void set(Object target, Object value) {");
+        out.println("                                try {");
+        out.println("                                    " + String.format(accessor[1], target, cast(type, "value")) + ";");
+        out.println("                                } catch (ClassCastException ex) {");
+        out.println("                                    throw new IllegalArgumentException(ex.getMessage(), ex);");
+        if (handles) {
+            writeRethrow(out);
+        } else {
+            out.println("                                }");
+        }
+        out.println("                            }");
+        out.println("                        })");
+        out.println("                        .build())");
+    }
+
+    /**
+     * Close the try of a method handle call, which declares
+     * <code>Throwable</code> but only throws what the field access does.
+     */
+    private static void writeRethrow(PrintWriter out) {
+        out.println("                                } catch (RuntimeException | Error ex) {");
+        out.println("                                    throw ex;");
+        out.println("                                } catch (Throwable ex) {");
+        out.println("                                    throw new IllegalStateException(ex);");
+        out.println("                                }");
+    }
+
+    /**
+     * The erased type of a field, as resolved by its method handles.
+     */
+    private String typeName(TypeMirror type) {
+        return processingEnv.getTypeUtils().erasure(type).toString();
+    }
+
+    /**
+     * The last type argument of a parameterized type, descending into the
+     * last argument of the parameterized ones, when it is a class or an
+     * array that is not generic, as resolved by <code>FieldMapping</code> at
+     * runtime.
+     */
+    private TypeMirror elementType(TypeMirror type) {
+        if (type.getKind() != TypeKind.DECLARED || ((DeclaredType) type).getTypeArguments().isEmpty()) {
+            return null;
+        }
+        TypeMirror last = type;
+        while (last.getKind() == TypeKind.DECLARED && !((DeclaredType) last).getTypeArguments().isEmpty()) {
+            List<? extends TypeMirror> arguments = ((DeclaredType) last).getTypeArguments();
+            last = arguments.get(arguments.size() - 1);
+        }
+        if (last.getKind() != TypeKind.DECLARED && last.getKind() != TypeKind.ARRAY) {
+            return null;
+        }
+        Types types = processingEnv.getTypeUtils();
+        return types.isSameType(types.erasure(last), last) ? last : null;
+    }
+
+    private String classLiteral(TypeMirror type) {
+        return typeName(type) + ".class";
+    }
+
+    private String cast(TypeMirror type, String value) {
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return "((java.lang.Boolean) " + value + ").booleanValue()";
+            case CHAR:
+                return "((java.lang.Character) " + value + ").charValue()";
+            case BYTE:
+                return "((java.lang.Number) " + value + ").byteValue()";
+            case SHORT:
+                return "((java.lang.Number) " + value + ").shortValue()";
+            case INT:
+                return "((java.lang.Number) " + value + ").intValue()";
+            case LONG:
+                return "((java.lang.Number) " + value + ").longValue()";
+            case FLOAT:
+                return "((java.lang.Number) " + value + ").floatValue()";
+            case DOUBLE:
+                return "((java.lang.Number) " + value + ").doubleValue()";
+            default:
+                return "(" + type + ") " + value;
+        }
+    }
+
+    /**
+     * The class literal of a <code>Class</code> member of an annotation, which
+     * can only be read as a type mirror at compile time.
+     */
+    private String annotationClass(Element element, Class<?> annotation, String member) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (!((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotation.getCanonicalName())) {
+                continue;
+            }
+            Map<? extends ExecutableElement, ? extends AnnotationValue> values = processingEnv.getElementUtils().getElementValuesWithDefaults(mirror);
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : values.entrySet()) {
+                if (entry.getKey().getSimpleName().contentEquals(member)) {
+                    return classLiteral((TypeMirror) entry.getValue().getValue());
+                }
+            }
+        }
+        return "null";
+    }
+
+}
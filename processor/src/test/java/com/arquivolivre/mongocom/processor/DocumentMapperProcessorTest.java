@@ -0,0 +1,282 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.processor;
+
+import com.arquivolivre.mongocom.annotations.Document;
+import com.arquivolivre.mongocom.mapping.ClassMapping;
+import com.arquivolivre.mongocom.mapping.DocumentMapper;
+import com.arquivolivre.mongocom.mapping.FieldMapping;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import junit.framework.TestCase;
+
+/**
+ * Compiles sample classes with and without the processor and checks that the
+ * generated mappers agree with the mappings built by reflection.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public class DocumentMapperProcessorTest extends TestCase {
+
+    private static final String[][] SOURCES = {
+        {"sample.Sample",
+            "package sample;\n"
+            + "import com.arquivolivre.mongocom.annotations.*;\n"
+            + "import java.util.List;\n"
+            + "@Document(collection = \"samples\")\n"
+            + "public class Sample {\n"
+            + "    public enum Status { ON, OFF }\n"
+            + "    @ObjectId String id;\n"
+            + "    @Index(value = \"name\", unique = true) String name;\n"
+            + "    int count;\n"
+            + "    List<String> tags;\n"
+            + "    Status status;\n"
+            + "    @Internal Item item;\n"
+            + "    @Internal List<Item> items;\n"
+            + "    @Reference Sample parent;\n"
+            + "}\n"},
+        {"sample.Item",
+            "package sample;\n"
+            + "public class Item {\n"
+            + "    String label;\n"
+            + "    double price;\n"
+            + "}\n"},
+        {"sample.Account",
+            "package sample;\n"
+            + "import com.arquivolivre.mongocom.annotations.*;\n"
+            + "@Document\n"
+            + "public class Account {\n"
+            + "    private String owner;\n"
+            + "    final StringBuilder notes = new StringBuilder();\n"
+            + "    private long balance;\n"
+            + "    private boolean active;\n"
+            + "    private Account() { }\n"
+            + "    public Account(String owner) { this.owner = owner; }\n"
+            + "    public String getOwner() { return owner; }\n"
+            + "    public void setOwner(String owner) { throw new IllegalStateException(); }\n"
+            + "}\n"},
+        {"sample.Shelf",
+            "package sample;\n"
+            + "import com.arquivolivre.mongocom.annotations.*;\n"
+            + "@Document\n"
+            + "public class Shelf {\n"
+            + "    private Box box;\n"
+            + "    private static class Box { }\n"
+            + "}\n"},
+        {"sample.Cart",
+            "package sample;\n"
+            + "import com.arquivolivre.mongocom.annotations.*;\n"
+            + "import com.arquivolivre.mongocom.management.Lazy;\n"
+            + "import java.util.List;\n"
+            + "import java.util.Map;\n"
+            + "@Document\n"
+            + "public class Cart {\n"
+            + "    @ObjectId String id;\n"
+            + "    @Internal Lazy<List<Item>> items;\n"
+            + "    Map<String, List<Item>> byLabel;\n"
+            + "    List<int[]> ranges;\n"
+            + "    List<List<String>[]> generic;\n"
+            + "}\n"}
+    };
+
+    private final List<File> directories = new ArrayList<>();
+    private DiagnosticCollector<JavaFileObject> diagnostics;
+    private ClassLoader generated;
+    private ClassLoader reflected;
+
+    @Override
+    protected void setUp() throws Exception {
+        diagnostics = new DiagnosticCollector<>();
+        generated = compile(true);
+        reflected = compile(false);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File directory : directories) {
+            delete(directory);
+        }
+    }
+
+    public void testGeneratedMapperMatchesReflection() throws Exception {
+        generated.loadClass("sample.Sample" + ClassMapping.MAPPER_SUFFIX);
+        generated.loadClass("sample.Item" + ClassMapping.MAPPER_SUFFIX);
+        assertMappingsEqual("sample.Sample");
+        assertMappingsEqual("sample.Item");
+    }
+
+    public void testNestedElementTypesMatchReflection() throws Exception {
+        generated.loadClass("sample.Cart" + ClassMapping.MAPPER_SUFFIX);
+        assertMappingsEqual("sample.Cart");
+        Map<String, FieldMapping> fields = fieldsByName(ClassMapping.of(generated.loadClass("sample.Cart")));
+        assertEquals(generated.loadClass("sample.Item"), fields.get("items").getElementType());
+        assertEquals(generated.loadClass("sample.Item"), fields.get("byLabel").getElementType());
+        assertEquals(int[].class, fields.get("ranges").getElementType());
+        assertNull(fields.get("generic").getElementType());
+    }
+
+    public void testGeneratedAccessorsUseTheFields() throws Exception {
+        ClassMapping mapping = ClassMapping.of(generated.loadClass("sample.Item"));
+        Object item = mapping.newInstance();
+        Map<String, FieldMapping> fields = fieldsByName(mapping);
+        fields.get("label").set(item, "pen");
+        fields.get("price").set(item, 2);
+        assertEquals("pen", fields.get("label").get(item));
+        assertEquals(2.0, fields.get("price").get(item));
+        Field label = item.getClass().getDeclaredField("label");
+        label.setAccessible(true);
+        assertEquals("pen", label.get(item));
+    }
+
+    public void testPrivateFieldsUseMethodHandles() throws Exception {
+        assertMappingsEqual("sample.Account");
+        DocumentMapper mapper = (DocumentMapper) generated.loadClass("sample.Account" + ClassMapping.MAPPER_SUFFIX).newInstance();
+        ClassMapping mapping = mapper.createMapping();
+        Object account = mapping.newInstance();
+        Map<String, FieldMapping> fields = fieldsByName(mapping);
+        fields.get("owner").set(account, "ann");
+        assertEquals("ann", fields.get("owner").get(account));
+        StringBuilder notes = new StringBuilder("vip");
+        fields.get("notes").set(account, notes);
+        assertSame(notes, fields.get("notes").get(account));
+        fields.get("balance").set(account, 7);
+        assertEquals(7L, fields.get("balance").get(account));
+        fields.get("active").set(account, true);
+        assertEquals(Boolean.TRUE, fields.get("active").get(account));
+        try {
+            fields.get("owner").set(account, 1);
+            fail("a value of another type should be rejected");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    public void testHiddenFieldTypesFallBackToReflection() throws Exception {
+        try {
+            generated.loadClass("sample.Shelf" + ClassMapping.MAPPER_SUFFIX);
+            fail("no mapper should be generated for a field of a private type");
+        } catch (ClassNotFoundException ex) {
+            // expected
+        }
+        boolean noted = false;
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            noted |= diagnostic.getKind() == Diagnostic.Kind.NOTE
+                    && diagnostic.getMessage(null).contains("sample.Shelf");
+        }
+        assertTrue(noted);
+        assertEquals(1, ClassMapping.of(generated.loadClass("sample.Shelf")).getFields().size());
+    }
+
+    private void assertMappingsEqual(String className) throws Exception {
+        ClassMapping expected = ClassMapping.of(reflected.loadClass(className));
+        ClassMapping actual = ClassMapping.of(generated.loadClass(className));
+        assertEquals(expected.getCollectionName(), actual.getCollectionName());
+        assertEquals(names(expected), names(actual));
+        Map<String, FieldMapping> actualFields = fieldsByName(actual);
+        for (FieldMapping field : expected.getFields()) {
+            FieldMapping other = actualFields.get(field.getName());
+            String name = className + "." + field.getName();
+            assertEquals(name, field.getType().getName(), other.getType().getName());
+            assertEquals(name, typeName(field.getElementType()), typeName(other.getElementType()));
+            assertEquals(name, field.isReference(), other.isReference());
+            assertEquals(name, field.isInternal(), other.isInternal());
+            assertEquals(name, field.isObjectId(), other.isObjectId());
+            assertEquals(name, field.isId(), other.isId());
+            assertEquals(name, field.isGeneratedValue(), other.isGeneratedValue());
+            assertEquals(name, field.isEnum(), other.isEnum());
+            assertEquals(name, field.isIndexed(), other.isIndexed());
+            if (field.isIndexed()) {
+                assertEquals(name, field.getIndex().value(), other.getIndex().value());
+                assertEquals(name, field.getIndex().unique(), other.getIndex().unique());
+            }
+        }
+    }
+
+    private static String typeName(Class<?> type) {
+        return type == null ? null : type.getName();
+    }
+
+    private static List<String> names(ClassMapping mapping) {
+        List<String> names = new ArrayList<>();
+        for (FieldMapping field : mapping.getFields()) {
+            names.add(field.getName());
+        }
+        return names;
+    }
+
+    private static Map<String, FieldMapping> fieldsByName(ClassMapping mapping) {
+        Map<String, FieldMapping> fields = new HashMap<>();
+        for (FieldMapping field : mapping.getFields()) {
+            fields.put(field.getName(), field);
+        }
+        return fields;
+    }
+
+    private ClassLoader compile(boolean process) throws Exception {
+        File output = Files.createTempDirectory("mongocom-processor").toFile();
+        directories.add(output);
+        List<JavaFileObject> units = new ArrayList<>();
+        for (final String[] source : SOURCES) {
+            URI uri = URI.create("string:///" + source[0].replace('.', '/') + JavaFileObject.Kind.SOURCE.extension);
+            units.add(new SimpleJavaFileObject(uri, JavaFileObject.Kind.SOURCE) {
+                @Override
+                public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                    return source[1];
+                }
+            });
+        }
+        String classpath = new File(Document.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+        List<String> options = new ArrayList<>(Arrays.asList("-classpath", classpath, "-d", output.getPath()));
+        if (!process) {
+            options.add("-proc:none");
+        }
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics, options, null, units);
+        if (process) {
+            task.setProcessors(Collections.singletonList(new DocumentMapperProcessor()));
+        }
+        assertTrue(diagnostics.getDiagnostics().toString(), task.call());
+        return new URLClassLoader(new URL[]{output.toURI().toURL()}, getClass().getClassLoader());
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+}
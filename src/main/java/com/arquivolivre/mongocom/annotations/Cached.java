@@ -0,0 +1,52 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Keep the documents of a <code>@Document</code> class loaded by id, by
+ * <code>findById</code> and by <code>@Reference</code> fields, in a cache
+ * shared by the managers of the same database. Writes through a manager
+ * invalidate the cached documents, writes by other processes are only seen
+ * after the <code>ttl</code>.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Cached {
+
+    /**
+     * Maximum number of cached documents.
+     */
+    int maxSize() default 10000;
+
+    /**
+     * Maximum size of the cached documents, in bytes of BSON, 0 for no
+     * limit.
+     */
+    long maxWeight() default 0;
+
+    /**
+     * Seconds a document is kept after it was loaded.
+     */
+    long ttl() default 300;
+
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the operations of a {@link CollectionManager} in the background, so
+ * independent operations overlap instead of running one after another.
+ *
+ * <p>Operations run on the given executor or, by default, on virtual threads
+ * when the runtime has them, otherwise on a pool of daemon threads. At most
+ * <code>maxInFlight</code> operations are in flight at the same time, so
+ * neither the pool of connections nor the executor queue is exhausted: the
+ * calls that would start more return a future failed with a
+ * <code>RejectedExecutionException</code>, or wait for one of them to finish
+ * when the manager is created <code>blocking</code>. The default limit is the
+ * system property <code>mongocom.async.maxInFlight</code>, or 100.</p>
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public final class AsyncCollectionManager implements Closeable {
+
+    /**
+     * Default maximum number of operations running at the same time.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = Integer.getInteger("mongocom.async.maxInFlight", 100);
+    private static final Logger LOG = Logger.getLogger(AsyncCollectionManager.class.getName());
+
+    private final CollectionManager manager;
+    private final Executor executor;
+    private final ExecutorService ownExecutor;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final boolean blocking;
+
+    /**
+     * Run the operations on the default executor with the default limit.
+     *
+     * @param manager the manager that runs the operations.
+     */
+    public AsyncCollectionManager(CollectionManager manager) {
+        this(manager, null, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param manager the manager that runs the operations.
+     * @param executor the executor of the operations, <code>null</code> for
+     * the default one.
+     * @param maxInFlight maximum number of operations running at the same
+     * time.
+     */
+    public AsyncCollectionManager(CollectionManager manager, Executor executor, int maxInFlight) {
+        this(manager, executor, maxInFlight, false);
+    }
+
+    /**
+     * @param manager the manager that runs the operations.
+     * @param executor the executor of the operations, <code>null</code> for
+     * the default one.
+     * @param maxInFlight maximum number of operations running at the same
+     * time.
+     * @param blocking if <code>true</code> the calls that would exceed
+     * <code>maxInFlight</code> wait for room instead of being rejected.
+     */
+    public AsyncCollectionManager(CollectionManager manager, Executor executor, int maxInFlight, boolean blocking) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        }
+        this.manager = manager;
+        this.ownExecutor = executor == null ? createDefaultExecutor(maxInFlight) : null;
+        this.executor = executor == null ? ownExecutor : executor;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.maxInFlight = maxInFlight;
+        this.blocking = blocking;
+    }
+
+    private static ExecutorService createDefaultExecutor(int maxInFlight) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            LOG.log(Level.FINE, "Virtual threads are not available, using a thread pool.", ex);
+        }
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "mongocom-async-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public CollectionManager getManager() {
+        return manager;
+    }
+
+    public <A extends Object> CompletableFuture<Long> countAsync(final Class<A> collectionClass) {
+        return submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return manager.count(collectionClass);
+            }
+        });
+    }
+
+    public <A extends Object> CompletableFuture<Long> countAsync(final Class<A> collectionClass, final MongoQuery query) {
+        return submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return manager.count(collectionClass, query);
+            }
+        });
+    }
+
+    public <A extends Object> CompletableFuture<List<A>> findAsync(final Class<A> collectionClass) {
+        return submit(new Callable<List<A>>() {
+            @Override
+            public List<A> call() {
+                return manager.find(collectionClass);
+            }
+        });
+    }
+
+    public <A extends Object> CompletableFuture<List<A>> findAsync(final Class<A> collectionClass, final MongoQuery query) {
+        return submit(new Callable<List<A>>() {
+            @Override
+            public List<A> call() {
+                return manager.find(collectionClass, query);
+            }
+        });
+    }
+
+    public <A extends Object> CompletableFuture<Page<A>> findPageAsync(final Class<A> collectionClass, final MongoQuery query, final int pageSize, final String pageToken) {
+        return submit(new Callable<Page<A>>() {
+            @Override
+            public Page<A> call() {
+                return manager.findPage(collectionClass, query, pageSize, pageToken);
+            }
+        });
+    }
+
+    public <A extends Object> CompletableFuture<A> findOneAsync(final Class<A> collectionClass) {
+        return submit(new Callable<A>() {
+            @Override
+            public A call() {
+                return manager.findOne(collectionClass);
+            }
+        });
+    }
+
+    public <A extends Object> CompletableFuture<A> findOneAsync(final Class<A> collectionClass, final MongoQuery query) {
+        return submit(new Callable<A>() {
+            @Override
+            public A call() {
+                return manager.findOne(collectionClass, query);
+            }
+        });
+    }
+
+    public <A extends Object> CompletableFuture<A> findByIdAsync(final Class<A> collectionClass, final String id) {
+        return submit(new Callable<A>() {
+            @Override
+            public A call() {
+                return manager.findById(collectionClass, id);
+            }
+        });
+    }
+
+    public CompletableFuture<String> insertAsync(final Object document) {
+        return submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return manager.insert(document);
+            }
+        });
+    }
+
+    public CompletableFuture<String> saveAsync(final Object document) {
+        return submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return manager.save(document);
+            }
+        });
+    }
+
+    public CompletableFuture<String> saveChangesAsync(final Object document) {
+        return submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return manager.saveChanges(document);
+            }
+        });
+    }
+
+    public CompletableFuture<List<BatchResult>> insertAllAsync(final Collection<?> documents) {
+        return submit(new Callable<List<BatchResult>>() {
+            @Override
+            public List<BatchResult> call() {
+                return manager.insertAll(documents);
+            }
+        });
+    }
+
+    public CompletableFuture<List<BatchResult>> saveAllAsync(final Collection<?> documents) {
+        return submit(new Callable<List<BatchResult>>() {
+            @Override
+            public List<BatchResult> call() {
+                return manager.saveAll(documents);
+            }
+        });
+    }
+
+    public CompletableFuture<Void> updateAsync(final MongoQuery query, final Object document) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                manager.update(query, document);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> removeAsync(final Object document) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                manager.remove(document);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Run an operation on the executor if there is room for it, while
+     * <code>maxInFlight</code> operations are running it is rejected or, when
+     * <code>blocking</code>, the caller waits.
+     */
+    private <T> CompletableFuture<T> submit(final Callable<T> operation) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        if (blocking) {
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                future.completeExceptionally(ex);
+                return future;
+            }
+        } else if (!inFlight.tryAcquire()) {
+            future.completeExceptionally(new RejectedExecutionException(maxInFlight + " operations are already in flight."));
+            return future;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    T result = null;
+                    Throwable failure = null;
+                    try {
+                        result = operation.call();
+                    } catch (Throwable ex) {
+                        failure = ex;
+                    } finally {
+                        inFlight.release();
+                    }
+                    if (failure == null) {
+                        future.complete(result);
+                    } else {
+                        future.completeExceptionally(failure);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            inFlight.release();
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    /**
+     * Stop the default executor after the running operations, an executor
+     * given to the constructor and the manager are left open.
+     */
+    @Override
+    public void close() {
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>..
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+/**
+ * The outcome of writing a single document of a batch.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public final class BatchResult {
+
+    private final Object document;
+    private final String id;
+    private final String error;
+
+    BatchResult(Object document, String id, String error) {
+        this.document = document;
+        this.id = id;
+        this.error = error;
+    }
+
+    public Object getDocument() {
+        return document;
+    }
+
+    /**
+     * The <code>_id</code> of the document.
+     *
+     * @return the <code>_id</code>, <code>null</code> if the document was not
+     * written.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Why the document was not written.
+     *
+     * @return the error message, <code>null</code> if the document was
+     * written.
+     */
+    public String getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    @Override
+    public String toString() {
+        return isSuccess() ? "BatchResult{_id=" + id + "}" : "BatchResult{error=" + error + "}";
+    }
+
+}
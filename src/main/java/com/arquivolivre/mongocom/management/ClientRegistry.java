@@ -0,0 +1,177 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.arquivolivre.mongocom.utils.IntegerGenerator;
+import com.mongodb.Mongo;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The clients shared by the managers created by
+ * {@link CollectionManagerFactory}, one per URI, so each server and
+ * credentials has a single connection pool in the JVM. A client is closed
+ * when the last manager using it is closed.
+ *
+ * <p>The pool of the clients is configured by the following properties, the
+ * driver defaults are used for the ones not set:</p>
+ * <ul>
+ * <li><code>mongocom.pool.connectionsPerHost</code></li>
+ * <li><code>mongocom.pool.minConnectionsPerHost</code></li>
+ * <li><code>mongocom.pool.threadsAllowedToBlockForConnectionMultiplier</code></li>
+ * <li><code>mongocom.pool.maxWaitTime</code>, in milliseconds</li>
+ * <li><code>mongocom.pool.connectTimeout</code>, in milliseconds</li>
+ * <li><code>mongocom.pool.socketTimeout</code>, in milliseconds</li>
+ * <li><code>mongocom.pool.socketKeepAlive</code></li>
+ * </ul>
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>
+ */
+final class ClientRegistry {
+
+    private static final Logger LOG = Logger.getLogger(ClientRegistry.class.getName());
+    private static final String PREFIX = "mongocom.pool.";
+    private static final Map<String, Mongo> CLIENTS = new HashMap<>();
+    private static final Map<Mongo, Integer> REFERENCES = new IdentityHashMap<>();
+
+    private ClientRegistry() {
+    }
+
+    /**
+     * The client of the given URI, created on the first call. Each call must
+     * be followed by a {@link #release(com.mongodb.Mongo)} when the client is
+     * no longer used.
+     *
+     * @param uri a <code>mongodb://</code> URI, with the credentials if any.
+     * @param properties the <code>mongocom.pool.*</code> properties, only
+     * used when the client is created.
+     * @return the shared client.
+     * @throws UnknownHostException
+     */
+    static synchronized Mongo acquire(String uri, Properties properties) throws UnknownHostException {
+        Mongo client = CLIENTS.get(uri);
+        if (client == null) {
+            client = new MongoClient(new MongoClientURI(uri, options(properties)));
+            CLIENTS.put(uri, client);
+            REFERENCES.put(client, 0);
+        }
+        REFERENCES.put(client, REFERENCES.get(client) + 1);
+        return client;
+    }
+
+    /**
+     * Add a user to a client already acquired, i.e. by a manager that shares
+     * it with another one.
+     *
+     * @param client a client.
+     * @return <code>true</code> if the client is shared by the registry.
+     */
+    static synchronized boolean retain(Mongo client) {
+        Integer references = REFERENCES.get(client);
+        if (references == null) {
+            return false;
+        }
+        REFERENCES.put(client, references + 1);
+        return true;
+    }
+
+    /**
+     * Give back a client, it is closed if there are no other users.
+     *
+     * @param client a client.
+     * @return <code>true</code> if the client is shared by the registry,
+     * otherwise nothing is done.
+     */
+    static synchronized boolean release(Mongo client) {
+        Integer references = REFERENCES.get(client);
+        if (references == null) {
+            return false;
+        }
+        if (references > 1) {
+            REFERENCES.put(client, references - 1);
+            return true;
+        }
+        REFERENCES.remove(client);
+        CLIENTS.values().remove(client);
+        close(client);
+        return true;
+    }
+
+    /**
+     * Close a client, dropping what the caches keep for its databases so they
+     * are not kept reachable, nor used by a client created later for the same
+     * server.
+     *
+     * @param client a client no longer used.
+     */
+    static void close(Mongo client) {
+        QueryCache.forget(client);
+        EntityCache.forget(client);
+        IndexManager.forget(client);
+        IntegerGenerator.forget(client);
+        client.close();
+    }
+
+    private static MongoClientOptions.Builder options(Properties properties) {
+        MongoClientOptions.Builder builder = MongoClientOptions.builder();
+        if (properties == null) {
+            return builder;
+        }
+        try {
+            String value = properties.getProperty(PREFIX + "connectionsPerHost");
+            if (value != null) {
+                builder.connectionsPerHost(Integer.parseInt(value.trim()));
+            }
+            value = properties.getProperty(PREFIX + "minConnectionsPerHost");
+            if (value != null) {
+                builder.minConnectionsPerHost(Integer.parseInt(value.trim()));
+            }
+            value = properties.getProperty(PREFIX + "threadsAllowedToBlockForConnectionMultiplier");
+            if (value != null) {
+                builder.threadsAllowedToBlockForConnectionMultiplier(Integer.parseInt(value.trim()));
+            }
+            value = properties.getProperty(PREFIX + "maxWaitTime");
+            if (value != null) {
+                builder.maxWaitTime(Integer.parseInt(value.trim()));
+            }
+            value = properties.getProperty(PREFIX + "connectTimeout");
+            if (value != null) {
+                builder.connectTimeout(Integer.parseInt(value.trim()));
+            }
+            value = properties.getProperty(PREFIX + "socketTimeout");
+            if (value != null) {
+                builder.socketTimeout(Integer.parseInt(value.trim()));
+            }
+            value = properties.getProperty(PREFIX + "socketKeepAlive");
+            if (value != null) {
+                builder.socketKeepAlive(Boolean.parseBoolean(value.trim()));
+            }
+        } catch (IllegalArgumentException ex) {
+            LOG.log(Level.SEVERE, "Invalid " + PREFIX + "* property, using the default pool options.", ex);
+            return MongoClientOptions.builder();
+        }
+        return builder;
+    }
+
+}
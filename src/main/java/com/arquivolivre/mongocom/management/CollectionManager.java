@@ -20,47 +20,83 @@ import com.mongodb.DB;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import java.lang.annotation.Annotation;
-import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import com.arquivolivre.mongocom.annotations.Document;
-import com.arquivolivre.mongocom.annotations.GeneratedValue;
-import com.arquivolivre.mongocom.annotations.Id;
-import com.arquivolivre.mongocom.annotations.Internal;
-import com.arquivolivre.mongocom.annotations.ObjectId;
-import com.arquivolivre.mongocom.annotations.Reference;
-import com.arquivolivre.mongocom.annotations.Index;
+import com.arquivolivre.mongocom.annotations.Tracked;
+import com.arquivolivre.mongocom.mapping.ClassMapping;
+import com.arquivolivre.mongocom.mapping.FieldMapping;
 import com.arquivolivre.mongocom.utils.Generator;
 import com.mongodb.BasicDBList;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.DBCollection;
+import com.mongodb.LazyDBDecoder;
 import com.mongodb.Mongo;
+import com.mongodb.MongoException;
 import com.mongodb.WriteConcern;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.IOException;
 import java.lang.reflect.Method;
-import java.lang.reflect.ParameterizedType;
-import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
-import org.bson.types.BasicBSONList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.bson.BSONObject;
+import org.bson.LazyBSONObject;
+import org.reactivestreams.Publisher;
 
 /**
+ * Maps objects to the collections of a database. A manager is safe to share
+ * between threads, as long as its database is not switched with the
+ * deprecated {@link #use(java.lang.String)}: other databases are reached
+ * through the managers returned by {@link #withDatabase(java.lang.String)}.
+ * The mapping of the classes and the caches are shared by all managers.
  *
  * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
  */
 public final class CollectionManager implements Closeable {
 
+    /**
+     * Maximum number of documents sent in a single bulk write.
+     */
+    public static final int BULK_SIZE = 1000;
+    private static final WeakIdentityMap<Object, String> PLACEHOLDERS = new WeakIdentityMap<>();
+    private static final WeakIdentityMap<Object, Snapshot> SNAPSHOTS = new WeakIdentityMap<>();
+    private static final ClassValue<Boolean> TRACKED = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            return type.isAnnotationPresent(Tracked.class);
+        }
+    };
+    /**
+     * Value of a field that is not stored.
+     */
+    static final Object SKIP = new Object();
     private final Mongo client;
-    private DB db;
+    private final boolean ownsClient;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile DB db;
     private static final Logger LOG = Logger.getLogger(CollectionManager.class.getName());
 
     //TODO: a better way to manage db connection
     protected CollectionManager(Mongo client, String dataBase) {
         this.client = client;
+        this.ownsClient = true;
         if (dataBase != null && !dataBase.equals("")) {
             this.db = client.getDB(dataBase);
         } else {
@@ -75,17 +111,51 @@ public final class CollectionManager implements Closeable {
 
     protected CollectionManager(Mongo client) {
         this.client = client;
+        this.ownsClient = true;
+        this.db = null;
+    }
+
+    /**
+     * A view of another database of the same client.
+     */
+    private CollectionManager(Mongo client, DB db) {
+        this.client = client;
+        this.ownsClient = false;
+        this.db = db;
+        ClientRegistry.retain(client);
     }
 
     /**
      * Uses the specified Database, creates one if it doesn't exist.
      *
      * @param dbName Database name
+     * @deprecated it switches the database for every thread sharing this
+     * manager, use {@link #withDatabase(java.lang.String)}.
      */
+    @Deprecated
     public void use(String dbName) {
         db = client.getDB(dbName);
     }
 
+    /**
+     * A manager of the specified database, created if it doesn't exist. It
+     * shares the client of this manager, which keeps using its own database.
+     *
+     * @param dbName Database name
+     * @return a new manager, it should be closed when no longer needed, like
+     * this one.
+     */
+    public CollectionManager withDatabase(String dbName) {
+        return new CollectionManager(client, client.getDB(dbName));
+    }
+
+    /**
+     * @return the name of the database of this manager.
+     */
+    public String getDatabaseName() {
+        return db.getName();
+    }
+
     /**
      * The number of documents in the specified collection.
      *
@@ -106,15 +176,19 @@ public final class CollectionManager implements Closeable {
      * @return the total of documents.
      */
     public <A extends Object> long count(Class<A> collectionClass, MongoQuery query) {
-        long ret = 0l;
-        try {
-            A result = collectionClass.newInstance();
-            String collectionName = reflectCollectionName(result);
-            ret = db.getCollection(collectionName).count(query.getQuery());
-        } catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException | NoSuchMethodException | SecurityException ex) {
-            LOG.log(Level.SEVERE, null, ex);
+        String collectionName = getCollectionName(collectionClass);
+        if (query.getCacheTtl() <= 0) {
+            return db.getCollection(collectionName).count(query.getQuery());
+        }
+        QueryCache cache = QueryCache.of(db, collectionName);
+        String key = QueryCache.key("count", query);
+        Long count = cache.getCount(key);
+        if (count == null) {
+            long stamp = cache.stamp();
+            count = db.getCollection(collectionName).count(query.getQuery());
+            cache.putCount(key, count, query.getCacheTtl(), stamp);
         }
-        return ret;
+        return count;
     }
 
     /**
@@ -141,22 +215,44 @@ public final class CollectionManager implements Closeable {
         List<A> resultSet = new ArrayList<>();
         DBCursor cursor = null;
         try {
-            A obj = collectionClass.newInstance();
-            String collectionName = reflectCollectionName(obj);
-            cursor = db.getCollection(collectionName).find(query.getQuery(), query.getConstraits());
-            if (query.getSkip() > 0) {
-                cursor = cursor.skip(query.getSkip());
+            ClassMapping mapping = ClassMapping.of(collectionClass);
+            LoadContext context = new LoadContext(this, db, query.isLazyReferences());
+            QueryCache cache = null;
+            String key = null;
+            long stamp = 0;
+            List<DBObject> cached = null;
+            if (query.getCacheTtl() > 0) {
+                cache = QueryCache.of(db, mapping.getCollectionName());
+                key = QueryCache.key("find", query);
+                stamp = cache.stamp();
+                cached = cache.getDocuments(key);
             }
-            if (query.getLimit() > 0) {
-                cursor = cursor.limit(query.getLimit());
+            Iterator<DBObject> documents;
+            List<DBObject> loaded = null;
+            if (cached != null) {
+                documents = cached.iterator();
+            } else {
+                documents = cursor = openCursor(mapping, query, context);
+                loaded = cache == null ? null : new ArrayList<DBObject>();
             }
-            while (cursor.hasNext()) {
-                DBObject objDB = cursor.next();
-                loadObject(obj, objDB);
+            boolean complete = query.getConstraits() == null;
+            if (cursor != null && query.getPipelineWorkers() > 0) {
+                resultSet = PipelinedFind.find(this, db, mapping, cursor, query, loaded, complete);
+                documents = Collections.emptyIterator();
+            }
+            while (documents.hasNext()) {
+                DBObject objDB = documents.next();
+                if (loaded != null) {
+                    loaded.add(objDB);
+                }
+                A obj = mapDocument(mapping, objDB, context, complete);
                 resultSet.add(obj);
-                obj = collectionClass.newInstance();
             }
-        } catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException | NoSuchMethodException | SecurityException ex) {
+            if (loaded != null) {
+                cache.putDocuments(key, loaded, query.getCacheTtl(), stamp);
+            }
+            context.resolve();
+        } catch (InstantiationException | IllegalAccessException | IllegalArgumentException | SecurityException ex) {
             LOG.log(Level.SEVERE, null, ex);
         } finally {
             if (cursor != null) {
@@ -166,6 +262,323 @@ public final class CollectionManager implements Closeable {
         return resultSet;
     }
 
+    /**
+     * Iterate over all documents in the specified collection.
+     *
+     * @param <A> generic type of the collection.
+     * @param collectionClass
+     * @return a cursor over the documents.
+     * @see #iterate(java.lang.Class, MongoQuery)
+     */
+    public <A extends Object> DocumentCursor<A> iterate(Class<A> collectionClass) {
+        return iterate(collectionClass, new MongoQuery());
+    }
+
+    /**
+     * Iterate over the documents that match the specified query in the given
+     * collection. Unlike {@link #find(java.lang.Class, MongoQuery)} the
+     * documents are fetched and mapped only as the cursor is advanced, so the
+     * memory used is bounded by the batch size of the query instead of by the
+     * size of the result.
+     *
+     * @param <A> generic type of the collection.
+     * @param collectionClass
+     * @param query
+     * @return a cursor over the documents, it must be closed if it is not
+     * read until the end.
+     */
+    public <A extends Object> DocumentCursor<A> iterate(Class<A> collectionClass, MongoQuery query) {
+        ClassMapping mapping = ClassMapping.of(collectionClass);
+        int chunkSize = query.getBatchSize() > 0 ? query.getBatchSize() : DocumentCursor.DEFAULT_CHUNK_SIZE;
+        LoadContext context = new LoadContext(this, db, query.isLazyReferences());
+        return new DocumentCursor<>(this, context, mapping, openCursor(mapping, query, context), chunkSize, query.getConstraits() == null);
+    }
+
+    /**
+     * Publish the documents that match the specified query in the given
+     * collection, fetching and mapping them only as the subscribers request
+     * them, on the requesting thread.
+     *
+     * @param <A> generic type of the collection.
+     * @param collectionClass
+     * @param query
+     * @return a publisher that runs the query for each subscriber.
+     * @see #iterate(java.lang.Class, MongoQuery)
+     */
+    public <A extends Object> Publisher<A> publish(Class<A> collectionClass, MongoQuery query) {
+        return new DocumentPublisher<>(this, collectionClass, query, null);
+    }
+
+    /**
+     * Publish the documents that match the specified query in the given
+     * collection, fetching and mapping them only as the subscribers request
+     * them, on the given executor.
+     *
+     * @param <A> generic type of the collection.
+     * @param collectionClass
+     * @param query
+     * @param executor executor of the fetching and of the calls to the
+     * subscribers.
+     * @return a publisher that runs the query for each subscriber.
+     */
+    public <A extends Object> Publisher<A> publish(Class<A> collectionClass, MongoQuery query, Executor executor) {
+        return new DocumentPublisher<>(this, collectionClass, query, executor);
+    }
+
+    /**
+     * Stream the documents that match the specified query, reading the
+     * collection in <code>partitions</code> ranges of <code>_id</code> at the
+     * same time, each one with its own cursor. The stream is parallel and
+     * unordered, the order, skip and limit of the query are ignored, and each
+     * range is read through the <code>_id</code> index, so the whole
+     * collection is scanned once whatever the criteria. The stream must be
+     * closed if it is not consumed until the end. Its terminal operation runs
+     * on the common fork-join pool unless it is called from another pool, see
+     * {@link #parallelScan(java.lang.Class, MongoQuery, int, Consumer)}.
+     *
+     * @param <A> generic type of the collection.
+     * @param collectionClass
+     * @param query
+     * @param partitions number of ranges, i.e. the number of cursors open at
+     * the same time.
+     * @return a parallel stream of the documents.
+     */
+    public <A extends Object> Stream<A> parallelStream(Class<A> collectionClass, MongoQuery query, int partitions) {
+        ClassMapping mapping = ClassMapping.of(collectionClass);
+        final ParallelScan<A> scan = new ParallelScan<>(this, db.getCollection(mapping.getCollectionName()), mapping, query, partitions);
+        return StreamSupport.stream(scan, true).onClose(new Runnable() {
+            @Override
+            public void run() {
+                scan.close();
+            }
+        });
+    }
+
+    /**
+     * Pass the documents that match the specified query to the consumer, from
+     * a pool of <code>partitions</code> threads created for the scan, so the
+     * cursors waiting on the server do not hold the threads of the common
+     * fork-join pool.
+     *
+     * @param <A> generic type of the collection.
+     * @param collectionClass
+     * @param query
+     * @param partitions number of ranges of the collection read at the same
+     * time.
+     * @param consumer called by many threads at the same time.
+     * @see #parallelStream(java.lang.Class, MongoQuery, int)
+     */
+    public <A extends Object> void parallelScan(Class<A> collectionClass, MongoQuery query, int partitions, Consumer<? super A> consumer) {
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, partitions));
+        try {
+            parallelScan(collectionClass, query, partitions, consumer, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Pass the documents that match the specified query to the consumer, from
+     * the threads of the given pool.
+     *
+     * @param <A> generic type of the collection.
+     * @param collectionClass
+     * @param query
+     * @param partitions number of ranges of the collection read at the same
+     * time.
+     * @param consumer called by many threads at the same time.
+     * @param pool the pool that reads and maps the ranges.
+     * @see #parallelStream(java.lang.Class, MongoQuery, int)
+     */
+    public <A extends Object> void parallelScan(final Class<A> collectionClass, final MongoQuery query, final int partitions,
+            final Consumer<? super A> consumer, ForkJoinPool pool) {
+        pool.submit(new Runnable() {
+            @Override
+            public void run() {
+                try (Stream<A> documents = parallelStream(collectionClass, query, partitions)) {
+                    documents.forEach(consumer);
+                }
+            }
+        }).join();
+    }
+
+    /**
+     * Iterate over the documents of a query in a range of the collection.
+     *
+     * @param range criteria of the range, <code>null</code> for the whole
+     * collection.
+     */
+    <A extends Object> DocumentCursor<A> iterate(ClassMapping mapping, MongoQuery query, DBObject range) {
+        DBObject criteria = query.getCriteria();
+        if (range != null) {
+            criteria = criteria.keySet().isEmpty() ? range : new BasicDBObject("$and", Arrays.asList(criteria, range));
+        }
+        DBCursor cursor = db.getCollection(mapping.getCollectionName()).find(criteria, query.getConstraits())
+                .hint(new BasicDBObject("_id", 1));
+        if (query.getBatchSize() > 0) {
+            cursor = cursor.batchSize(query.getBatchSize());
+        }
+        int chunkSize = query.getBatchSize() > 0 ? query.getBatchSize() : DocumentCursor.DEFAULT_CHUNK_SIZE;
+        LoadContext context = new LoadContext(this, db, query.isLazyReferences());
+        decodeEntities(cursor, mapping, query, context);
+        return new DocumentCursor<>(this, context, mapping, cursor, chunkSize, query.getConstraits() == null);
+    }
+
+    /**
+     * Find a page of the documents that match the specified query, continuing
+     * after the page of the given token. The documents are sorted by the
+     * field of {@link MongoQuery#orderBy(java.lang.String, int)}, if any, and
+     * then by <code>_id</code> in the same direction, and the next page starts
+     * from the values of the last document instead of skipping the previous
+     * ones, so deep pages cost the same as the first one given an index on
+     * the sort field and <code>_id</code>. The skip, limit and cache of the
+     * query are ignored.
+     *
+     * @param <A> generic type of the collection.
+     * @param collectionClass
+     * @param query
+     * @param pageSize maximum number of documents of the page.
+     * @param pageToken {@link Page#getNextPageToken()} of the previous page,
+     * <code>null</code> for the first one.
+     * @return the page.
+     */
+    public <A extends Object> Page<A> findPage(Class<A> collectionClass, MongoQuery query, int pageSize, String pageToken) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+        }
+        String field = null;
+        int order = MongoQuery.ORDER_ASC;
+        DBObject orderBy = query.getOrderBy();
+        if (orderBy != null && !orderBy.keySet().isEmpty()) {
+            field = orderBy.keySet().iterator().next();
+            order = ((Number) orderBy.get(field)).intValue() < 0 ? MongoQuery.ORDER_DESC : MongoQuery.ORDER_ASC;
+            if (field.equals("_id")) {
+                field = null;
+            }
+        }
+        DBObject criteria = query.getCriteria();
+        if (pageToken != null) {
+            DBObject after = PageToken.decode(pageToken, field, order).after();
+            criteria = criteria.keySet().isEmpty() ? after : new BasicDBObject("$and", Arrays.asList(criteria, after));
+        }
+        BasicDBObject sort = new BasicDBObject();
+        if (field != null) {
+            sort.append(field, order);
+        }
+        sort.append("_id", order);
+        List<A> items = new ArrayList<>();
+        String next = null;
+        DBCursor cursor = null;
+        try {
+            ClassMapping mapping = ClassMapping.of(collectionClass);
+            LoadContext context = new LoadContext(this, db, query.isLazyReferences());
+            boolean complete = query.getConstraits() == null;
+            cursor = db.getCollection(mapping.getCollectionName()).find(criteria, pageFields(query.getConstraits(), field))
+                    .sort(sort).limit(pageSize + 1);
+            if (query.getBatchSize() > 0) {
+                cursor = cursor.batchSize(query.getBatchSize());
+            }
+            if (field == null || query.isLazyDocuments()) {
+                decodeEntities(cursor, mapping, query, context);
+            }
+            DBObject last = null;
+            while (cursor.hasNext()) {
+                DBObject objDB = cursor.next();
+                if (items.size() == pageSize) {
+                    next = new PageToken(field, order, field == null ? null : valueOf(last, field), last.get("_id")).encode();
+                    break;
+                }
+                A obj = mapDocument(mapping, objDB, context, complete);
+                items.add(obj);
+                last = objDB;
+            }
+            context.resolve();
+        } catch (InstantiationException | IllegalAccessException | IllegalArgumentException | SecurityException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return new Page<>(items, next);
+    }
+
+    /**
+     * The fields of a query with the ones needed by a page token, which are
+     * always returned.
+     */
+    private static DBObject pageFields(DBObject constraits, String field) {
+        if (constraits == null) {
+            return null;
+        }
+        BasicDBObject fields = new BasicDBObject(constraits.toMap());
+        fields.removeField("_id");
+        boolean inclusive = false;
+        for (String name : fields.keySet()) {
+            Object value = fields.get(name);
+            inclusive |= !(value instanceof Number) || ((Number) value).intValue() != 0;
+        }
+        if (field != null) {
+            if (inclusive) {
+                fields.put(field, 1);
+            } else {
+                fields.removeField(field);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * The value of a field, which may be a dotted path into embedded
+     * documents.
+     */
+    private static Object valueOf(DBObject document, String field) {
+        Object value = document;
+        for (String name : field.split("\\.")) {
+            if (!(value instanceof DBObject)) {
+                return null;
+            }
+            value = ((DBObject) value).get(name);
+        }
+        return value;
+    }
+
+    private DBCursor openCursor(ClassMapping mapping, MongoQuery query, LoadContext context) {
+        DBCursor cursor = db.getCollection(mapping.getCollectionName()).find(query.getQuery(), query.getConstraits());
+        if (query.getSkip() > 0) {
+            cursor = cursor.skip(query.getSkip());
+        }
+        if (query.getLimit() > 0) {
+            cursor = cursor.limit(query.getLimit());
+        }
+        if (query.getBatchSize() > 0) {
+            cursor = cursor.batchSize(query.getBatchSize());
+        }
+        decodeEntities(cursor, mapping, query, context);
+        return cursor;
+    }
+
+    /**
+     * Decode the documents of a cursor straight into objects, or into lazy
+     * documents for queries with {@link MongoQuery#lazyDocuments(boolean)},
+     * unless they are kept as documents by the query cache or mapped by other
+     * threads.
+     *
+     * @param context the context the references of the objects are deferred
+     * to, which must be the one they are resolved by.
+     * @see EntityDecoder
+     */
+    private void decodeEntities(DBCursor cursor, ClassMapping mapping, MongoQuery query, LoadContext context) {
+        if (query.getCacheTtl() > 0 || query.getPipelineWorkers() > 0) {
+            return;
+        }
+        if (query.isLazyDocuments()) {
+            cursor.setDecoderFactory(LazyDBDecoder.FACTORY);
+        } else {
+            cursor.setDecoderFactory(EntityDecoder.factory(this, mapping, context, query.getConstraits() == null));
+        }
+    }
+
     /**
      * Find a single document of the specified collection.
      *
@@ -176,14 +589,13 @@ public final class CollectionManager implements Closeable {
     public <A extends Object> A findOne(Class<A> collectionClass) {
         A result = null;
         try {
-            result = collectionClass.newInstance();
-            String collectionName = reflectCollectionName(result);
+            String collectionName = getCollectionName(collectionClass);
             DBObject obj = db.getCollection(collectionName).findOne();
             if (obj == null) {
                 return null;
             }
-            loadObject(result, obj);
-        } catch (NoSuchMethodException | SecurityException | IllegalAccessException | IllegalArgumentException | InvocationTargetException | InstantiationException ex) {
+            result = loadRoot(collectionClass, obj, new LoadContext(this, db), true);
+        } catch (SecurityException | IllegalAccessException | IllegalArgumentException | InstantiationException ex) {
             LOG.log(Level.SEVERE, null, ex);
         }
         return result;
@@ -201,14 +613,14 @@ public final class CollectionManager implements Closeable {
     public <A extends Object> A findOne(Class<A> collectionClass, MongoQuery query) {
         A result = null;
         try {
-            result = collectionClass.newInstance();
-            String collectionName = reflectCollectionName(result);
+            String collectionName = getCollectionName(collectionClass);
             DBObject obj = db.getCollection(collectionName).findOne(query.getQuery(), query.getConstraits());
             if (obj == null) {
                 return null;
             }
-            loadObject(result, obj);
-        } catch (NoSuchMethodException | SecurityException | IllegalAccessException | IllegalArgumentException | InvocationTargetException | InstantiationException ex) {
+            LoadContext context = new LoadContext(this, db, query.isLazyReferences());
+            result = loadRoot(collectionClass, obj, context, query.getConstraits() == null);
+        } catch (SecurityException | IllegalAccessException | IllegalArgumentException | InstantiationException ex) {
             LOG.log(Level.SEVERE, null, ex);
         }
         return result;
@@ -216,7 +628,8 @@ public final class CollectionManager implements Closeable {
 
     /**
      * Find a single document that matches the specified id in the given
-     * collection.
+     * collection. Documents of <code>@Cached</code> classes are looked up in
+     * their cache first, unless the id is not an <code>ObjectId</code>.
      *
      * @param <A> generic type of the collection.
      * @param collectionClass
@@ -224,7 +637,93 @@ public final class CollectionManager implements Closeable {
      * @return a document.
      */
     public <A extends Object> A findById(Class<A> collectionClass, String id) {
-        return findOne(collectionClass, new MongoQuery("_id", id));
+        EntityCache cache = EntityCache.of(db, collectionClass);
+        if (cache == null || !org.bson.types.ObjectId.isValid(id)) {
+            return findOne(collectionClass, new MongoQuery("_id", id));
+        }
+        A result = null;
+        try {
+            org.bson.types.ObjectId key = new org.bson.types.ObjectId(id);
+            DBObject obj = cache.get(key);
+            if (obj == null) {
+                long stamp = cache.stamp(key);
+                obj = db.getCollection(getCollectionName(collectionClass)).findOne(new BasicDBObject("_id", key));
+                if (obj == null) {
+                    return null;
+                }
+                cache.put(key, obj, stamp);
+            }
+            result = loadRoot(collectionClass, obj, new LoadContext(this, db), true);
+        } catch (SecurityException | IllegalAccessException | IllegalArgumentException | InstantiationException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+        }
+        return result;
+    }
+
+    /**
+     * The statistics of the cache of a <code>@Cached</code> class in the
+     * current database.
+     *
+     * @param collectionClass
+     * @return the statistics, <code>null</code> if the class is not cached.
+     */
+    public CacheStats getCacheStats(Class<?> collectionClass) {
+        EntityCache cache = EntityCache.of(db, collectionClass);
+        return cache == null ? null : cache.stats();
+    }
+
+    /**
+     * Map a document found by a query, and the documents it references.
+     *
+     * @param complete whether the document has all its fields, so it can be
+     * shared with the references to it.
+     */
+    private <A extends Object> A loadRoot(Class<A> collectionClass, DBObject obj, LoadContext context, boolean complete) throws IllegalAccessException, IllegalArgumentException, SecurityException, InstantiationException {
+        A result = mapDocument(ClassMapping.of(collectionClass), obj, context, complete);
+        context.resolve();
+        return result;
+    }
+
+    /**
+     * Load in batch the given lazy references: {@link Ref}s that are not
+     * loaded yet and the placeholders set to <code>@Reference</code> fields
+     * by queries with {@link MongoQuery#lazyReferences(boolean)}, which are
+     * filled in place. Other objects are ignored.
+     *
+     * @param references references and placeholders, of any collection.
+     */
+    public void initialize(Collection<?> references) {
+        LoadContext context = new LoadContext(this, db);
+        for (Object reference : references) {
+            if (reference instanceof Ref) {
+                Ref<?> ref = (Ref<?>) reference;
+                if (!ref.isLoaded() && ref.getId() != null) {
+                    context.defer(ref);
+                }
+            } else if (reference != null) {
+                String id = PLACEHOLDERS.remove(reference);
+                if (id != null) {
+                    context.deferFill(reference, new org.bson.types.ObjectId(id));
+                }
+            }
+        }
+        try {
+            context.resolve();
+        } catch (InstantiationException | IllegalAccessException | IllegalArgumentException | SecurityException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Whether the given object is a placeholder of a lazy reference, that
+     * only has its <code>@ObjectId</code> field set.
+     *
+     * @param document a referenced document.
+     * @return <code>true</code> if it was not initialized yet.
+     * @see #initialize(java.util.Collection)
+     */
+    public boolean isPlaceholder(Object document) {
+        return document != null && PLACEHOLDERS.containsKey(document);
     }
 
     /**
@@ -234,10 +733,12 @@ public final class CollectionManager implements Closeable {
      */
     public void remove(Object document) {
         try {
-            BasicDBObject obj = loadDocument(document);
-            String collectionName = reflectCollectionName(document);
+            EntityDBObject obj = loadDocument(document);
+            String collectionName = getCollectionName(document.getClass());
             db.getCollection(collectionName).remove(obj);
-        } catch (InstantiationException | NoSuchMethodException | InvocationTargetException | IllegalAccessException | SecurityException | IllegalArgumentException ex) {
+            SNAPSHOTS.remove(document);
+            invalidate(document.getClass(), obj.get("_id"));
+        } catch (InstantiationException | SecurityException | IllegalArgumentException ex) {
             LOG.log(Level.SEVERE, "An error occured while removing this document: {0}", ex.getMessage());
         }
 
@@ -256,17 +757,24 @@ public final class CollectionManager implements Closeable {
             return _id;
         }
         try {
-            BasicDBObject obj = loadDocument(document);
-            String collectionName = reflectCollectionName(document);
-            db.getCollection(collectionName).insert(obj);
-            _id = obj.getString("_id");
-            Field field = getFieldByAnnotation(document, ObjectId.class, false);
+            Set<Object> saving = newSaving(document);
+            boolean tracked = TRACKED.get(document.getClass());
+            EntityDBObject state = loadDocument(document, saving, !tracked);
+            EntityDBObject obj = tracked ? generated(document, state, saving) : state;
+            DBCollection collection = db.getCollection(getCollectionName(document.getClass()));
+            collection.insert(new DBObject[]{obj}, collection.getWriteConcern(), new EntityEncoder(tracked));
+            Object id = obj.get("_id");
+            _id = id == null ? null : id.toString();
+            invalidate(document.getClass(), id);
+            FieldMapping field = ClassMapping.of(document.getClass()).getObjectIdField();
             if (field != null) {
-                field.setAccessible(true);
                 field.set(document, _id);
             }
-            indexFields(document);
-        } catch (InstantiationException | NoSuchMethodException | InvocationTargetException | IllegalAccessException | SecurityException | IllegalArgumentException | NoSuchFieldException ex) {
+            if (tracked) {
+                SNAPSHOTS.put(document, written(_id, id, state, obj, field != null));
+            }
+            IndexManager.sync(db, document.getClass());
+        } catch (InstantiationException | IllegalAccessException | SecurityException | IllegalArgumentException ex) {
             LOG.log(Level.SEVERE, "An error occured while inserting this document: {0}", ex.getMessage());
         }
         if (_id != null) {
@@ -285,10 +793,11 @@ public final class CollectionManager implements Closeable {
 
     public void update(MongoQuery query, Object document, boolean upsert, boolean multi, WriteConcern concern) {
         try {
-            BasicDBObject obj = loadDocument(document);
-            String collectionName = reflectCollectionName(document);
+            EntityDBObject obj = loadDocument(document);
+            String collectionName = getCollectionName(document.getClass());
             db.getCollection(collectionName).update(query.getQuery(), obj, upsert, multi, concern);
-        } catch (InstantiationException | NoSuchMethodException | InvocationTargetException | IllegalAccessException | SecurityException | IllegalArgumentException ex) {
+            invalidate(document.getClass(), null);
+        } catch (InstantiationException | SecurityException | IllegalArgumentException ex) {
             LOG.log(Level.SEVERE, null, ex);
         }
     }
@@ -297,22 +806,54 @@ public final class CollectionManager implements Closeable {
         update(query, document, false, true);
     }
 
+    /**
+     * Save the document, inserting it if it has no <code>_id</code>. The
+     * documents of its <code>@Reference</code> fields are saved too. The
+     * documents of {@link Tracked} classes, this one included, are only
+     * written if they changed since they were last loaded or written by a
+     * manager.
+     *
+     * @param document
+     * @return the <code>_id</code> of the document, <code>null</code> if
+     * fails.
+     */
     public String save(Object document) {
+        if (document == null) {
+            return null;
+        }
+        return save(document, newSaving(document));
+    }
+
+    private String save(Object document, Set<Object> saving) {
         //TODO: a better way to throw/treat exceptions
         /*if (!document.getClass().isAnnotationPresent(Document.class)) {
          throw new NoSuchMongoCollectionException(document.getClass() + " is not a valid Document.");
          }*/
         String _id = null;
-        if (document == null) {
-            return _id;
-        }
         try {
-            BasicDBObject obj = loadDocument(document);
-            String collectionName = reflectCollectionName(document);
-            db.getCollection(collectionName).save(obj);
-            _id = obj.getString("_id");
-            indexFields(document);
-        } catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException | NoSuchMethodException | SecurityException ex) {
+            boolean tracked = TRACKED.get(document.getClass());
+            EntityDBObject state = loadDocument(document, saving, !tracked);
+            Snapshot snapshot = tracked ? SNAPSHOTS.get(document) : null;
+            if (snapshot != null && snapshot.matches(db, state)) {
+                return snapshot.getId();
+            }
+            boolean withId = state.containsField("_id");
+            EntityDBObject obj = tracked ? generated(document, state, saving) : state;
+            DBCollection collection = db.getCollection(getCollectionName(document.getClass()));
+            Object id = obj.get("_id");
+            if (id == null) {
+                collection.insert(new DBObject[]{obj}, collection.getWriteConcern(), new EntityEncoder(tracked));
+                id = obj.get("_id");
+            } else {
+                collection.update(new BasicDBObject("_id", id), obj, true, false, collection.getWriteConcern(), new EntityEncoder(tracked));
+            }
+            _id = id.toString();
+            invalidate(document.getClass(), id);
+            if (tracked) {
+                SNAPSHOTS.put(document, written(_id, id, state, obj, withId));
+            }
+            IndexManager.sync(db, document.getClass());
+        } catch (InstantiationException | IllegalAccessException | IllegalArgumentException | SecurityException ex) {
             LOG.log(Level.SEVERE, "An error occured while saving this document: {0}", ex.getMessage());
         }
         if (_id != null) {
@@ -321,106 +862,356 @@ public final class CollectionManager implements Closeable {
         return _id;
     }
 
-    private void indexFields(Object document) throws NoSuchMethodException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
-        String collectionName = reflectCollectionName(document);
-        Field[] fields = getFieldsByAnnotation(document, Index.class);
-        Map<String, List<String>> compoundIndexes = new TreeMap<>();
-        BasicDBObject compoundIndexesOpt = new BasicDBObject("background", true);
-        DBCollection collection = db.getCollection(collectionName);
-        for (Field field : fields) {
-            Annotation annotation = field.getAnnotation(Index.class);
-            BasicDBObject options = new BasicDBObject();
-            BasicDBObject indexKeys = new BasicDBObject();
-            String indexName = (String) annotation.annotationType().getMethod("value").invoke(annotation);
-            String type = (String) annotation.annotationType().getMethod("type").invoke(annotation);
-            boolean unique = (boolean) annotation.annotationType().getMethod("unique").invoke(annotation);
-            boolean sparse = (boolean) annotation.annotationType().getMethod("sparse").invoke(annotation);
-            boolean dropDups = (boolean) annotation.annotationType().getMethod("dropDups").invoke(annotation);
-            boolean background = (boolean) annotation.annotationType().getMethod("background").invoke(annotation);
-            int order = (int) annotation.annotationType().getMethod("order").invoke(annotation);
-            if (!indexName.equals("")) {
-                options.append("name", indexName);
-            }
-            options.append("background", background);
-            options.append("unique", unique);
-            options.append("sparse", sparse);
-            options.append("dropDups", dropDups);
-            String fieldName = field.getName();
-            if (indexName.equals("") && type.equals("")) {
-                indexKeys.append(fieldName, order);
-                collection.ensureIndex(indexKeys, options);
-            } else if (!indexName.equals("") && type.equals("")) {
-                List<String> result = compoundIndexes.get(indexName);
-                if (result == null) {
-                    result = new ArrayList<>();
-                    compoundIndexes.put(indexName, result);
+    /**
+     * Save only the changes made to the document since it was last loaded or
+     * written by a manager, using <code>$set</code> and <code>$unset</code>
+     * on the changed fields, including the fields of embedded documents, and
+     * <code>$push</code> for the items appended to a list. A document whose
+     * class is not {@link Tracked}, that is not known yet, or that was loaded
+     * from another database, is saved whole.
+     *
+     * <p>Appended items are pushed assuming the stored list was not changed
+     * by someone else since the document was loaded, as a replacement
+     * would.</p>
+     *
+     * @param document
+     * @return the <code>_id</code> of the document, <code>null</code> if
+     * fails.
+     */
+    public String saveChanges(Object document) {
+        if (document == null) {
+            return null;
+        }
+        Snapshot snapshot = SNAPSHOTS.get(document);
+        if (snapshot == null || !snapshot.isFrom(db)) {
+            return save(document);
+        }
+        String _id = snapshot.getId();
+        try {
+            ClassMapping mapping = ClassMapping.of(document.getClass());
+            Set<Object> saving = newSaving(document);
+            EntityDBObject state = loadDocument(document, saving, false);
+            BasicDBObject set = new BasicDBObject();
+            BasicDBObject unset = new BasicDBObject();
+            BasicDBObject push = new BasicDBObject();
+            diff("", snapshot.getState(), state, set, unset, push);
+            if (set.isEmpty() && unset.isEmpty() && push.isEmpty()) {
+                return _id;
+            }
+            for (FieldMapping field : mapping.getFields()) {
+                if (field.isUpdateGeneratedValue() && !unset.containsField(field.getName())) {
+                    Object value = reflectGeneratedValue(field, field.get(document));
+                    if (value != null) {
+                        set.put(field.getName(), value);
+                    }
+                }
+            }
+            BasicDBObject changes = new BasicDBObject();
+            if (!set.isEmpty()) {
+                changes.append("$set", set);
+            }
+            if (!unset.isEmpty()) {
+                changes.append("$unset", unset);
+            }
+            if (!push.isEmpty()) {
+                changes.append("$push", push);
+            }
+            Object id = org.bson.types.ObjectId.isValid(_id) ? new org.bson.types.ObjectId(_id) : _id;
+            db.getCollection(mapping.getCollectionName()).update(new BasicDBObject("_id", id), changes);
+            invalidate(document.getClass(), id);
+            SNAPSHOTS.put(document, new Snapshot(db, _id, state));
+        } catch (InstantiationException | IllegalAccessException | IllegalArgumentException | SecurityException | MongoException ex) {
+            LOG.log(Level.SEVERE, "An error occured while saving the changes of this document: {0}", ex.getMessage());
+            return null;
+        }
+        LOG.log(Level.INFO, "Changes of object \"{0}\" saved successfully.", _id);
+        return _id;
+    }
+
+    /**
+     * Collect the updates that turn the old document into the current one.
+     */
+    static void diff(String prefix, BSONObject old, BSONObject current, BasicDBObject set, BasicDBObject unset, BasicDBObject push) {
+        for (String key : current.keySet()) {
+            if (key.equals("_id") && prefix.isEmpty()) {
+                continue;
+            }
+            String path = prefix + key;
+            Object oldValue = old.get(key);
+            Object value = current.get(key);
+            if (!old.containsField(key)) {
+                set.put(path, value);
+            } else if (oldValue instanceof List && value instanceof List) {
+                List<?> oldList = (List<?>) oldValue;
+                List<?> list = (List<?>) value;
+                if (list.size() > oldList.size() && list.subList(0, oldList.size()).equals(oldList)) {
+                    BasicDBList appended = new BasicDBList();
+                    appended.addAll(list.subList(oldList.size(), list.size()));
+                    push.put(path, new BasicDBObject("$each", appended));
+                } else if (!list.equals(oldList)) {
+                    set.put(path, value);
+                }
+            } else if (oldValue instanceof BSONObject && !(oldValue instanceof List)
+                    && value instanceof BSONObject && !(value instanceof List)) {
+                diff(path + ".", (BSONObject) oldValue, (BSONObject) value, set, unset, push);
+            } else if (value == null ? oldValue != null : !value.equals(oldValue)) {
+                set.put(path, value);
+            }
+        }
+        for (String key : old.keySet()) {
+            if (!current.containsField(key) && !(key.equals("_id") && prefix.isEmpty())) {
+                unset.put(prefix + key, 1);
+            }
+        }
+    }
+
+    /**
+     * Insert the documents using ordered bulk writes.
+     *
+     * @param documents documents of one or more collections.
+     * @return the result of each document, in the same order.
+     * @see #insertAll(java.util.Collection, boolean)
+     */
+    public List<BatchResult> insertAll(Collection<?> documents) {
+        return insertAll(documents, true);
+    }
+
+    /**
+     * Insert the documents in bulk writes of at most {@link #BULK_SIZE}
+     * documents of the same collection. The <code>@ObjectId</code> field of
+     * each inserted document is filled with its <code>_id</code>.
+     *
+     * @param documents documents of one or more collections.
+     * @param ordered if <code>true</code> the documents are written in the
+     * given order, a new bulk write starting whenever the collection changes,
+     * and the writing stops at the first error; otherwise they are grouped by
+     * collection, the server may write them in any order and the writing
+     * keeps going after errors.
+     * @return the result of each document, in the same order.
+     */
+    public List<BatchResult> insertAll(Collection<?> documents, boolean ordered) {
+        return writeAll(documents, ordered, false);
+    }
+
+    /**
+     * Save the documents using ordered bulk writes.
+     *
+     * @param documents documents of one or more collections.
+     * @return the result of each document, in the same order.
+     * @see #saveAll(java.util.Collection, boolean)
+     */
+    public List<BatchResult> saveAll(Collection<?> documents) {
+        return saveAll(documents, true);
+    }
+
+    /**
+     * Save the documents in bulk writes of at most {@link #BULK_SIZE}
+     * documents of the same collection, the ones with an <code>_id</code>
+     * replace the stored document and the other ones are inserted. The
+     * <code>@ObjectId</code> field of each saved document is filled with its
+     * <code>_id</code>.
+     *
+     * @param documents documents of one or more collections.
+     * @param ordered if <code>true</code> the documents are written in the
+     * given order, a new bulk write starting whenever the collection changes,
+     * and the writing stops at the first error; otherwise they are grouped by
+     * collection, the server may write them in any order and the writing
+     * keeps going after errors.
+     * @return the result of each document, in the same order.
+     */
+    public List<BatchResult> saveAll(Collection<?> documents, boolean ordered) {
+        return writeAll(documents, ordered, true);
+    }
+
+    private List<BatchResult> writeAll(Collection<?> documents, boolean ordered, boolean replace) {
+        Object[] input = documents.toArray();
+        BatchResult[] results = new BatchResult[input.length];
+        List<List<Integer>> runs = runs(input, results, ordered);
+        boolean failed = false;
+        for (List<Integer> indexes : runs) {
+            if (ordered && failed) {
+                break;
+            }
+            ClassMapping mapping = ClassMapping.of(input[indexes.get(0)].getClass());
+            DBCollection collection = db.getCollection(mapping.getCollectionName());
+            for (int from = 0; from < indexes.size() && !(ordered && failed); from += BULK_SIZE) {
+                List<Integer> batch = indexes.subList(from, Math.min(from + BULK_SIZE, indexes.size()));
+                failed |= writeBatch(collection, mapping, input, batch, results, ordered, replace);
+            }
+            for (Integer index : indexes) {
+                if (results[index] != null && results[index].isSuccess()) {
+                    IndexManager.sync(db, input[index].getClass());
+                    break;
+                }
+            }
+        }
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null) {
+                results[i] = new BatchResult(input[i], null, "not written, a previous document failed");
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Split the documents into the runs written by {@link #writeAll}: the
+     * consecutive documents of the same class when <code>ordered</code>, up
+     * to the first <code>null</code> one, otherwise all the documents of each
+     * class.
+     */
+    static List<List<Integer>> runs(Object[] input, BatchResult[] results, boolean ordered) {
+        List<List<Integer>> runs = new ArrayList<>();
+        Map<Class<?>, List<Integer>> groups = new HashMap<>();
+        List<Integer> run = null;
+        for (int i = 0; i < input.length; i++) {
+            if (input[i] == null) {
+                results[i] = new BatchResult(null, null, "null document");
+                if (ordered) {
+                    break;
                 }
-                result.add(fieldName + "_" + order);
-            } else if (!type.equals("")) {
-                indexKeys.append(fieldName, type);
-                collection.ensureIndex(indexKeys, compoundIndexesOpt);
-            }
-        }
-        Set<String> keys = compoundIndexes.keySet();
-        for (String key : keys) {
-            BasicDBObject keysObj = new BasicDBObject();
-            compoundIndexesOpt.append("name", key);
-            for (String value : compoundIndexes.get(key)) {
-                boolean with_ = false;
-                if (value.startsWith("_")) {
-                    value = value.replaceFirst("_", "");
-                    with_ = true;
+                continue;
+            }
+            Class<?> type = input[i].getClass();
+            if (ordered) {
+                if (run == null || input[run.get(0)].getClass() != type) {
+                    run = new ArrayList<>();
+                    runs.add(run);
                 }
-                String[] opt = value.split("_");
-                if (with_) {
-                    opt[0] = "_" + opt[0];
+            } else {
+                run = groups.get(type);
+                if (run == null) {
+                    run = new ArrayList<>();
+                    groups.put(type, run);
+                    runs.add(run);
                 }
-                keysObj.append(opt[0], Integer.parseInt(opt[1]));
             }
-            collection.ensureIndex(keysObj, compoundIndexesOpt);
+            run.add(i);
         }
+        return runs;
     }
 
-    private BasicDBObject loadDocument(Object document) throws SecurityException, InstantiationException, InvocationTargetException, NoSuchMethodException {
-        Field[] fields = document.getClass().getDeclaredFields();
-        BasicDBObject obj = new BasicDBObject();
-        for (Field field : fields) {
+    /**
+     * Write one bulk of documents of the same collection.
+     *
+     * @return <code>true</code> if any document failed.
+     */
+    private boolean writeBatch(DBCollection collection, ClassMapping mapping, Object[] input, List<Integer> batch, BatchResult[] results, boolean ordered, boolean replace) {
+        BulkWriteOperation bulk = ordered ? collection.initializeOrderedBulkOperation() : collection.initializeUnorderedBulkOperation();
+        List<Integer> sent = new ArrayList<>(batch.size());
+        List<Object> ids = new ArrayList<>(batch.size());
+        List<EntityDBObject> states = new ArrayList<>(batch.size());
+        boolean failed = false;
+        for (Integer index : batch) {
+            EntityDBObject obj;
+            EntityDBObject state;
             try {
-                field.setAccessible(true);
-                String fieldName = field.getName();
-                Object fieldContent = field.get(document);
-                if (fieldContent == null && !field.isAnnotationPresent(GeneratedValue.class)) {
+                Set<Object> saving = newSaving(input[index]);
+                state = loadDocument(input[index], saving, false);
+                Snapshot snapshot = SNAPSHOTS.get(input[index]);
+                if (replace && snapshot != null && snapshot.matches(db, state)) {
+                    results[index] = new BatchResult(input[index], snapshot.getId(), null);
                     continue;
                 }
-                if (fieldContent instanceof List) {
-                    BasicDBList list = new BasicDBList();
-                    boolean isInternal = field.isAnnotationPresent(Internal.class);
-                    for (Object item : (List) fieldContent) {
-                        if (isInternal) {
-                            list.add(loadDocument(item));
-                        } else {
-                            list.add(item);
-                        }
-                    }
-                    obj.append(fieldName, list);
-                } else if (field.getType().isEnum()) {
-                    obj.append(fieldName, fieldContent.toString());
-                } else if (field.isAnnotationPresent(Reference.class)) {
-                    obj.append(fieldName, new org.bson.types.ObjectId(save(fieldContent)));
-                } else if (field.isAnnotationPresent(Internal.class)) {
-                    obj.append(fieldName, loadDocument(fieldContent));
-                } else if (field.isAnnotationPresent(Id.class) && !fieldContent.equals("")) {
-                    obj.append(fieldName, reflectId(field));
-                } else if (field.isAnnotationPresent(GeneratedValue.class)) {
-                    Object value = reflectGeneratedValue(field, fieldContent);
-                    if (value != null) {
-                        obj.append(fieldName, value);
+                obj = generated(input[index], state, saving);
+            } catch (InstantiationException | IllegalAccessException | SecurityException | IllegalArgumentException ex) {
+                results[index] = new BatchResult(input[index], null, String.valueOf(ex.getMessage()));
+                failed = true;
+                if (ordered) {
+                    break;
+                }
+                continue;
+            }
+            Object _id = obj.get("_id");
+            if (_id == null) {
+                _id = new org.bson.types.ObjectId();
+                if (obj == state) {
+                    obj = state.copy();
+                }
+                obj.put("_id", _id);
+                bulk.insert(obj);
+            } else if (replace) {
+                bulk.find(new BasicDBObject("_id", _id)).upsert().replaceOne(obj);
+            } else {
+                bulk.insert(obj);
+            }
+            sent.add(index);
+            ids.add(_id);
+            states.add(state);
+        }
+        if (sent.isEmpty()) {
+            return failed;
+        }
+        Map<Integer, String> errors = new HashMap<>();
+        boolean executed = true;
+        try {
+            bulk.execute();
+        } catch (BulkWriteException ex) {
+            for (BulkWriteError error : ex.getWriteErrors()) {
+                errors.put(error.getIndex(), error.getMessage());
+            }
+            if (ex.getWriteConcernError() != null) {
+                LOG.log(Level.WARNING, "Write concern error on {0}: {1}", new Object[]{collection.getName(), ex.getWriteConcernError().getMessage()});
+            }
+        } catch (MongoException ex) {
+            LOG.log(Level.SEVERE, "An error occured while writing a batch: {0}", ex.getMessage());
+            for (int i = 0; i < sent.size(); i++) {
+                errors.put(i, ex.getMessage());
+            }
+            executed = false;
+        }
+        QueryCache.invalidate(db, mapping.getCollectionName());
+        if (replace) {
+            EntityCache cache = EntityCache.of(db, mapping.getType());
+            for (int i = 0; cache != null && i < ids.size(); i++) {
+                cache.invalidate(ids.get(i));
+            }
+        }
+        FieldMapping objectIdField = mapping.getObjectIdField();
+        int firstError = errors.isEmpty() ? sent.size() : Collections.min(errors.keySet());
+        for (int i = 0; i < sent.size(); i++) {
+            int index = sent.get(i);
+            if (errors.containsKey(i)) {
+                results[index] = new BatchResult(input[index], null, errors.get(i));
+            } else if (executed && (!ordered || i < firstError)) {
+                String _id = ids.get(i).toString();
+                results[index] = new BatchResult(input[index], _id, null);
+                if (objectIdField != null) {
+                    try {
+                        objectIdField.set(input[index], _id);
+                        states.get(i).put("_id", ids.get(i));
+                    } catch (IllegalAccessException | IllegalArgumentException ex) {
+                        LOG.log(Level.SEVERE, null, ex);
                     }
-                } else if (!field.isAnnotationPresent(ObjectId.class)) {
-                    obj.append(fieldName, fieldContent);
-                } else if (!fieldContent.equals("")) {
-                    obj.append("_id", new org.bson.types.ObjectId((String) fieldContent));
                 }
+                if (TRACKED.get(input[index].getClass())) {
+                    SNAPSHOTS.put(input[index], new Snapshot(db, _id, states.get(i)));
+                }
+            }
+        }
+        return failed || !errors.isEmpty();
+    }
+
+    private EntityDBObject loadDocument(Object document) throws SecurityException, InstantiationException {
+        return loadDocument(document, newSaving(document), true);
+    }
+
+    /**
+     * Map the object into a document, saving the documents of its
+     * <code>@Reference</code> fields that are not in <code>saving</code>.
+     *
+     * @param saving objects being saved by the current call, to stop at
+     * reference cycles.
+     * @param generate whether the <code>@Id</code> and
+     * <code>@GeneratedValue</code> fields are generated, otherwise their
+     * current values are used, as in a snapshot.
+     */
+    EntityDBObject loadDocument(Object document, Set<Object> saving, boolean generate) throws SecurityException, InstantiationException {
+        EntityDBObject obj = new EntityDBObject(document);
+        List<FieldMapping> fields = obj.getMapping().getFields();
+        for (int i = 0; i < fields.size(); i++) {
+            FieldMapping field = fields.get(i);
+            try {
+                obj.setValue(i, documentValue(field, field.get(document), saving, generate));
             } catch (IllegalArgumentException | IllegalAccessException ex) {
                 LOG.log(Level.SEVERE, null, ex);
             }
@@ -428,67 +1219,407 @@ public final class CollectionManager implements Closeable {
         return obj;
     }
 
-    private <A extends Object> void loadObject(A object, DBObject document) throws IllegalAccessException, IllegalArgumentException, SecurityException, InstantiationException {
-        Field[] fields = object.getClass().getDeclaredFields();
-        for (Field field : fields) {
-            field.setAccessible(true);
+    /**
+     * The document to write for a state built by
+     * {@link #loadDocument(java.lang.Object, java.util.Set, boolean)} without
+     * generating values: a copy with the <code>@Id</code> and
+     * <code>@GeneratedValue</code> fields generated, at any depth, or the
+     * state itself when there are none, so the object is only mapped once.
+     */
+    private EntityDBObject generated(Object document, EntityDBObject state, Set<Object> saving) throws IllegalAccessException, InstantiationException {
+        List<FieldMapping> fields = state.getMapping().getFields();
+        EntityDBObject obj = state;
+        for (int i = 0; i < fields.size(); i++) {
+            FieldMapping field = fields.get(i);
+            Object fieldContent = field.get(document);
+            Object current = state.getValue(i);
+            Object value;
+            if (field.isId() || field.isGeneratedValue()) {
+                value = documentValue(field, fieldContent, saving, true);
+            } else if (field.isInternal() && !(fieldContent instanceof Lazy) && current != null && current != SKIP) {
+                value = generatedValue(fieldContent, current, saving);
+            } else {
+                continue;
+            }
+            if (value != current) {
+                if (obj == state) {
+                    obj = state.copy();
+                }
+                obj.setValue(i, value);
+            }
+        }
+        return obj;
+    }
+
+    private Object generatedValue(Object fieldContent, Object value, Set<Object> saving) throws IllegalAccessException, InstantiationException {
+        if (value instanceof EntityDBObject) {
+            return generated(fieldContent, (EntityDBObject) value, saving);
+        }
+        if (!(value instanceof List) || !(fieldContent instanceof List)) {
+            return value;
+        }
+        List<?> items = (List<?>) fieldContent;
+        List<?> values = (List<?>) value;
+        BasicDBList list = null;
+        for (int i = 0; i < values.size(); i++) {
+            Object item = generatedValue(items.get(i), values.get(i), saving);
+            if (list == null && item != values.get(i)) {
+                list = new BasicDBList();
+                list.addAll(values.subList(0, i));
+            }
+            if (list != null) {
+                list.add(item);
+            }
+        }
+        return list == null ? value : list;
+    }
+
+    /**
+     * The snapshot of a document just written: the bytes the encoder wrote
+     * when the state was written as it is, otherwise the state itself.
+     *
+     * @param withId whether the <code>_id</code> is part of the state.
+     */
+    private Snapshot written(String _id, Object id, EntityDBObject state, EntityDBObject obj, boolean withId) {
+        if (obj == state && state.getBson() != null) {
+            return new Snapshot(db, _id, state.getBson(), !withId);
+        }
+        if (withId) {
+            state.put("_id", id);
+        } else {
+            state.removeField("_id");
+        }
+        return new Snapshot(db, _id, state);
+    }
+
+    /**
+     * The value of a field in the document of an object, the field of an
+     * <code>@ObjectId</code> is stored as <code>_id</code>.
+     *
+     * @return the value, or {@link #SKIP} if the field is left out.
+     * @see #loadDocument(java.lang.Object, java.util.Set, boolean)
+     */
+    private Object documentValue(FieldMapping field, Object fieldContent, Set<Object> saving, boolean generate) throws IllegalAccessException, InstantiationException {
+        if (fieldContent instanceof Lazy) {
+            Object content = ((Lazy<?>) fieldContent).getContent();
+            if (content != null) {
+                return materialize(content);
+            }
+            fieldContent = ((Lazy<?>) fieldContent).get();
+        }
+        if (fieldContent == null && !(generate && field.isGeneratedValue())) {
+            return SKIP;
+        }
+        if (fieldContent instanceof List) {
+            boolean isInternal = field.isInternal();
+            BasicDBList list = new BasicDBList();
+            for (Object item : (List) fieldContent) {
+                if (isInternal) {
+                    list.add(loadDocument(item, saving, generate));
+                } else {
+                    list.add(item);
+                }
+            }
+            return list;
+        } else if (field.isEnum() || fieldContent instanceof Enum) {
+            return fieldContent.toString();
+        } else if (field.isReference()) {
+            String referenceId = saveReference(fieldContent, saving);
+            return referenceId == null ? SKIP : new org.bson.types.ObjectId(referenceId);
+        } else if (field.isInternal()) {
+            return loadDocument(fieldContent, saving, generate);
+        } else if (!generate && (field.isId() || field.isGeneratedValue())) {
+            return fieldContent;
+        } else if (field.isId() && !fieldContent.equals("")) {
+            return reflectId(field);
+        } else if (field.isGeneratedValue()) {
+            Object value = reflectGeneratedValue(field, fieldContent);
+            return value == null ? SKIP : value;
+        } else if (!field.isObjectId()) {
+            return fieldContent;
+        } else if (!fieldContent.equals("")) {
+            return new org.bson.types.ObjectId((String) fieldContent);
+        }
+        return SKIP;
+    }
+
+    /**
+     * Map a document into the given object, its <code>@Reference</code> fields
+     * are only set when the context is resolved.
+     */
+    <A extends Object> void loadObject(A object, DBObject document, LoadContext context) throws IllegalAccessException, IllegalArgumentException, SecurityException, InstantiationException {
+        for (FieldMapping field : ClassMapping.of(object.getClass()).getFields()) {
             String fieldName = field.getName();
             Object fieldContent = document.get(fieldName);
-            if (fieldContent instanceof BasicBSONList) {
-                Class<?> fieldArgClass = null;
-                ParameterizedType genericFieldType = (ParameterizedType) field.getGenericType();
-                Type[] fieldArgTypes = genericFieldType.getActualTypeArguments();
-                for (Type fieldArgType : fieldArgTypes) {
-                    fieldArgClass = (Class<?>) fieldArgType;
-                }
+            if ((fieldContent != null) && Lazy.class.equals(field.getType())) {
+                field.set(object, new Lazy<>(this, field, fieldContent));
+            } else if (fieldContent instanceof List) {
+                Class<?> fieldArgClass = field.getElementType();
                 List<Object> list = new ArrayList<>();
-                boolean isInternal = field.isAnnotationPresent(Internal.class);
-                for (Object item : (BasicBSONList) fieldContent) {
+                boolean isInternal = field.isInternal();
+                for (Object item : (List<?>) fieldContent) {
                     if (isInternal) {
-                        Object o = fieldArgClass.newInstance();
-                        loadObject(o, (DBObject) item);
+                        Object o = ClassMapping.of(fieldArgClass).newInstance();
+                        loadObject(o, (DBObject) item, context);
                         list.add(o);
                     } else {
-                        list.add(item);
+                        list.add(materialize(item));
                     }
                 }
                 field.set(object, list);
-            } else if ((fieldContent != null) && field.getType().isEnum()) {
+            } else if ((fieldContent != null) && field.isEnum()) {
                 field.set(object, Enum.valueOf((Class) field.getType(), (String) fieldContent));
-            } else if ((fieldContent != null) && field.isAnnotationPresent(Reference.class)) {
-                field.set(object, findById(field.getType(), ((org.bson.types.ObjectId) fieldContent).toString()));
-            } else if (field.isAnnotationPresent(ObjectId.class)) {
+            } else if ((fieldContent != null) && field.isReference()) {
+                loadReference(object, field, (org.bson.types.ObjectId) fieldContent, context);
+            } else if ((fieldContent instanceof DBObject) && field.isInternal()) {
+                Object o = ClassMapping.of(field.getType()).newInstance();
+                loadObject(o, (DBObject) fieldContent, context);
+                field.set(object, o);
+            } else if (field.isObjectId()) {
                 field.set(object, ((org.bson.types.ObjectId) document.get("_id")).toString());
-            } else if (field.getType().isPrimitive() && (fieldContent == null)) {
+            } else if (field.isPrimitive() && (fieldContent == null)) {
             } else if (fieldContent != null) {
-                field.set(object, fieldContent);
+                field.set(object, materialize(fieldContent));
             }
         }
     }
 
-    private Field getFieldByAnnotation(Object obj, Class<? extends Annotation> annotationClass, boolean annotationRequired) throws NoSuchFieldException {
-        Field[] fields = getFieldsByAnnotation(obj, annotationClass);
-        if ((fields.length == 0) && annotationRequired) {
-            throw new NoSuchFieldException("@" + annotationClass.getSimpleName() + " field not found.");
-        } else if (fields.length > 0) {
-            if (fields.length > 1) {
-                LOG.log(Level.WARNING, "There are more than one @{0} field. Assuming the first one.", annotationClass.getSimpleName());
+    /**
+     * Map the element of a {@link Lazy} field, as
+     * {@link #loadObject(java.lang.Object, com.mongodb.DBObject, LoadContext)}
+     * maps the other fields, its type is the element type of the field.
+     */
+    Object lazyValue(FieldMapping field, Object content) throws IllegalAccessException, InstantiationException {
+        Class<?> type = field.getElementType();
+        if (type == null && field.isInternal()) {
+            throw new IllegalArgumentException("The type of the Lazy field " + field.getName() + " must be declared.");
+        }
+        LoadContext context = new LoadContext(this, db);
+        Object value;
+        if (content instanceof List) {
+            List<Object> list = new ArrayList<>();
+            for (Object item : (List<?>) content) {
+                if (field.isInternal()) {
+                    Object o = ClassMapping.of(type).newInstance();
+                    loadObject(o, (DBObject) item, context);
+                    list.add(o);
+                } else {
+                    list.add(materialize(item));
+                }
             }
-            return fields[0];
+            value = list;
+        } else if (field.isInternal() && content instanceof DBObject) {
+            value = ClassMapping.of(type).newInstance();
+            loadObject(value, (DBObject) content, context);
+        } else if (type != null && type.isEnum()) {
+            value = enumConstant(type, (String) content);
+        } else {
+            value = materialize(content);
         }
-        return null;
+        context.resolve();
+        return value;
+    }
+
+    private static Object enumConstant(Class<?> type, String name) {
+        for (Object constant : type.getEnumConstants()) {
+            if (((Enum<?>) constant).name().equals(name)) {
+                return constant;
+            }
+        }
+        throw new IllegalArgumentException("No enum constant " + type.getName() + "." + name);
+    }
+
+    /**
+     * Decode a value of a lazy document into the objects of a decoded one, so
+     * the mapped objects do not keep the document.
+     */
+    static Object materialize(Object value) {
+        if (!(value instanceof LazyBSONObject)) {
+            return value;
+        }
+        if (value instanceof List) {
+            BasicDBList list = new BasicDBList();
+            for (Object item : (List<?>) value) {
+                list.add(materialize(item));
+            }
+            return list;
+        }
+        BasicDBObject document = new BasicDBObject();
+        for (Map.Entry<String, Object> entry : ((LazyBSONObject) value).entrySet()) {
+            document.put(entry.getKey(), materialize(entry.getValue()));
+        }
+        return document;
+    }
+
+    /**
+     * Set a <code>@Reference</code> field of an object, or defer it to the
+     * context.
+     */
+    void loadReference(Object object, FieldMapping field, org.bson.types.ObjectId referenceId, LoadContext context) throws IllegalAccessException, InstantiationException {
+        if (Ref.class.equals(field.getType())) {
+            field.set(object, newRef(field, referenceId.toString()));
+        } else if (context.isLazy() && ClassMapping.of(field.getType()).getObjectIdField() != null) {
+            ClassMapping referenceMapping = ClassMapping.of(field.getType());
+            Object placeholder = context.identity(referenceMapping, referenceId);
+            if (placeholder == null) {
+                placeholder = placeholder(referenceMapping, referenceId.toString());
+                context.register(referenceMapping, referenceId, placeholder);
+            }
+            field.set(object, placeholder);
+        } else {
+            context.defer(object, field, referenceId);
+        }
+    }
+
+    private <T> Ref<T> newRef(FieldMapping field, String id) {
+        @SuppressWarnings("unchecked")
+        Class<T> type = (Class<T>) field.getElementType();
+        if (type == null) {
+            throw new IllegalArgumentException("The type of the Ref field " + field.getName() + " must be declared.");
+        }
+        return new Ref<>(type, id, this);
+    }
+
+    private Object placeholder(ClassMapping mapping, String id) throws InstantiationException, IllegalAccessException {
+        Object placeholder = mapping.newInstance();
+        mapping.getObjectIdField().set(placeholder, id);
+        PLACEHOLDERS.put(placeholder, id);
+        return placeholder;
+    }
+
+    /**
+     * Map a document read by a query into a new object, or take the object
+     * {@link EntityDecoder} decoded it into.
+     *
+     * @param complete whether the document has all its fields, so the object
+     * is shared with the references to it and tracked.
+     */
+    <A extends Object> A mapDocument(ClassMapping mapping, DBObject document, LoadContext context, boolean complete) throws IllegalAccessException, IllegalArgumentException, SecurityException, InstantiationException {
+        if (document instanceof EntityDBObject) {
+            EntityDBObject entity = (EntityDBObject) document;
+            @SuppressWarnings("unchecked")
+            A obj = (A) entity.getDocument();
+            Object _id = entity.get("_id");
+            if (complete) {
+                context.register(mapping, _id, obj);
+                if (_id != null && entity.getBson() != null && TRACKED.get(mapping.getType())) {
+                    SNAPSHOTS.put(obj, new Snapshot(db, _id.toString(), entity.getBson(), mapping.getObjectIdField() == null));
+                }
+            }
+            return obj;
+        }
+        A obj = mapping.newInstance();
+        if (complete) {
+            context.register(mapping, document.get("_id"), obj);
+            track(mapping, obj, document);
+        }
+        loadObject(obj, document, context);
+        return obj;
+    }
+
+    /**
+     * Keep the state of a document just loaded into the given object, so it is
+     * not written again until it changes.
+     */
+    void track(ClassMapping mapping, Object object, DBObject document) {
+        Object _id = document.get("_id");
+        if (_id == null || !TRACKED.get(mapping.getType())) {
+            return;
+        }
+        if (document instanceof LazyBSONObject) {
+            SNAPSHOTS.put(object, new Snapshot(db, _id.toString(), bytes((LazyBSONObject) document), mapping.getObjectIdField() == null));
+            return;
+        }
+        DBObject state = document;
+        if (mapping.getObjectIdField() == null) {
+            state = new BasicDBObject(document.toMap());
+            state.removeField("_id");
+        }
+        SNAPSHOTS.put(object, new Snapshot(db, _id.toString(), state));
     }
 
-    private Field[] getFieldsByAnnotation(Object obj, Class<? extends Annotation> annotationClass) {
-        Field[] fields = obj.getClass().getDeclaredFields();
-        List<Field> fieldsAnnotated = new ArrayList<>();
-        for (Field field : fields) {
-            if (field.isAnnotationPresent(annotationClass)) {
-                fieldsAnnotated.add(field);
+    /**
+     * A copy of the encoded form of a lazy document, so the snapshot does not
+     * share the buffer it was decoded from.
+     */
+    private static byte[] bytes(LazyBSONObject document) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(document.getBSONSize());
+        try {
+            document.pipe(out);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Remove a written document from the cache of its class, if any, and the
+     * cached query results of its collection.
+     *
+     * @param id the <code>_id</code> of the document, <code>null</code> to
+     * remove all the documents of the class.
+     */
+    private void invalidate(Class<?> collectionClass, Object id) {
+        QueryCache.invalidate(db, getCollectionName(collectionClass));
+        EntityCache cache = EntityCache.of(db, collectionClass);
+        if (cache == null) {
+            return;
+        }
+        if (id == null) {
+            cache.invalidateAll();
+        } else {
+            cache.invalidate(id);
+        }
+    }
+
+    private static Set<Object> newSaving(Object document) {
+        Set<Object> saving = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        saving.add(document);
+        return saving;
+    }
+
+    /**
+     * Save the target of a <code>@Reference</code> field, unless it was
+     * never loaded, did not change or is already being saved.
+     *
+     * @return the <code>_id</code> of the referenced document.
+     */
+    private String saveReference(Object reference, Set<Object> saving) {
+        if (reference instanceof Ref) {
+            Ref<?> ref = (Ref<?>) reference;
+            if (!ref.isLoaded()) {
+                return ref.getId();
+            }
+            reference = ref.get();
+            if (reference == null) {
+                return null;
+            }
+        }
+        String id = PLACEHOLDERS.get(reference);
+        if (id != null) {
+            return id;
+        }
+        if (!saving.add(reference)) {
+            return currentId(reference);
+        }
+        return save(reference, saving);
+    }
+
+    /**
+     * The <code>_id</code> of a document without writing it.
+     */
+    private String currentId(Object document) {
+        FieldMapping field = ClassMapping.of(document.getClass()).getObjectIdField();
+        try {
+            Object id = field == null ? null : field.get(document);
+            if (id != null && !id.equals("")) {
+                return id.toString();
             }
+        } catch (IllegalAccessException | IllegalArgumentException ex) {
+            LOG.log(Level.SEVERE, null, ex);
         }
-        fields = new Field[fieldsAnnotated.size()];
-        return fieldsAnnotated.toArray(fields);
+        Snapshot snapshot = SNAPSHOTS.get(document);
+        return snapshot == null ? null : snapshot.getId();
     }
 
     private void invokeAnnotatedMethods(Object obj, Class<? extends Annotation> annotationClass) {
@@ -514,52 +1645,63 @@ public final class CollectionManager implements Closeable {
         return (Method[]) methodsAnnotated.toArray();
     }
 
-    private String reflectCollectionName(Object document) throws NoSuchMethodException, InvocationTargetException, IllegalAccessException, SecurityException, IllegalArgumentException {
-        Annotation annotation = document.getClass().getAnnotation(Document.class);
-        String coll = (String) annotation.annotationType().getMethod("collection").invoke(annotation);
-        if (coll.equals("")) {
-            coll = document.getClass().getSimpleName();
-        }
-        return coll;
+    private String getCollectionName(Class<?> collectionClass) {
+        return ClassMapping.of(collectionClass).getCollectionName();
     }
 
-    private <A extends Object> A reflectId(Field field) throws NoSuchMethodException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, InstantiationException {
-        Annotation annotation = field.getAnnotation(Id.class);
-        Boolean autoIncrement = (Boolean) annotation.annotationType().getMethod("autoIncrement").invoke(annotation);
-        Class generator = (Class) annotation.annotationType().getMethod("generator").invoke(annotation);
-        if (autoIncrement) {
-            Generator g = (Generator) generator.newInstance();
+    private <A extends Object> A reflectId(FieldMapping field) throws IllegalAccessException, IllegalArgumentException, InstantiationException {
+        if (field.isAutoIncrement()) {
+            Generator g = field.getIdGenerator();
             return g.generateValue(field.getDeclaringClass(), db);
         }
         return null;
     }
 
-    private <A extends Object> A reflectGeneratedValue(Field field, Object oldValue) throws NoSuchMethodException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, InstantiationException {
-        Annotation annotation = field.getAnnotation(GeneratedValue.class);
-        Class<? extends Annotation> annotationType = annotation.annotationType();
-        Boolean update = (Boolean) annotationType.getMethod("update").invoke(annotation);
-        Class generator = (Class) annotationType.getMethod("generator").invoke(annotation);
-        Generator g = (Generator) generator.newInstance();
+    private <A extends Object> A reflectGeneratedValue(FieldMapping field, Object oldValue) throws IllegalAccessException, IllegalArgumentException, InstantiationException {
+        boolean update = field.isUpdateGeneratedValue();
+        Generator g = field.getValueGenerator();
+        Class<?> parent = field.getDeclaringClass();
         if ((update && (oldValue != null)) || (oldValue == null)) {
-            return g.generateValue(field.getDeclaringClass(), db);
+            return g.generateValue(parent, db);
         } else if (oldValue instanceof Number) {
 
             boolean test = oldValue.equals(oldValue.getClass().cast(0));
             if (test) {
-                return g.generateValue(field.getDeclaringClass(), db);
+                return g.generateValue(parent, db);
             } else if (update) {
-                return g.generateValue(field.getDeclaringClass(), db);
+                return g.generateValue(parent, db);
             }
         }
         return null;
     }
 
+    /**
+     * Create the indexes declared by the given classes that are missing in the
+     * current database, each class in parallel. Otherwise they are created on
+     * the first write of each class; either way it is done only once per
+     * class and database.
+     *
+     * @param collectionClasses <code>@Document</code> classes.
+     */
+    public void ensureIndexes(Class<?>... collectionClasses) {
+        IndexManager.sync(db, collectionClasses);
+    }
+
     public String getStatus() {
         return client.getAddress() + " " + client.getMongoOptions();
     }
 
+    /**
+     * Close the manager. The client of a manager created by
+     * {@link CollectionManagerFactory} is shared, it is only closed when all
+     * the managers using it, including the ones returned by
+     * {@link #withDatabase(java.lang.String)}, are closed. Otherwise the client is
+     * closed by the manager it was given to.
+     */
     @Override
     public void close() {
-        client.close();
+        if (closed.compareAndSet(false, true) && !ClientRegistry.release(client) && ownsClient) {
+            ClientRegistry.close(client);
+        }
     }
 }
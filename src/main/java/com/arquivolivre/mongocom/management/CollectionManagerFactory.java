@@ -16,7 +16,6 @@
 package com.arquivolivre.mongocom.management;
 
 import com.mongodb.Mongo;
-import com.mongodb.MongoClient;
 import com.mongodb.MongoException;
 import com.mongodb.MongoURI;
 import java.io.File;
@@ -25,19 +24,24 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.UnknownHostException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.servlet.ServletContext;
 
 /**
+ * Creates the <code>CollectionManager</code>s. Managers of the same server
+ * and credentials share a single client, and so its connection pool, which
+ * is configured by the <code>mongocom.pool.*</code> properties of the
+ * configuration file, see {@link ClientRegistry}. The client is closed when
+ * all the managers using it are closed.
  *
  * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>
  */
 public final class CollectionManagerFactory {
 
-    private static Mongo client;
     private static final Logger LOG = Logger.getLogger(CollectionManagerFactory.class.getName());
     private static final String[] FILES = {"application", "database"};
     private static final String[] EXTENTIONS = {".conf", ".config", ".properties"};
@@ -67,31 +71,74 @@ public final class CollectionManagerFactory {
     }
 
     private static CollectionManager createBaseCollectionManager(String host, int port, String dbName, String user, String password) {
+        Properties properties = null;
         try {
-            if ("".equals(host)) {
-                client = new MongoClient();
-            } else {
-                if (port == 0) {
-                    client = new MongoClient(host);
-                } else {
-                    client = new MongoClient(host, port);
-                }
+            File props = getPropertiesFile(null);
+            if (props != null) {
+                properties = loadProperties(props);
             }
-            LOG.log(Level.INFO, "Connected to {0}", client.getAddress());
-            if ("".equals(user)) {
-                return new CollectionManager(client, dbName);
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, "No pool configuration found, using the default one.", ex);
+        }
+        String uri = buildURI(user, password, host, port == 0 ? "" : String.valueOf(port), "".equals(user) ? "" : dbName);
+        return createCollectionManager(uri, dbName, properties);
+    }
+
+    private static CollectionManager createCollectionManager(String uri, String dbName, Properties properties) {
+        Mongo client = null;
+        try {
+            client = ClientRegistry.acquire(uri, properties);
+            LOG.log(Level.INFO, "Connected to {0}", uri.replaceFirst(":[^:@/]*@", ":***@"));
+            return new CollectionManager(client, dbName);
+        } catch (MongoException | IOException ex) {
+            if (client != null) {
+                ClientRegistry.release(client);
             }
-            return new CollectionManager(client, dbName, user, password);
-        } catch (MongoException | UnknownHostException ex) {
             LOG.log(Level.SEVERE, "Unable to connect to a mongoDB instance, maybe it is not running or you do not have the right permission: ", ex);
         }
         return null;
     }
 
+    private static String buildURI(String user, String password, String host, String port, String dbName) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(MongoURI.MONGODB_PREFIX);
+        try {
+            if (!user.equals("")) {
+                builder.append(URLEncoder.encode(user, "UTF-8")).append(":").append(URLEncoder.encode(password, "UTF-8")).append("@");
+            }
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+        if (host.equals("")) {
+            builder.append("localhost");
+        } else {
+            builder.append(host);
+        }
+        if (!port.equals("")) {
+            builder.append(":");
+            builder.append(port);
+        }
+        builder.append("/");
+        if (!dbName.equals("")) {
+            builder.append(dbName);
+        }
+        return builder.toString();
+    }
+
+    private static Properties loadProperties(File file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
     /**
      * Create an instance of <code>Mongo</code> based on the information
      * provided in the configuration files, if the instance has already been
      * created using the same information, so it uses the same instance.
+     * The pool of the instance is configured by the
+     * <code>mongocom.pool.*</code> properties.
      *
      * @return an instance of a <code>CollectionManager</code>.
      */
@@ -113,37 +160,15 @@ public final class CollectionManagerFactory {
             if (props == null) {
                 throw new FileNotFoundException("application or database configuration file not found.");
             }
-            InputStream in = new FileInputStream(props);
-            Properties properties = new Properties();
-            properties.load(in);
-            StringBuilder builder = new StringBuilder();
-            builder.append(MongoURI.MONGODB_PREFIX);
+            Properties properties = loadProperties(props);
             String user, password, host, port, dbName;
             user = properties.containsKey("mongocom.user") ? properties.getProperty("mongocom.user") : "";
             password = properties.containsKey("mongocom.password") ? properties.getProperty("mongocom.password") : "";
             host = properties.containsKey("mongocom.host") ? properties.getProperty("mongocom.host") : "";
             port = properties.containsKey("mongocom.port") ? properties.getProperty("mongocom.port") : "";
             dbName = properties.containsKey("mongocom.database") ? properties.getProperty("mongocom.database") : "";
-            if (!user.equals("")) {
-                builder.append(user).append(":").append(password).append("@");
-            }
-            if (host.equals("")) {
-                builder.append("localhost");
-            } else {
-                builder.append(host);
-            }
-            if (!port.equals("")) {
-                builder.append(":");
-                builder.append(port);
-            }
-            builder.append("/");
-            if (!dbName.equals("")) {
-                builder.append(dbName);
-            }
-            LOG.log(Level.INFO, "Mongo URI: {0}", builder.toString());
-            MongoURI uri = new MongoURI(builder.toString());
-            client = MongoClient.Holder.singleton().connect(uri);
-            return new CollectionManager(client, dbName);
+            LOG.log(Level.INFO, "Mongo URI: {0}", buildURI(user, "".equals(user) ? "" : "***", host, port, dbName));
+            return createCollectionManager(buildURI(user, password, host, port, dbName), dbName, properties);
         } catch (IOException ex) {
             LOG.log(Level.SEVERE, null, ex);
         }
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>..
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.arquivolivre.mongocom.mapping.ClassMapping;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the documents of a query mapping them only when they are
+ * requested, a chunk at a time so the <code>@Reference</code> fields of a
+ * chunk are resolved together, and no more than a chunk of documents is held
+ * in memory. The cursor is closed when the last document is read, otherwise
+ * it must be closed by the caller.
+ *
+ * @param <A> generic type of the collection.
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public class DocumentCursor<A extends Object> implements Iterator<A>, Iterable<A>, Closeable {
+
+    /**
+     * Documents mapped at a time when the query has no batch size.
+     */
+    static final int DEFAULT_CHUNK_SIZE = 100;
+    private final CollectionManager manager;
+    private final LoadContext context;
+    private final ClassMapping mapping;
+    private final DBCursor cursor;
+    private final int chunkSize;
+    private final boolean complete;
+    private final Deque<A> chunk;
+    private boolean closed;
+
+    /**
+     * @param complete whether the documents have all their fields, so they can
+     * be shared with the references to them.
+     */
+    DocumentCursor(CollectionManager manager, LoadContext context, ClassMapping mapping, DBCursor cursor, int chunkSize, boolean complete) {
+        this.manager = manager;
+        this.context = context;
+        this.mapping = mapping;
+        this.cursor = cursor;
+        this.chunkSize = chunkSize;
+        this.complete = complete;
+        this.chunk = new ArrayDeque<>(chunkSize);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!chunk.isEmpty()) {
+            return true;
+        }
+        if (closed) {
+            return false;
+        }
+        if (!cursor.hasNext()) {
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Return the next document, fetching and mapping the next chunk when
+     * needed.
+     *
+     * @return the next document.
+     * @throws IllegalStateException if a document can not be mapped.
+     */
+    @Override
+    public A next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (chunk.isEmpty()) {
+            loadChunk();
+        }
+        return chunk.poll();
+    }
+
+    private void loadChunk() {
+        try {
+            while (chunk.size() < chunkSize && cursor.hasNext()) {
+                DBObject document = cursor.next();
+                A obj = manager.mapDocument(mapping, document, context, complete);
+                chunk.add(obj);
+            }
+            context.resolve();
+            context.clear();
+        } catch (InstantiationException | IllegalAccessException | IllegalArgumentException | SecurityException ex) {
+            close();
+            chunk.clear();
+            throw new IllegalStateException("Unable to map a document of " + mapping.getType().getName(), ex);
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    @Override
+    public Iterator<A> iterator() {
+        return this;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            cursor.close();
+        }
+    }
+
+}
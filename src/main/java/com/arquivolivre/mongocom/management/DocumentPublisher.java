@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Publishes the documents that match a query. Each subscriber gets its own
+ * {@link DocumentCursor}, and documents are only fetched and mapped as the
+ * subscriber requests them, so at most one batch of the query is held in
+ * memory however slow the subscriber is.
+ *
+ * <p>The documents are emitted by the thread that requests them or, if an
+ * executor is given, by the executor, one task at a time per
+ * subscriber.</p>
+ *
+ * @param <A> generic type of the collection.
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public final class DocumentPublisher<A extends Object> implements Publisher<A> {
+
+    private final CollectionManager manager;
+    private final Class<A> collectionClass;
+    private final MongoQuery query;
+    private final Executor executor;
+
+    DocumentPublisher(CollectionManager manager, Class<A> collectionClass, MongoQuery query, Executor executor) {
+        this.manager = manager;
+        this.collectionClass = collectionClass;
+        this.query = query;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super A> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        DocumentCursor<A> cursor;
+        try {
+            cursor = manager.iterate(collectionClass, query);
+        } catch (RuntimeException ex) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(ex);
+            return;
+        }
+        subscriber.onSubscribe(new CursorSubscription<>(subscriber, cursor, executor));
+    }
+
+    /**
+     * Emits the documents of a cursor as they are requested. Requests and
+     * cancellations only record what is wanted, the emission is done by a
+     * single drain at a time, so a subscriber that requests more from
+     * <code>onNext</code> does not recurse.
+     */
+    static final class CursorSubscription<A> implements Subscription, Runnable {
+
+        private final Subscriber<? super A> subscriber;
+        private final DocumentCursor<A> cursor;
+        private final Executor executor;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile IllegalArgumentException invalidRequest;
+
+        CursorSubscription(Subscriber<? super A> subscriber, DocumentCursor<A> cursor, Executor executor) {
+            this.subscriber = subscriber;
+            this.cursor = cursor;
+            this.executor = executor;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Rule 3.9: the number of requested documents must be positive, got " + n + ".");
+            } else {
+                long current;
+                long next;
+                do {
+                    current = requested.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!requested.compareAndSet(current, next));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (pending.getAndIncrement() == 0) {
+                if (executor == null) {
+                    run();
+                } else {
+                    executor.execute(this);
+                }
+            }
+        }
+
+        /**
+         * Emit as many documents as requested, until there are no more
+         * requests or the subscription ends.
+         */
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                if (cancelled) {
+                    cursor.close();
+                    return;
+                }
+                if (invalidRequest != null) {
+                    cancelled = true;
+                    cursor.close();
+                    subscriber.onError(invalidRequest);
+                    return;
+                }
+                long wanted = requested.get();
+                long emitted = 0;
+                while (emitted != wanted && !cancelled) {
+                    A document;
+                    try {
+                        if (!cursor.hasNext()) {
+                            cancelled = true;
+                            subscriber.onComplete();
+                            return;
+                        }
+                        document = cursor.next();
+                    } catch (RuntimeException ex) {
+                        cancelled = true;
+                        cursor.close();
+                        subscriber.onError(ex);
+                        return;
+                    }
+                    subscriber.onNext(document);
+                    emitted++;
+                }
+                if (emitted != 0 && wanted != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+
+}
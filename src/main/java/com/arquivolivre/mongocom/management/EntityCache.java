@@ -0,0 +1,296 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.arquivolivre.mongocom.annotations.Cached;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+import com.mongodb.Mongo;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The documents of a <code>@Cached</code> class loaded by id from a
+ * database, kept encoded so every lookup maps a new object.
+ *
+ * <p>The entries are split in segments with their own lock and their own
+ * share of the limits, so lookups of different ids rarely wait for each
+ * other. When a segment is full the least used among its oldest entries is
+ * evicted, and the ones that stay have their use count halved so entries
+ * that are no longer read eventually go.</p>
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+final class EntityCache {
+
+    private static final int SEGMENTS = 16;
+    private static final int SAMPLE = 8;
+    private static final ClassValue<Cached> SETTINGS = new ClassValue<Cached>() {
+        @Override
+        protected Cached computeValue(Class<?> type) {
+            return type.getAnnotation(Cached.class);
+        }
+    };
+    private static final ConcurrentMap<DB, ConcurrentMap<Class<?>, EntityCache>> CACHES = new ConcurrentHashMap<>();
+
+    private final Segment[] segments;
+    private final long ttl;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Split the limits between the segments so their sum is the limit of the
+     * cache, with fewer segments for small caches.
+     */
+    EntityCache(Cached settings) {
+        this.ttl = TimeUnit.SECONDS.toNanos(settings.ttl());
+        int maxSize = Math.max(1, settings.maxSize());
+        long maxWeight = settings.maxWeight();
+        segments = new Segment[Integer.highestOneBit(Math.min(SEGMENTS, maxSize))];
+        for (int i = 0; i < segments.length; i++) {
+            int size = maxSize / segments.length + (i < maxSize % segments.length ? 1 : 0);
+            long weight = maxWeight > 0 ? maxWeight / segments.length + (i < maxWeight % segments.length ? 1 : 0) : Long.MAX_VALUE;
+            segments[i] = new Segment(size, weight);
+        }
+    }
+
+    /**
+     * The cache of the class in the given database.
+     *
+     * @param db the database.
+     * @param type a mapped class.
+     * @return the cache, <code>null</code> if the class is not
+     * <code>@Cached</code>.
+     */
+    static EntityCache of(DB db, Class<?> type) {
+        Cached settings = SETTINGS.get(type);
+        if (settings == null) {
+            return null;
+        }
+        ConcurrentMap<Class<?>, EntityCache> caches = CACHES.get(db);
+        if (caches == null) {
+            caches = new ConcurrentHashMap<>();
+            ConcurrentMap<Class<?>, EntityCache> previous = CACHES.putIfAbsent(db, caches);
+            if (previous != null) {
+                caches = previous;
+            }
+        }
+        EntityCache cache = caches.get(type);
+        if (cache == null) {
+            cache = new EntityCache(settings);
+            EntityCache previous = caches.putIfAbsent(type, cache);
+            if (previous != null) {
+                cache = previous;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Drop the cached documents of the databases of a client being closed.
+     *
+     * @param client the client.
+     */
+    static void forget(Mongo client) {
+        for (Iterator<DB> iterator = CACHES.keySet().iterator(); iterator.hasNext();) {
+            if (iterator.next().getMongo() == client) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @param id the <code>_id</code> of a document.
+     * @return a copy of the cached document, <code>null</code> if it is not
+     * cached or expired.
+     */
+    DBObject get(Object id) {
+        byte[] data = segment(id).get(id, System.nanoTime());
+        if (data == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new DefaultDBDecoder().decode(data, (DBCollection) null);
+    }
+
+    /**
+     * The current version of the part of the cache holding the given id, to
+     * be read before loading the document that is put in it.
+     *
+     * @param id the <code>_id</code> of a document.
+     * @return the number of invalidations of that part so far.
+     */
+    long stamp(Object id) {
+        return segment(id).generation;
+    }
+
+    /**
+     * Cache a document, unless its part of the cache was invalidated since the
+     * given stamp, as the document may have been loaded before a write.
+     *
+     * @param id the <code>_id</code> of the document.
+     * @param document the document.
+     * @param stamp the value of {@link #stamp(java.lang.Object)} read before
+     * the document was loaded.
+     */
+    void put(Object id, DBObject document, long stamp) {
+        byte[] data = new DefaultDBEncoder().encode(document);
+        segment(id).put(id, data, System.nanoTime() + ttl, stamp);
+    }
+
+    /**
+     * Remove a document written by a manager.
+     *
+     * @param id the <code>_id</code> of the document.
+     */
+    void invalidate(Object id) {
+        segment(id).invalidate(id);
+    }
+
+    /**
+     * Remove all documents, after a write that may change any of them.
+     */
+    void invalidateAll() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    CacheStats stats() {
+        long size = 0;
+        long weight = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+                weight += segment.weight;
+            }
+        }
+        return new CacheStats(hits.get(), misses.get(), evictions.get(), size, weight);
+    }
+
+    private Segment segment(Object id) {
+        int hash = id.hashCode();
+        hash ^= hash >>> 16;
+        return segments[hash & (segments.length - 1)];
+    }
+
+    /**
+     * A cached document and how many times it was read.
+     */
+    private static final class Entry {
+
+        private final byte[] data;
+        private final long expires;
+        private int uses;
+
+        Entry(byte[] data, long expires) {
+            this.data = data;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * A part of the cache, its entries are kept from the least to the most
+     * recently used.
+     */
+    private final class Segment {
+
+        private final Map<Object, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final int maxSize;
+        private final long maxWeight;
+        private long weight;
+        private volatile long generation;
+
+        Segment(int maxSize, long maxWeight) {
+            this.maxSize = maxSize;
+            this.maxWeight = maxWeight;
+        }
+
+        synchronized byte[] get(Object id, long now) {
+            Entry entry = entries.get(id);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expires - now < 0) {
+                remove(id);
+                evictions.incrementAndGet();
+                return null;
+            }
+            if (entry.uses < Integer.MAX_VALUE) {
+                entry.uses++;
+            }
+            return entry.data;
+        }
+
+        synchronized void put(Object id, byte[] data, long expires, long stamp) {
+            if (generation != stamp || data.length > maxWeight) {
+                return;
+            }
+            remove(id);
+            entries.put(id, new Entry(data, expires));
+            weight += data.length;
+            while (entries.size() > maxSize || weight > maxWeight) {
+                evict();
+            }
+        }
+
+        synchronized void remove(Object id) {
+            Entry entry = entries.remove(id);
+            if (entry != null) {
+                weight -= entry.data.length;
+            }
+        }
+
+        synchronized void invalidate(Object id) {
+            generation++;
+            remove(id);
+        }
+
+        synchronized void clear() {
+            generation++;
+            entries.clear();
+            weight = 0;
+        }
+
+        private void evict() {
+            Object victim = null;
+            int victimUses = Integer.MAX_VALUE;
+            Iterator<Map.Entry<Object, Entry>> iterator = entries.entrySet().iterator();
+            for (int i = 0; i < SAMPLE && iterator.hasNext(); i++) {
+                Map.Entry<Object, Entry> candidate = iterator.next();
+                Entry entry = candidate.getValue();
+                if (entry.uses < victimUses) {
+                    victim = candidate.getKey();
+                    victimUses = entry.uses;
+                }
+                entry.uses >>>= 1;
+            }
+            remove(victim);
+            evictions.incrementAndGet();
+        }
+    }
+
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.arquivolivre.mongocom.mapping.ClassMapping;
+import com.arquivolivre.mongocom.mapping.FieldMapping;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.bson.BSONObject;
+
+/**
+ * The document of an object, with one value per field of its
+ * {@link ClassMapping} instead of a map, together with the object and its
+ * encoded form.
+ *
+ * <p>When written, it holds the values {@link CollectionManager} computed
+ * for the fields of the object, generated values and references included,
+ * and {@link EntityEncoder} writes them straight into the buffer of the
+ * driver, keeping a copy of the bytes for the snapshot of a tracked
+ * object.</p>
+ *
+ * <p>When read, {@link EntityDecoder} hands the object it decoded over the
+ * driver's cursor in it, with the encoded document when it is complete. The
+ * document then only has the <code>_id</code>.</p>
+ *
+ * <p>The keys are the <code>_id</code>, first, and the names of the fields
+ * in their order, the <code>@ObjectId</code> field being the
+ * <code>_id</code>. Only the <code>_id</code> can be set when the class has
+ * no <code>@ObjectId</code> field, as the driver does on insert.</p>
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+final class EntityDBObject implements DBObject {
+
+    private static final ClassValue<Map<String, Integer>> INDEXES = new ClassValue<Map<String, Integer>>() {
+        @Override
+        protected Map<String, Integer> computeValue(Class<?> type) {
+            Map<String, Integer> indexes = new HashMap<>();
+            List<FieldMapping> fields = ClassMapping.of(type).getFields();
+            for (int i = 0; i < fields.size(); i++) {
+                indexes.put(key(fields.get(i)), i);
+            }
+            return Collections.unmodifiableMap(indexes);
+        }
+    };
+    private final Object document;
+    private final ClassMapping mapping;
+    private final Map<String, Integer> indexes;
+    private final Object[] values;
+    private Object id = CollectionManager.SKIP;
+    private byte[] bson;
+    private boolean partial;
+
+    /**
+     * An empty document of the given object.
+     */
+    EntityDBObject(Object document) {
+        this.document = document;
+        this.mapping = ClassMapping.of(document.getClass());
+        this.indexes = INDEXES.get(document.getClass());
+        this.values = new Object[mapping.getFields().size()];
+        Arrays.fill(values, CollectionManager.SKIP);
+    }
+
+    /**
+     * An object decoded from a document.
+     *
+     * @param bson the encoded document, or <code>null</code>.
+     */
+    EntityDBObject(Object document, Object id, byte[] bson) {
+        this(document);
+        this.bson = bson;
+        if (id != null) {
+            put("_id", id);
+        }
+    }
+
+    private EntityDBObject(EntityDBObject other) {
+        this.document = other.document;
+        this.mapping = other.mapping;
+        this.indexes = other.indexes;
+        this.values = other.values.clone();
+        this.id = other.id;
+    }
+
+    private static String key(FieldMapping field) {
+        return field.isObjectId() ? "_id" : field.getName();
+    }
+
+    Object getDocument() {
+        return document;
+    }
+
+    ClassMapping getMapping() {
+        return mapping;
+    }
+
+    /**
+     * The value of the field at the given index of the mapping.
+     *
+     * @return the value, or {@link CollectionManager#SKIP} if it is not
+     * stored.
+     */
+    Object getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * @param value the value, or {@link CollectionManager#SKIP} to leave the
+     * field out.
+     */
+    void setValue(int index, Object value) {
+        values[index] = value;
+    }
+
+    /**
+     * The <code>_id</code> set when the class has no <code>@ObjectId</code>
+     * field.
+     *
+     * @return the value, or {@link CollectionManager#SKIP} if there is none.
+     */
+    Object getExtraId() {
+        return id;
+    }
+
+    /**
+     * A copy with the same values, without the encoded document.
+     */
+    EntityDBObject copy() {
+        return new EntityDBObject(this);
+    }
+
+    /**
+     * The encoded document, if it was decoded from a complete one or once
+     * it was written by an {@link EntityEncoder} that keeps the bytes.
+     */
+    byte[] getBson() {
+        return bson;
+    }
+
+    void setBson(byte[] bson) {
+        this.bson = bson;
+    }
+
+    private int index(String key) {
+        Integer index = indexes.get(key);
+        return index == null ? -1 : index;
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        int index = index(key);
+        Object previous;
+        if (index >= 0) {
+            previous = values[index];
+            values[index] = value;
+        } else if (key.equals("_id")) {
+            previous = id;
+            id = value;
+        } else {
+            throw new IllegalArgumentException(key + " is not a field of " + mapping.getType().getName() + ".");
+        }
+        return previous == CollectionManager.SKIP ? null : previous;
+    }
+
+    @Override
+    public void putAll(BSONObject o) {
+        for (String key : o.keySet()) {
+            put(key, o.get(key));
+        }
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void putAll(Map m) {
+        for (Object entry : m.entrySet()) {
+            put((String) ((Map.Entry) entry).getKey(), ((Map.Entry) entry).getValue());
+        }
+    }
+
+    @Override
+    public Object get(String key) {
+        int index = index(key);
+        Object value = index >= 0 ? values[index] : key.equals("_id") ? id : CollectionManager.SKIP;
+        return value == CollectionManager.SKIP ? null : value;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Map toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (String key : keySet()) {
+            map.put(key, get(key));
+        }
+        return map;
+    }
+
+    @Override
+    public Object removeField(String key) {
+        Object previous = get(key);
+        int index = index(key);
+        if (index >= 0) {
+            values[index] = CollectionManager.SKIP;
+        } else if (key.equals("_id")) {
+            id = CollectionManager.SKIP;
+        }
+        return previous;
+    }
+
+    @Override
+    @Deprecated
+    public boolean containsKey(String s) {
+        return containsField(s);
+    }
+
+    @Override
+    public boolean containsField(String s) {
+        int index = index(s);
+        Object value = index >= 0 ? values[index] : s.equals("_id") ? id : CollectionManager.SKIP;
+        return value != CollectionManager.SKIP;
+    }
+
+    @Override
+    public Set<String> keySet() {
+        Set<String> keys = new LinkedHashSet<>();
+        if (containsField("_id")) {
+            keys.add("_id");
+        }
+        List<FieldMapping> fields = mapping.getFields();
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != CollectionManager.SKIP) {
+                keys.add(key(fields.get(i)));
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public void markAsPartialObject() {
+        partial = true;
+    }
+
+    @Override
+    public boolean isPartialObject() {
+        return partial;
+    }
+
+    @Override
+    public String toString() {
+        return JSON.serialize(this);
+    }
+
+}
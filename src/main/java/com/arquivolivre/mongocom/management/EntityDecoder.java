@@ -0,0 +1,579 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.arquivolivre.mongocom.mapping.ClassMapping;
+import com.arquivolivre.mongocom.mapping.FieldMapping;
+import com.mongodb.DBCallback;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBCallback;
+import com.mongodb.DefaultDBDecoder;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bson.BSONCallback;
+import org.bson.BSONObject;
+import org.bson.EmptyBSONCallback;
+import org.bson.types.BasicBSONList;
+import org.bson.types.ObjectId;
+
+/**
+ * Decodes the documents of a query straight into the objects of a class, as
+ * the driver reads them, instead of into a <code>DBObject</code> that is then
+ * copied into the object. The elements the class does not declare are not
+ * kept, and neither are the embedded documents of <code>@Internal</code>
+ * fields, which are decoded into their objects too. The other values are
+ * converted by the driver as usual, including the elements of {@link Lazy}
+ * fields, which are kept as the <code>DBObject</code> or
+ * <code>BasicDBList</code> the driver builds and mapped on their first
+ * read.
+ *
+ * <p>Each document is returned as an {@link EntityDBObject} holding the
+ * object, its <code>_id</code> and, for complete documents, the encoded
+ * document, from which the snapshot of the object is taken.
+ * <code>@Reference</code> fields are deferred to the {@link LoadContext} of
+ * the query, as by
+ * {@link CollectionManager#loadObject(java.lang.Object, com.mongodb.DBObject, LoadContext)}.</p>
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+final class EntityDecoder extends DefaultDBDecoder {
+
+    private static final ClassValue<Map<String, FieldMapping>> FIELDS = new ClassValue<Map<String, FieldMapping>>() {
+        @Override
+        protected Map<String, FieldMapping> computeValue(Class<?> type) {
+            Map<String, FieldMapping> fields = new HashMap<>();
+            for (FieldMapping field : ClassMapping.of(type).getFields()) {
+                fields.put(field.isObjectId() ? "_id" : field.getName(), field);
+            }
+            return Collections.unmodifiableMap(fields);
+        }
+    };
+    private final CollectionManager manager;
+    private final ClassMapping mapping;
+    private final LoadContext context;
+    private final boolean complete;
+
+    private EntityDecoder(CollectionManager manager, ClassMapping mapping, LoadContext context, boolean complete) {
+        this.manager = manager;
+        this.mapping = mapping;
+        this.context = context;
+        this.complete = complete;
+    }
+
+    /**
+     * The decoders of a cursor.
+     *
+     * @param context the context the references of the documents are
+     * deferred to.
+     * @param complete whether the documents have all their fields, so the
+     * encoded documents are kept to track the objects.
+     */
+    static DBDecoderFactory factory(final CollectionManager manager, final ClassMapping mapping, final LoadContext context, final boolean complete) {
+        return new DBDecoderFactory() {
+            @Override
+            public DBDecoder create() {
+                return new EntityDecoder(manager, mapping, context, complete);
+            }
+        };
+    }
+
+    @Override
+    public DBObject decode(InputStream in, DBCollection collection) throws IOException {
+        byte[] size = new byte[4];
+        readFully(in, size, 0);
+        int length = (size[0] & 0xff) | (size[1] & 0xff) << 8 | (size[2] & 0xff) << 16 | (size[3] & 0xff) << 24;
+        byte[] data = new byte[length];
+        System.arraycopy(size, 0, data, 0, 4);
+        readFully(in, data, 4);
+        return decode(data, collection);
+    }
+
+    private static void readFully(InputStream in, byte[] data, int offset) throws IOException {
+        while (offset < data.length) {
+            int read = in.read(data, offset, data.length - offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+    }
+
+    /**
+     * Error replies, which have a <code>$err</code> element, are decoded as
+     * usual for the driver to report them.
+     *
+     * @throws IllegalArgumentException if the document can not be mapped.
+     */
+    @Override
+    public DBObject decode(byte[] data, DBCollection collection) {
+        if (isError(data)) {
+            return super.decode(data, collection);
+        }
+        EntityCallback callback = new EntityCallback(collection);
+        try {
+            decode(data, callback);
+        } catch (IllegalArgumentException ex) {
+            // an error reply whose $err element is not the first one
+            DBObject document = super.decode(data, collection);
+            if (document.containsField("$err")) {
+                return document;
+            }
+            throw ex;
+        }
+        if (callback.error) {
+            return super.decode(data, collection);
+        }
+        return new EntityDBObject(callback.root, callback.id, complete ? data : null);
+    }
+
+    /**
+     * Whether the first element of the document is <code>$err</code>, as in
+     * the error replies of the server.
+     */
+    private static boolean isError(byte[] data) {
+        return data.length >= 10 && data[4] != 0 && data[5] == '$' && data[6] == 'e' && data[7] == 'r' && data[8] == 'r' && data[9] == 0;
+    }
+
+    /**
+     * What is being decoded: an object, a list of <code>@Internal</code>
+     * objects, a value decoded by the driver or an element not declared.
+     */
+    private static final class Frame {
+
+        static final int OBJECT = 0;
+        static final int LIST = 1;
+        static final int VALUE = 2;
+        static final int SKIP = 3;
+        final int kind;
+        final String name;
+        final FieldMapping field;
+        final Object target;
+        final Class<?> elementType;
+        int depth = 1;
+
+        Frame(int kind, String name, FieldMapping field, Object target, Class<?> elementType) {
+            this.kind = kind;
+            this.name = name;
+            this.field = field;
+            this.target = target;
+            this.elementType = elementType;
+        }
+    }
+
+    /**
+     * The callback of the driver's decoder that fills the objects. The
+     * values are converted by a {@link DefaultDBCallback}, whose current
+     * document is a scratch one the values are taken from as soon as they
+     * are put. The decoder reports every binary through
+     * {@link #gotBinary(java.lang.String, byte, byte[])}, the deprecated
+     * callback for the old subtype is left to {@link EmptyBSONCallback}.
+     */
+    private final class EntityCallback extends EmptyBSONCallback implements DBCallback {
+
+        private final DBCollection collection;
+        private final Values values;
+        private final Deque<Frame> frames = new ArrayDeque<>();
+        private Object root;
+        private Object id;
+        private boolean error;
+
+        EntityCallback(DBCollection collection) {
+            this.collection = collection;
+            this.values = new Values(collection);
+        }
+
+        @Override
+        public void objectStart() {
+            try {
+                root = mapping.newInstance();
+            } catch (InstantiationException | IllegalAccessException ex) {
+                throw new IllegalArgumentException("Unable to map a document of " + mapping.getType().getName(), ex);
+            }
+            values.reset();
+            values.objectStart(false);
+            frames.push(new Frame(Frame.OBJECT, null, null, root, null));
+        }
+
+        @Override
+        public void objectStart(boolean array) {
+            objectStart();
+        }
+
+        @Override
+        public void objectStart(String name) {
+            start(name, false);
+        }
+
+        @Override
+        public void arrayStart() {
+            throw new UnsupportedOperationException("A document can not be an array.");
+        }
+
+        @Override
+        public void arrayStart(String name) {
+            start(name, true);
+        }
+
+        private void start(String name, boolean array) {
+            Frame frame = frames.peek();
+            if (frame.kind == Frame.VALUE || frame.kind == Frame.SKIP) {
+                frame.depth++;
+                if (frame.kind == Frame.VALUE) {
+                    values.start(name, array);
+                }
+                return;
+            }
+            FieldMapping field = frame.kind == Frame.OBJECT ? field(frame, name) : null;
+            Class<?> type = frame.kind == Frame.LIST ? frame.elementType : field == null || Lazy.class.equals(field.getType()) ? null : field.isInternal() ? (array ? field.getElementType() : field.getType()) : null;
+            if (frame.kind == Frame.OBJECT && field == null && !(frames.size() == 1 && name.equals("_id"))) {
+                frames.push(new Frame(Frame.SKIP, name, null, null, null));
+            } else if (type == null || (array && frame.kind == Frame.LIST)) {
+                values.start(name, array);
+                frames.push(new Frame(Frame.VALUE, name, field, null, null));
+            } else if (array) {
+                frames.push(new Frame(Frame.LIST, name, field, new ArrayList<>(), type));
+            } else {
+                try {
+                    frames.push(new Frame(Frame.OBJECT, name, field, ClassMapping.of(type).newInstance(), null));
+                } catch (InstantiationException | IllegalAccessException ex) {
+                    throw new IllegalArgumentException("Unable to map a document of " + type.getName(), ex);
+                }
+            }
+        }
+
+        @Override
+        public Object objectDone() {
+            return done(false);
+        }
+
+        @Override
+        public Object arrayDone() {
+            return done(true);
+        }
+
+        private Object done(boolean array) {
+            Frame frame = frames.peek();
+            if (frame.kind == Frame.VALUE) {
+                values.done(array);
+            }
+            if (--frame.depth > 0) {
+                return null;
+            }
+            frames.pop();
+            if (frames.isEmpty()) {
+                return root;
+            }
+            if (frame.kind == Frame.VALUE) {
+                put(frame.name, frame.field);
+            } else if (frame.kind != Frame.SKIP) {
+                assign(frames.peek(), frame.field, frame.target);
+            }
+            return frame.target;
+        }
+
+        /**
+         * The field of an object that stores an element.
+         */
+        private FieldMapping field(Frame frame, String name) {
+            if (frames.size() == 1 && name.equals("$err")) {
+                error = true;
+            }
+            return FIELDS.get(frame.target.getClass()).get(name);
+        }
+
+        /**
+         * Take a value converted by {@link #values} and set it.
+         */
+        private void put(String name, FieldMapping field) {
+            Object value = values.current().removeField(name);
+            Frame frame = frames.peek();
+            if (frame.kind == Frame.OBJECT && frames.size() == 1 && name.equals("_id")) {
+                id = value;
+            }
+            if (frame.kind == Frame.LIST || field != null) {
+                assign(frame, field, value);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void assign(Frame frame, FieldMapping field, Object value) {
+            if (error) {
+                return;
+            }
+            if (frame.kind == Frame.LIST) {
+                ((List<Object>) frame.target).add(value);
+                return;
+            }
+            try {
+                if (value == null) {
+                } else if (Lazy.class.equals(field.getType())) {
+                    field.set(frame.target, new Lazy<>(manager, field, value));
+                } else if (value instanceof BasicBSONList) {
+                    List<Object> list = new ArrayList<>();
+                    for (Object item : (BasicBSONList) value) {
+                        list.add(CollectionManager.materialize(item));
+                    }
+                    field.set(frame.target, list);
+                } else if (field.isEnum()) {
+                    field.set(frame.target, Enum.valueOf((Class) field.getType(), (String) value));
+                } else if (field.isReference()) {
+                    manager.loadReference(frame.target, field, (ObjectId) value, context);
+                } else if (field.isObjectId()) {
+                    field.set(frame.target, value.toString());
+                } else {
+                    field.set(frame.target, CollectionManager.materialize(value));
+                }
+            } catch (IllegalAccessException | InstantiationException | ClassCastException ex) {
+                throw new IllegalArgumentException("Unable to set the field " + field.getName() + " of " + frame.target.getClass().getName(), ex);
+            }
+        }
+
+        /**
+         * Whether a value is decoded, because it is part of a value decoded
+         * by the driver or it is stored in a field.
+         */
+        private boolean wanted(String name) {
+            Frame frame = frames.peek();
+            if (frame.kind == Frame.VALUE) {
+                return true;
+            }
+            if (frame.kind == Frame.SKIP) {
+                return false;
+            }
+            return frame.kind == Frame.LIST || field(frame, name) != null || (frames.size() == 1 && name.equals("_id"));
+        }
+
+        private void got(String name) {
+            Frame frame = frames.peek();
+            if (frame.kind != Frame.VALUE) {
+                put(name, frame.kind == Frame.OBJECT ? field(frame, name) : null);
+            }
+        }
+
+        @Override
+        public void gotNull(String name) {
+            if (wanted(name)) {
+                values.gotNull(name);
+                got(name);
+            }
+        }
+
+        @Override
+        public void gotUndefined(String name) {
+            if (wanted(name)) {
+                values.gotUndefined(name);
+                got(name);
+            }
+        }
+
+        @Override
+        public void gotMinKey(String name) {
+            if (wanted(name)) {
+                values.gotMinKey(name);
+                got(name);
+            }
+        }
+
+        @Override
+        public void gotMaxKey(String name) {
+            if (wanted(name)) {
+                values.gotMaxKey(name);
+                got(name);
+            }
+        }
+
+        @Override
+        public void gotBoolean(String name, boolean value) {
+            if (wanted(name)) {
+                values.gotBoolean(name, value);
+                got(name);
+            }
+        }
+
+        @Override
+        public void gotDouble(String name, double value) {
+            if (wanted(name)) {
+                values.gotDouble(name, value);
+                got(name);
+            }
+        }
+
+        @Override
+        public void gotInt(String name, int value) {
+            if (wanted(name)) {
+                values.gotInt(name, value);
+                got(name);
+            }
+        }
+
+        @Override
+        public void gotLong(String name, long value) {
+            if (wanted(name)) {
+                values.gotLong(name, value);
+                got(name);
+            }
+        }
+
+        @Override
+        public void gotDate(String name, long millis) {
+            if (wanted(name)) {
+                values.gotDate(name, millis);
+                got(name);
+            }
+        }
+
+        @Override
+        public void gotString(String name, String value) {
+            if (wanted(name)) {
+                values.gotString(name, value);
+                got(name);
+            }
+        }
+
+        @Override
+        public void gotSymbol(String name, String symbol) {
+            if (wanted(name)) {
+                values.gotSymbol(name, symbol);
+                got(name);
+            }
+        }
+
+        @Override
+        public void gotRegex(String name, String pattern, String flags) {
+            if (wanted(name)) {
+                values.gotRegex(name, pattern, flags);
+                got(name);
+            }
+        }
+
+        @Override
+        public void gotTimestamp(String name, int time, int increment) {
+            if (wanted(name)) {
+                values.gotTimestamp(name, time, increment);
+                got(name);
+            }
+        }
+
+        @Override
+        public void gotObjectId(String name, ObjectId value) {
+            if (wanted(name)) {
+                values.gotObjectId(name, value);
+                got(name);
+            }
+        }
+
+        @Override
+        public void gotDBRef(String name, String ns, ObjectId value) {
+            if (wanted(name)) {
+                values.gotDBRef(name, ns, value);
+                got(name);
+            }
+        }
+
+        @Override
+        public void gotBinary(String name, byte type, byte[] data) {
+            if (wanted(name)) {
+                values.gotBinary(name, type, data);
+                got(name);
+            }
+        }
+
+        @Override
+        public void gotUUID(String name, long part1, long part2) {
+            if (wanted(name)) {
+                values.gotUUID(name, part1, part2);
+                got(name);
+            }
+        }
+
+        @Override
+        public void gotCode(String name, String code) {
+            if (wanted(name)) {
+                values.gotCode(name, code);
+                got(name);
+            }
+        }
+
+        @Override
+        public void gotCodeWScope(String name, String code, Object scope) {
+            if (wanted(name)) {
+                values.gotCodeWScope(name, code, scope);
+                got(name);
+            }
+        }
+
+        @Override
+        public void reset() {
+            frames.clear();
+            values.reset();
+            root = null;
+            id = null;
+            error = false;
+        }
+
+        @Override
+        public Object get() {
+            return root;
+        }
+
+        @Override
+        public BSONCallback createBSONCallback() {
+            return new DefaultDBCallback(collection);
+        }
+    }
+
+    /**
+     * The driver's callback, with access to the document being filled.
+     */
+    private static final class Values extends DefaultDBCallback {
+
+        Values(DBCollection collection) {
+            super(collection);
+        }
+
+        BSONObject current() {
+            return cur();
+        }
+
+        void start(String name, boolean array) {
+            if (array) {
+                arrayStart(name);
+            } else {
+                objectStart(name);
+            }
+        }
+
+        void done(boolean array) {
+            if (array) {
+                arrayDone();
+            } else {
+                objectDone();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.arquivolivre.mongocom.mapping.FieldMapping;
+import com.mongodb.DefaultDBEncoder;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import org.bson.BSON;
+import org.bson.BSONObject;
+import org.bson.io.OutputBuffer;
+
+/**
+ * Encodes the documents as usual, writing the values of an
+ * {@link EntityDBObject} field by field straight into the buffer of the
+ * driver. It only serializes the values already in the document, nothing is
+ * generated or saved while the driver writes.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+final class EntityEncoder extends DefaultDBEncoder {
+
+    private final boolean keepBytes;
+
+    /**
+     * @param keepBytes whether a copy of the bytes written for an
+     * {@link EntityDBObject} is kept in it, to be used as its snapshot.
+     */
+    EntityEncoder(boolean keepBytes) {
+        this.keepBytes = keepBytes;
+    }
+
+    @Override
+    public int writeObject(OutputBuffer buf, BSONObject o) {
+        if (!keepBytes || !(o instanceof EntityDBObject)) {
+            return super.writeObject(buf, o);
+        }
+        int start = buf.getPosition();
+        int size = super.writeObject(buf, o);
+        ((EntityDBObject) o).setBson(copy(buf, start, size));
+        return size;
+    }
+
+    @Override
+    protected int putObject(String name, BSONObject o) {
+        if (!(o instanceof EntityDBObject)) {
+            return super.putObject(name, o);
+        }
+        EntityDBObject entity = (EntityDBObject) o;
+        OutputBuffer buf = getOutputBuffer();
+        int start = buf.getPosition();
+        if (name != null) {
+            buf.write(BSON.OBJECT);
+            buf.writeCString(name);
+        }
+        int sizePosition = buf.getPosition();
+        buf.writeInt(0);
+        List<FieldMapping> fields = entity.getMapping().getFields();
+        FieldMapping objectIdField = entity.getMapping().getObjectIdField();
+        Object id = objectIdField == null ? entity.getExtraId() : entity.getValue(fields.indexOf(objectIdField));
+        if (id != CollectionManager.SKIP) {
+            _putObjectField("_id", id);
+        }
+        for (int i = 0; i < fields.size(); i++) {
+            Object value = entity.getValue(i);
+            if (value != CollectionManager.SKIP && fields.get(i) != objectIdField) {
+                _putObjectField(fields.get(i).getName(), value);
+            }
+        }
+        buf.write(BSON.EOO);
+        buf.backpatchSize(buf.getPosition() - sizePosition);
+        return buf.getPosition() - start;
+    }
+
+    /**
+     * The bytes written from the given position, copied as the buffer pipes
+     * its content, since it does not expose a range of it.
+     */
+    private static byte[] copy(OutputBuffer buf, final int start, int size) {
+        final byte[] bytes = new byte[size];
+        try {
+            buf.pipe(new OutputStream() {
+                private int position;
+
+                @Override
+                public void write(byte[] chunk, int offset, int length) {
+                    int from = Math.max(start, position);
+                    int to = Math.min(start + bytes.length, position + length);
+                    if (from < to) {
+                        System.arraycopy(chunk, offset + from - position, bytes, from - start, to - from);
+                    }
+                    position += length;
+                }
+
+                @Override
+                public void write(int b) {
+                    if (position >= start && position < start + bytes.length) {
+                        bytes[position - start] = (byte) b;
+                    }
+                    position++;
+                }
+            });
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return bytes;
+    }
+
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.arquivolivre.mongocom.annotations.Index;
+import com.arquivolivre.mongocom.mapping.ClassMapping;
+import com.arquivolivre.mongocom.mapping.FieldMapping;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+import com.mongodb.MongoException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the indexes declared by <code>@Index</code> once per class and
+ * database. The declared indexes are compared with the ones the collection
+ * already has and only the missing ones are created, afterwards writes to the
+ * same collection do not touch indexes at all.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+final class IndexManager {
+
+    private static final Logger LOG = Logger.getLogger(IndexManager.class.getName());
+    private static final ClassValue<List<IndexDefinition>> DEFINITIONS = new ClassValue<List<IndexDefinition>>() {
+        @Override
+        protected List<IndexDefinition> computeValue(Class<?> type) {
+            return declaredIndexes(ClassMapping.of(type));
+        }
+    };
+    private static final ConcurrentMap<DB, Set<Class<?>>> SYNCED = new ConcurrentHashMap<>();
+
+    private IndexManager() {
+    }
+
+    /**
+     * Create the missing indexes of the class in the given database, unless
+     * it was already done.
+     *
+     * @param db the database.
+     * @param type a <code>@Document</code> class.
+     */
+    static void sync(DB db, Class<?> type) {
+        Set<Class<?>> synced = synced(db);
+        if (synced.contains(type)) {
+            return;
+        }
+        List<IndexDefinition> definitions = DEFINITIONS.get(type);
+        try {
+            if (!definitions.isEmpty()) {
+                DBCollection collection = db.getCollection(ClassMapping.of(type).getCollectionName());
+                List<DBObject> existing = collection.getIndexInfo();
+                for (IndexDefinition definition : definitions) {
+                    if (!definition.existsIn(existing)) {
+                        collection.createIndex(definition.keys, definition.options);
+                    }
+                }
+            }
+            synced.add(type);
+        } catch (MongoException ex) {
+            LOG.log(Level.SEVERE, "An error occured while creating the indexes of {0}: {1}", new Object[]{type.getName(), ex.getMessage()});
+        }
+    }
+
+    /**
+     * Create the missing indexes of the classes in the given database, each
+     * class in parallel.
+     *
+     * @param db the database.
+     * @param types <code>@Document</code> classes.
+     */
+    static void sync(final DB db, Class<?>... types) {
+        if (types.length < 2) {
+            for (Class<?> type : types) {
+                sync(db, type);
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(types.length, Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>(types.length);
+            for (final Class<?> type : types) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        sync(db, type);
+                        return null;
+                    }
+                });
+            }
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            LOG.log(Level.SEVERE, null, ex.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Drop the record of the synchronized indexes of the databases of a client being closed.
+     *
+     * @param client the client.
+     */
+    static void forget(Mongo client) {
+        for (Iterator<DB> iterator = SYNCED.keySet().iterator(); iterator.hasNext();) {
+            if (iterator.next().getMongo() == client) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static Set<Class<?>> synced(DB db) {
+        Set<Class<?>> synced = SYNCED.get(db);
+        if (synced == null) {
+            synced = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+            Set<Class<?>> previous = SYNCED.putIfAbsent(db, synced);
+            if (previous != null) {
+                synced = previous;
+            }
+        }
+        return synced;
+    }
+
+    private static List<IndexDefinition> declaredIndexes(ClassMapping mapping) {
+        List<IndexDefinition> definitions = new ArrayList<>();
+        Map<String, BasicDBObject> compoundIndexes = new TreeMap<>();
+        for (FieldMapping field : mapping.getIndexedFields()) {
+            Index annotation = field.getIndex();
+            String indexName = annotation.value();
+            String type = annotation.type();
+            String fieldName = field.getName();
+            if (indexName.equals("") && type.equals("")) {
+                BasicDBObject options = new BasicDBObject();
+                options.append("background", annotation.background());
+                options.append("unique", annotation.unique());
+                options.append("sparse", annotation.sparse());
+                options.append("dropDups", annotation.dropDups());
+                definitions.add(new IndexDefinition(new BasicDBObject(fieldName, annotation.order()), options));
+            } else if (!indexName.equals("") && type.equals("")) {
+                BasicDBObject keys = compoundIndexes.get(indexName);
+                if (keys == null) {
+                    keys = new BasicDBObject();
+                    compoundIndexes.put(indexName, keys);
+                }
+                keys.append(fieldName, annotation.order());
+            } else {
+                definitions.add(new IndexDefinition(new BasicDBObject(fieldName, type), new BasicDBObject("background", true)));
+            }
+        }
+        for (Map.Entry<String, BasicDBObject> compound : compoundIndexes.entrySet()) {
+            BasicDBObject options = new BasicDBObject("background", true).append("name", compound.getKey());
+            definitions.add(new IndexDefinition(compound.getValue(), options));
+        }
+        return Collections.unmodifiableList(definitions);
+    }
+
+    /**
+     * The keys and options of an index declared by a class.
+     */
+    private static final class IndexDefinition {
+
+        private final BasicDBObject keys;
+        private final BasicDBObject options;
+
+        IndexDefinition(BasicDBObject keys, BasicDBObject options) {
+            this.keys = keys;
+            this.options = options;
+        }
+
+        /**
+         * Whether the collection has an index with the same name or the same
+         * keys, in the same order.
+         */
+        boolean existsIn(List<DBObject> indexes) {
+            for (DBObject index : indexes) {
+                if (options.containsField("name") && options.get("name").equals(index.get("name"))) {
+                    return true;
+                }
+                Object key = index.get("key");
+                if (key instanceof DBObject && sameKeys((DBObject) key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean sameKeys(DBObject key) {
+            if (!new ArrayList<>(keys.keySet()).equals(new ArrayList<>(key.keySet()))) {
+                return false;
+            }
+            for (String field : keys.keySet()) {
+                Object declared = keys.get(field);
+                Object actual = key.get(field);
+                if (declared instanceof Number && actual instanceof Number) {
+                    if (((Number) declared).doubleValue() != ((Number) actual).doubleValue()) {
+                        return false;
+                    }
+                } else if (!declared.equals(actual)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.arquivolivre.mongocom.mapping.FieldMapping;
+
+/**
+ * A field mapped only when it is first read. A field declared as
+ * <code>@Internal Lazy&lt;List&lt;Item&gt;&gt; items</code> keeps its element
+ * of the document as it was read, and is mapped on the first call to
+ * {@link #get()}. By default the element is still decoded with the document,
+ * into a <code>DBObject</code> or a <code>BasicDBList</code>, and only its
+ * mapping is deferred; with {@link MongoQuery#lazyDocuments(boolean)} it is
+ * not even decoded until then. Fields that are not read are written back as
+ * they were read; <code>@Reference</code> fields can not be lazy, see
+ * {@link Ref}.
+ *
+ * @param <T> type of the field.
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public final class Lazy<T extends Object> {
+
+    private final CollectionManager manager;
+    private final FieldMapping field;
+    private Object content;
+    private volatile T value;
+    private volatile boolean loaded;
+
+    /**
+     * @param content the element of the document.
+     */
+    Lazy(CollectionManager manager, FieldMapping field, Object content) {
+        this.manager = manager;
+        this.field = field;
+        this.content = content;
+    }
+
+    private Lazy(T value) {
+        this.manager = null;
+        this.field = null;
+        this.value = value;
+        this.loaded = true;
+    }
+
+    /**
+     * Create a field that is already mapped.
+     *
+     * @param <T> type of the field.
+     * @param value the value of the field.
+     * @return a loaded field.
+     */
+    public static <T extends Object> Lazy<T> of(T value) {
+        return new Lazy<>(value);
+    }
+
+    /**
+     * The value of the field, mapped on the first call. If it can not be
+     * mapped the element of the document is kept, so the next call tries
+     * again and the field is written back as it was read.
+     *
+     * @return the value.
+     * @throws IllegalStateException if the element can not be mapped.
+     */
+    @SuppressWarnings("unchecked")
+    public T get() {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) {
+                    try {
+                        value = (T) manager.lazyValue(field, content);
+                    } catch (IllegalAccessException | InstantiationException | IllegalArgumentException | ClassCastException ex) {
+                        throw new IllegalStateException("Unable to map the field " + field.getName(), ex);
+                    }
+                    content = null;
+                    loaded = true;
+                }
+            }
+        }
+        return value;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * The element of the document, if the field was not mapped yet.
+     *
+     * @return the element, <code>null</code> once the field is mapped.
+     */
+    synchronized Object getContent() {
+        return content;
+    }
+
+    @Override
+    public String toString() {
+        return "Lazy{" + (loaded ? String.valueOf(value) : "not loaded") + "}";
+    }
+
+}
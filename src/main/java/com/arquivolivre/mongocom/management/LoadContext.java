@@ -0,0 +1,279 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>..
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.arquivolivre.mongocom.mapping.ClassMapping;
+import com.arquivolivre.mongocom.mapping.FieldMapping;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.bson.types.ObjectId;
+
+/**
+ * State of a single load operation. The <code>@Reference</code> fields found
+ * while mapping the documents of a result are not fetched one by one, they
+ * are collected and resolved together by {@link #resolve()} with one
+ * <code>$in</code> query per referenced collection and level of references.
+ * The same mechanism loads {@link Ref}s and the placeholders of lazy queries
+ * when they are initialized in batch.
+ *
+ * <p>The context is also an identity map: every document is fetched and
+ * mapped at most once per operation, keyed by collection and
+ * <code>_id</code>, and the same instance is shared by all the objects that
+ * reference it, which also ends reference cycles.</p>
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+final class LoadContext {
+
+    /**
+     * Maximum number of ids sent in a single <code>$in</code> query.
+     */
+    private static final int MAX_IDS_PER_QUERY = 1000;
+    private final CollectionManager manager;
+    private final DB db;
+    private final boolean lazy;
+    private Map<Class<?>, List<PendingReference>> pending = new LinkedHashMap<>();
+    private final Map<String, Map<Object, Object>> identities = new HashMap<>();
+
+    LoadContext(CollectionManager manager, DB db) {
+        this(manager, db, false);
+    }
+
+    /**
+     * @param lazy if <code>true</code> plain <code>@Reference</code> fields
+     * are set to placeholders instead of being resolved.
+     */
+    LoadContext(CollectionManager manager, DB db, boolean lazy) {
+        this.manager = manager;
+        this.db = db;
+        this.lazy = lazy;
+    }
+
+    boolean isLazy() {
+        return lazy;
+    }
+
+    /**
+     * Register a reference to be set when {@link #resolve()} is called.
+     *
+     * @param owner object that declares the field.
+     * @param field the <code>@Reference</code> field.
+     * @param id the <code>_id</code> of the referenced document.
+     */
+    void defer(final Object owner, final FieldMapping field, ObjectId id) {
+        add(field.getType(), new PendingReference(id) {
+            @Override
+            void assign(Object value) throws IllegalAccessException {
+                field.set(owner, value);
+            }
+        });
+    }
+
+    /**
+     * Register a {@link Ref} to be loaded when {@link #resolve()} is called.
+     *
+     * @param ref a reference that is not loaded.
+     */
+    <T> void defer(final Ref<T> ref) {
+        add(ref.getType(), new PendingReference(new ObjectId(ref.getId())) {
+            @Override
+            void assign(Object value) {
+                ref.set(ref.getType().cast(value));
+            }
+        });
+    }
+
+    /**
+     * Register an object to be filled in place, from the document with the
+     * given <code>_id</code>, when {@link #resolve()} is called.
+     *
+     * @param target the object to be filled.
+     * @param id the <code>_id</code> of its document.
+     */
+    void deferFill(final Object target, ObjectId id) {
+        add(target.getClass(), new PendingReference(id) {
+            @Override
+            Object target() {
+                return target;
+            }
+
+            @Override
+            void assign(Object value) {
+            }
+        });
+    }
+
+    /**
+     * Register the object mapped from a document, so the references to this
+     * document in the same operation use it instead of fetching it again.
+     *
+     * @param mapping mapping of the object.
+     * @param id the <code>_id</code> of the document, ignored if
+     * <code>null</code>.
+     * @param object the mapped object.
+     */
+    void register(ClassMapping mapping, Object id, Object object) {
+        if (id == null || mapping.getCollectionName() == null) {
+            return;
+        }
+        Map<Object, Object> collection = identities.get(mapping.getCollectionName());
+        if (collection == null) {
+            collection = new HashMap<>();
+            identities.put(mapping.getCollectionName(), collection);
+        }
+        if (!collection.containsKey(id)) {
+            collection.put(id, object);
+        }
+    }
+
+    /**
+     * The object already mapped in this operation from the given document.
+     *
+     * @param mapping mapping of the expected object.
+     * @param id the <code>_id</code> of the document.
+     * @return the object, <code>null</code> if it was not mapped yet.
+     */
+    Object identity(ClassMapping mapping, Object id) {
+        Map<Object, Object> collection = identities.get(mapping.getCollectionName());
+        if (collection == null) {
+            return null;
+        }
+        Object object = collection.get(id);
+        return mapping.getType().isInstance(object) ? object : null;
+    }
+
+    /**
+     * Forget the objects mapped so far, used by long running operations that
+     * only need to share instances within a chunk of their result.
+     */
+    void clear() {
+        identities.clear();
+    }
+
+    private void add(Class<?> type, PendingReference reference) {
+        List<PendingReference> references = pending.get(type);
+        if (references == null) {
+            references = new ArrayList<>();
+            pending.put(type, references);
+        }
+        references.add(reference);
+    }
+
+    /**
+     * Fetch and map the referenced documents, level by level, until there are
+     * no references left. Documents already mapped in this operation are
+     * neither fetched nor mapped again, and references to missing documents
+     * are set to <code>null</code>.
+     *
+     * @throws IllegalAccessException
+     * @throws InstantiationException
+     */
+    void resolve() throws IllegalAccessException, InstantiationException {
+        while (!pending.isEmpty()) {
+            Map<Class<?>, List<PendingReference>> level = pending;
+            pending = new LinkedHashMap<>();
+            for (Map.Entry<Class<?>, List<PendingReference>> entry : level.entrySet()) {
+                ClassMapping mapping = ClassMapping.of(entry.getKey());
+                Map<ObjectId, DBObject> documents = fetch(mapping, entry.getValue());
+                for (PendingReference reference : entry.getValue()) {
+                    Object target = reference.target();
+                    Object value = target == null ? identity(mapping, reference.id) : null;
+                    DBObject document = documents.get(reference.id);
+                    if (value == null && document != null) {
+                        value = target == null ? mapping.newInstance() : target;
+                        register(mapping, reference.id, value);
+                        manager.track(mapping, value, document);
+                        manager.loadObject(value, document, this);
+                    }
+                    reference.assign(value);
+                }
+            }
+        }
+    }
+
+    private Map<ObjectId, DBObject> fetch(ClassMapping mapping, List<PendingReference> references) {
+        EntityCache cache = EntityCache.of(db, mapping.getType());
+        List<ObjectId> ids = new ArrayList<>();
+        Map<ObjectId, Long> stamps = new HashMap<>();
+        Map<ObjectId, DBObject> documents = new HashMap<>();
+        for (PendingReference reference : references) {
+            if (reference.target() == null && identity(mapping, reference.id) != null) {
+                continue;
+            }
+            if (!documents.containsKey(reference.id)) {
+                DBObject cached = cache == null ? null : cache.get(reference.id);
+                documents.put(reference.id, cached);
+                if (cached == null) {
+                    ids.add(reference.id);
+                    if (cache != null) {
+                        stamps.put(reference.id, cache.stamp(reference.id));
+                    }
+                }
+            }
+        }
+        for (int from = 0; from < ids.size(); from += MAX_IDS_PER_QUERY) {
+            List<ObjectId> chunk = ids.subList(from, Math.min(from + MAX_IDS_PER_QUERY, ids.size()));
+            DBObject query = new BasicDBObject("_id", new BasicDBObject("$in", chunk));
+            DBCursor cursor = db.getCollection(mapping.getCollectionName()).find(query);
+            try {
+                while (cursor.hasNext()) {
+                    DBObject document = cursor.next();
+                    ObjectId id = (ObjectId) document.get("_id");
+                    documents.put(id, document);
+                    if (cache != null) {
+                        cache.put(id, document, stamps.get(id));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return documents;
+    }
+
+    private abstract static class PendingReference {
+
+        private final ObjectId id;
+
+        PendingReference(ObjectId id) {
+            this.id = id;
+        }
+
+        /**
+         * The object the referenced document must be mapped into.
+         *
+         * @return the object, <code>null</code> to use the instance shared in
+         * this operation.
+         */
+        Object target() {
+            return null;
+        }
+
+        /**
+         * Hand the mapped object, or <code>null</code> if the document doesn't
+         * exist, to whoever is waiting for it.
+         */
+        abstract void assign(Object value) throws IllegalAccessException;
+    }
+
+}
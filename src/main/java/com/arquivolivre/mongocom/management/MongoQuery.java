@@ -35,6 +35,12 @@ public final class MongoQuery extends QueryBuilder{
     public static final int ORDER_DESC = -1;
     private int limit;
     private int skip;
+    private int batchSize;
+    private boolean lazyReferences;
+    private boolean lazyDocuments;
+    private int cacheTtl;
+    private int pipelineWorkers;
+    private boolean pipelineOrdered;
 
     public MongoQuery() {
         query = new BasicDBObject();
@@ -45,6 +51,16 @@ public final class MongoQuery extends QueryBuilder{
         add(field, value);
     }
 
+    /**
+     * A query with criteria already built, used as they are, i.e. by
+     * {@link com.arquivolivre.mongocom.utils.QueryTemplate}.
+     *
+     * @param criteria the criteria, owned by the query from now on.
+     */
+    public MongoQuery(BasicDBObject criteria) {
+        query = criteria;
+    }
+
     /**
      * Set a criteria to the query
      *
@@ -126,6 +142,17 @@ public final class MongoQuery extends QueryBuilder{
         return query;
     }
 
+    /**
+     * The criteria of the query, without the order.
+     */
+    DBObject getCriteria() {
+        return query;
+    }
+
+    public DBObject getOrderBy() {
+        return orderBy;
+    }
+
     public DBObject getConstraits() {
         return constraits;
     }
@@ -146,6 +173,98 @@ public final class MongoQuery extends QueryBuilder{
         this.skip = skip;
     }
 
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Number of documents fetched from the server on each round trip.
+     *
+     * @param batchSize documents per batch, 0 uses the server default.
+     */
+    public void batchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public boolean isLazyReferences() {
+        return lazyReferences;
+    }
+
+    /**
+     * Do not fetch the <code>@Reference</code> fields of the result. Each one
+     * is set to a placeholder that only has its <code>@ObjectId</code> field
+     * set, so reads that ignore references cost a single query; placeholders
+     * can be loaded in batch with
+     * {@link CollectionManager#initialize(java.util.Collection)}. Fields
+     * declared as {@link Ref} are always lazy.
+     *
+     * @param lazyReferences <code>true</code> to use placeholders.
+     */
+    public void lazyReferences(boolean lazyReferences) {
+        this.lazyReferences = lazyReferences;
+    }
+
+    public boolean isLazyDocuments() {
+        return lazyDocuments;
+    }
+
+    /**
+     * Read the result with the driver's lazy documents, which keep the BSON
+     * as received and decode an element only when it is read. Elements the
+     * classes do not declare are never decoded, and fields declared as
+     * {@link Lazy} keep their element encoded until their first
+     * {@link Lazy#get()}, so large embedded lists that are seldom read cost
+     * little more than their bytes. Ignored by cached and pipelined queries.
+     *
+     * @param lazyDocuments <code>true</code> to read lazy documents.
+     */
+    public void lazyDocuments(boolean lazyDocuments) {
+        this.lazyDocuments = lazyDocuments;
+    }
+
+    public int getCacheTtl() {
+        return cacheTtl;
+    }
+
+    /**
+     * Keep the result of <code>find</code> and <code>count</code> with this
+     * query in memory, so the same query, with the same criteria in any
+     * order, fields, order, skip and limit, does not reach the server again
+     * until a manager writes to the collection or the time ends, which bounds
+     * how long writes made by other processes are not seen. Referenced
+     * documents are still loaded when the result is mapped.
+     *
+     * @param ttl seconds the result is kept, 0 does not cache it.
+     */
+    public void cache(int ttl) {
+        this.cacheTtl = ttl;
+    }
+
+    public int getPipelineWorkers() {
+        return pipelineWorkers;
+    }
+
+    public boolean isPipelineOrdered() {
+        return pipelineOrdered;
+    }
+
+    /**
+     * Map the result of <code>find</code> on worker threads while the next
+     * batches are read from the server, instead of alternating both on the
+     * calling thread. Worth it for large results; a document that can not be
+     * mapped fails the whole <code>find</code> with an
+     * <code>IllegalStateException</code>.
+     *
+     * @param workers maximum number of chunks of documents, of the batch size
+     * each, mapped at the same time, 0 does not pipeline.
+     * @param ordered <code>true</code> to keep the order of the documents,
+     * otherwise they are in the order they are mapped.
+     */
+    public void pipeline(int workers, boolean ordered) {
+        this.pipelineWorkers = workers;
+        this.pipelineOrdered = ordered;
+    }
+
     public String getQueryJson() {
         return query.toString();
     }
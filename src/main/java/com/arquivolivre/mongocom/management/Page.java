@@ -0,0 +1,60 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of documents returned by
+ * {@link CollectionManager#findPage(java.lang.Class, MongoQuery, int, java.lang.String)}.
+ *
+ * @param <A> generic type of the collection.
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public final class Page<A extends Object> {
+
+    private final List<A> items;
+    private final String nextPageToken;
+
+    Page(List<A> items, String nextPageToken) {
+        this.items = Collections.unmodifiableList(items);
+        this.nextPageToken = nextPageToken;
+    }
+
+    public List<A> getItems() {
+        return items;
+    }
+
+    /**
+     * The token that continues after the last document of this page.
+     *
+     * @return the token, <code>null</code> if this is the last page.
+     */
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    public boolean hasNext() {
+        return nextPageToken != null;
+    }
+
+    @Override
+    public String toString() {
+        return "Page{size=" + items.size() + ", next=" + nextPageToken + "}";
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * The position of a page in a keyset pagination: the sort value and the
+ * <code>_id</code> of the last document read. It is passed around as the
+ * Base64 of its JSON, so it can be used in URLs.
+ *
+ * <p>The page that follows is selected by comparing the sort field and then
+ * the <code>_id</code> to the ones of the token, so with an index on both
+ * each page costs the same wherever it is. Missing and null sort values are
+ * handled as the server sorts them, before every other value; the sort
+ * values must otherwise be of a single type.</p>
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+final class PageToken {
+
+    private final String field;
+    private final int order;
+    private final Object value;
+    private final Object id;
+
+    /**
+     * @param field the sort field, <code>null</code> when sorted only by
+     * <code>_id</code>.
+     * @param order {@link MongoQuery#ORDER_ASC} or
+     * {@link MongoQuery#ORDER_DESC}.
+     * @param value the sort value of the last document.
+     * @param id the <code>_id</code> of the last document.
+     */
+    PageToken(String field, int order, Object value, Object id) {
+        this.field = field;
+        this.order = order;
+        this.value = value;
+        this.id = id;
+    }
+
+    /**
+     * Read a token.
+     *
+     * @param token the token of a page.
+     * @param field the sort field of the query it is used with.
+     * @param order the order of the query it is used with.
+     * @return the position.
+     * @throws IllegalArgumentException if the token is malformed or belongs
+     * to a query with another order.
+     */
+    static PageToken decode(String token, String field, int order) {
+        DBObject position;
+        try {
+            position = (DBObject) JSON.parse(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+        } catch (RuntimeException ex) {
+            throw new IllegalArgumentException("Invalid page token: " + token, ex);
+        }
+        Object tokenField = position.get("f");
+        Object tokenOrder = position.get("o");
+        if (!position.containsField("id") || !(tokenOrder instanceof Number) || ((Number) tokenOrder).intValue() != order
+                || (field == null ? tokenField != null : !field.equals(tokenField))) {
+            throw new IllegalArgumentException("The page token does not belong to a query sorted by " + (field == null ? "_id" : field) + ".");
+        }
+        return new PageToken(field, order, position.get("v"), position.get("id"));
+    }
+
+    String encode() {
+        BasicDBObject position = new BasicDBObject("f", field).append("o", order).append("v", value).append("id", id);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(JSON.serialize(position).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The criteria of the documents after this position.
+     */
+    DBObject after() {
+        String operator = order < 0 ? "$lt" : "$gt";
+        BasicDBObject afterId = new BasicDBObject(operator, id);
+        if (field == null) {
+            return new BasicDBObject("_id", afterId);
+        }
+        BasicDBList alternatives = new BasicDBList();
+        if (value == null) {
+            if (order > 0) {
+                alternatives.add(new BasicDBObject(field, new BasicDBObject("$ne", null)));
+            }
+        } else {
+            alternatives.add(new BasicDBObject(field, new BasicDBObject(operator, value)));
+            if (order < 0) {
+                alternatives.add(new BasicDBObject(field, null));
+            }
+        }
+        alternatives.add(new BasicDBObject(field, value).append("_id", afterId));
+        return alternatives.size() == 1 ? (DBObject) alternatives.get(0) : new BasicDBObject("$or", alternatives);
+    }
+
+}
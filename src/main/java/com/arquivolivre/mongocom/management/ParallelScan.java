@@ -0,0 +1,277 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.arquivolivre.mongocom.mapping.ClassMapping;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Splits a collection in ranges of <code>_id</code> with about the same
+ * number of documents, each one read by its own cursor, so a parallel stream
+ * over them reads and maps the ranges at the same time.
+ *
+ * <p>The bounds of the ranges are the split points the server computes for
+ * sharding (<code>splitVector</code>), which only looks at the index, or
+ * else quantiles of a <code>$sample</code> of the <code>_id</code>. If the
+ * <code>_id</code> values are not all of the same type the collection is
+ * read as a single range, since the server only compares values of the same
+ * type.</p>
+ *
+ * @param <A> generic type of the collection.
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+final class ParallelScan<A extends Object> implements Spliterator<A> {
+
+    private static final Logger LOG = Logger.getLogger(ParallelScan.class.getName());
+    private static final DBObject ID_ORDER = new BasicDBObject("_id", 1);
+    private static final int SAMPLES_PER_RANGE = 16;
+    private final CollectionManager manager;
+    private final ClassMapping mapping;
+    private final MongoQuery query;
+    private final List<DBObject> ranges;
+    private final long rangeSize;
+    private final Queue<DocumentCursor<A>> open;
+    private int from;
+    private final int to;
+    private DocumentCursor<A> current;
+
+    private ParallelScan(CollectionManager manager, ClassMapping mapping, MongoQuery query, List<DBObject> ranges,
+            long rangeSize, Queue<DocumentCursor<A>> open, int from, int to) {
+        this.manager = manager;
+        this.mapping = mapping;
+        this.query = query;
+        this.ranges = ranges;
+        this.rangeSize = rangeSize;
+        this.open = open;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * @param partitions number of ranges wanted, fewer are used for small
+     * collections.
+     */
+    ParallelScan(CollectionManager manager, DBCollection collection, ClassMapping mapping, MongoQuery query, int partitions) {
+        this.manager = manager;
+        this.mapping = mapping;
+        this.query = query;
+        long count = collection.count();
+        this.ranges = Collections.unmodifiableList(ranges(collection, partitions, count));
+        this.rangeSize = Math.max(1, count / ranges.size());
+        this.open = new ConcurrentLinkedQueue<>();
+        this.from = 0;
+        this.to = ranges.size();
+    }
+
+    private static List<DBObject> ranges(DBCollection collection, int partitions, long count) {
+        List<Object> bounds = Collections.emptyList();
+        if (partitions > 1 && count > partitions && sameType(first(collection, 1), first(collection, -1))) {
+            List<Object> candidates = splitKeys(collection, partitions);
+            if (candidates == null) {
+                candidates = sampleKeys(collection, partitions);
+            }
+            bounds = bounds(candidates, partitions);
+        }
+        return ranges(bounds);
+    }
+
+    /**
+     * The candidates that split them in <code>partitions</code> parts of about
+     * the same size, without repeated bounds, so there may be fewer parts.
+     *
+     * @param candidates sorted <code>_id</code> values, split points or a
+     * sample.
+     */
+    static List<Object> bounds(List<Object> candidates, int partitions) {
+        List<Object> bounds = new ArrayList<>();
+        for (int i = 1; i < partitions; i++) {
+            // n keys split the collection in n + 1 chunks, take the key that ends chunk i * (n + 1) / partitions
+            int index = (int) ((long) i * (candidates.size() + 1) / partitions) - 1;
+            if (index < 0 || index >= candidates.size()) {
+                continue;
+            }
+            Object bound = candidates.get(index);
+            if (bounds.isEmpty() || !bound.equals(bounds.get(bounds.size() - 1))) {
+                bounds.add(bound);
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * The criteria of the ranges between the bounds, <code>null</code> for
+     * the whole collection when there are no bounds.
+     */
+    static List<DBObject> ranges(List<Object> bounds) {
+        List<DBObject> ranges = new ArrayList<>(bounds.size() + 1);
+        for (int i = 0; i <= bounds.size(); i++) {
+            BasicDBObject range = new BasicDBObject();
+            if (i > 0) {
+                range.append("$gt", bounds.get(i - 1));
+            }
+            if (i < bounds.size()) {
+                range.append("$lte", bounds.get(i));
+            }
+            ranges.add(range.isEmpty() ? null : new BasicDBObject("_id", range));
+        }
+        return ranges;
+    }
+
+    /**
+     * The <code>_id</code> values that split the collection in chunks of
+     * about the same size, as the server finds them for sharding from the
+     * index alone, or <code>null</code> if the server does not run the
+     * command, e.g. through a <code>mongos</code>.
+     */
+    private static List<Object> splitKeys(DBCollection collection, int partitions) {
+        try {
+            Object size = collection.getStats().get("size");
+            if (!(size instanceof Number)) {
+                return null;
+            }
+            CommandResult result = collection.getDB().command(new BasicDBObject("splitVector", collection.getFullName())
+                    .append("keyPattern", ID_ORDER)
+                    .append("maxChunkSizeBytes", Math.max(1, ((Number) size).longValue() / partitions)));
+            if (!result.ok()) {
+                LOG.log(Level.FINE, "splitVector failed on {0}: {1}", new Object[]{collection.getFullName(), result.getErrorMessage()});
+                return null;
+            }
+            List<Object> keys = new ArrayList<>();
+            for (Object key : (List<?>) result.get("splitKeys")) {
+                keys.add(((DBObject) key).get("_id"));
+            }
+            return keys;
+        } catch (MongoException ex) {
+            LOG.log(Level.FINE, "splitVector is not available, sampling the _id instead.", ex);
+            return null;
+        }
+    }
+
+    /**
+     * A sorted random sample of the <code>_id</code> values, a few for each
+     * range, or none if the server cannot sample.
+     */
+    private static List<Object> sampleKeys(DBCollection collection, int partitions) {
+        List<Object> keys = new ArrayList<>();
+        try {
+            List<DBObject> pipeline = Arrays.<DBObject>asList(
+                    new BasicDBObject("$sample", new BasicDBObject("size", SAMPLES_PER_RANGE * partitions)),
+                    new BasicDBObject("$project", ID_ORDER),
+                    new BasicDBObject("$sort", ID_ORDER));
+            for (DBObject sample : collection.aggregate(pipeline).results()) {
+                keys.add(sample.get("_id"));
+            }
+        } catch (MongoException ex) {
+            LOG.log(Level.FINE, "Could not sample " + collection.getFullName() + ", reading it as a single range.", ex);
+            keys.clear();
+        }
+        return keys;
+    }
+
+    /**
+     * Whether the smallest and the largest <code>_id</code> are of the same
+     * type, and so are all the ones in between.
+     */
+    static boolean sameType(Object min, Object max) {
+        if (min == null || max == null) {
+            return false;
+        }
+        return min.getClass() == max.getClass() || (min instanceof Number && max instanceof Number);
+    }
+
+    private static Object first(DBCollection collection, int order) {
+        DBCursor cursor = collection.find(new BasicDBObject(), ID_ORDER).sort(new BasicDBObject("_id", order)).limit(1);
+        try {
+            return cursor.hasNext() ? cursor.next().get("_id") : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super A> action) {
+        while (true) {
+            if (current != null) {
+                if (current.hasNext()) {
+                    action.accept(current.next());
+                    return true;
+                }
+                open.remove(current);
+                current = null;
+            }
+            if (from >= to) {
+                return false;
+            }
+            current = manager.iterate(mapping, query, ranges.get(from++));
+            open.add(current);
+        }
+    }
+
+    @Override
+    public Spliterator<A> trySplit() {
+        if (current != null) {
+            if (from == to) {
+                return null;
+            }
+            ParallelScan<A> rest = new ParallelScan<>(manager, mapping, query, ranges, rangeSize, open, from, to);
+            from = to;
+            return rest;
+        }
+        if (to - from < 2) {
+            return null;
+        }
+        int middle = (from + to) >>> 1;
+        ParallelScan<A> prefix = new ParallelScan<>(manager, mapping, query, ranges, rangeSize, open, from, middle);
+        from = middle;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return (to - from + (current == null ? 0 : 1)) * rangeSize;
+    }
+
+    @Override
+    public int characteristics() {
+        return NONNULL;
+    }
+
+    /**
+     * Close the cursors of the ranges not read until the end.
+     */
+    void close() {
+        DocumentCursor<A> cursor;
+        while ((cursor = open.poll()) != null) {
+            cursor.close();
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.arquivolivre.mongocom.mapping.ClassMapping;
+import com.mongodb.Cursor;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * The pipelined mode of {@link CollectionManager#find(java.lang.Class, MongoQuery)}:
+ * the calling thread reads the cursor, waiting on the network, and hands the
+ * documents in chunks to worker threads that map them, so both happen at the
+ * same time. At most one chunk per worker is waiting or being mapped, the
+ * reading stops until a worker is free, which bounds the documents held in
+ * memory besides the result.
+ *
+ * <p>The workers are daemon threads shared by all managers, one per
+ * processor. Each chunk resolves its own <code>@Reference</code> fields, as
+ * in {@link DocumentCursor}.</p>
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+final class PipelinedFind {
+
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "mongocom-pipeline-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private PipelinedFind() {
+    }
+
+    /**
+     * Map the documents of a query. When a chunk can not be mapped the
+     * reading stops and the cursor is closed, without waiting for the rest of
+     * the documents.
+     *
+     * @param documents the cursor of the query.
+     * @param loaded where the documents read are also added, if not
+     * <code>null</code>.
+     * @param complete whether the documents have all their fields.
+     * @return the mapped documents.
+     * @throws IllegalStateException if a document can not be mapped.
+     */
+    static <A extends Object> List<A> find(final CollectionManager manager, final DB db, final ClassMapping mapping,
+            Cursor documents, final MongoQuery query, List<DBObject> loaded, final boolean complete) {
+        int chunkSize = query.getBatchSize() > 0 ? query.getBatchSize() : DocumentCursor.DEFAULT_CHUNK_SIZE;
+        final Semaphore workers = new Semaphore(query.getPipelineWorkers());
+        final AtomicBoolean failed = new AtomicBoolean();
+        final List<A> unordered = new ArrayList<>();
+        List<CompletableFuture<List<A>>> chunks = new ArrayList<>();
+        try {
+            while (!failed.get() && documents.hasNext()) {
+                final List<DBObject> chunk = new ArrayList<>(chunkSize);
+                while (chunk.size() < chunkSize && documents.hasNext()) {
+                    chunk.add(documents.next());
+                }
+                if (loaded != null) {
+                    loaded.addAll(chunk);
+                }
+                workers.acquire();
+                if (failed.get()) {
+                    workers.release();
+                    break;
+                }
+                CompletableFuture<List<A>> mapped = CompletableFuture.supplyAsync(new Supplier<List<A>>() {
+                    @Override
+                    public List<A> get() {
+                        try {
+                            List<A> objects = map(manager, db, mapping, chunk, query.isLazyReferences(), complete);
+                            if (!query.isPipelineOrdered()) {
+                                synchronized (unordered) {
+                                    unordered.addAll(objects);
+                                }
+                            }
+                            return objects;
+                        } catch (RuntimeException | Error ex) {
+                            failed.set(true);
+                            throw ex;
+                        } finally {
+                            workers.release();
+                        }
+                    }
+                }, WORKERS);
+                chunks.add(mapped);
+            }
+            if (failed.get()) {
+                documents.close();
+            }
+            CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[chunks.size()])).join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading the documents of " + mapping.getType().getName(), ex);
+        } catch (CompletionException ex) {
+            throw ex.getCause() instanceof IllegalStateException ? (IllegalStateException) ex.getCause() : ex;
+        }
+        if (!query.isPipelineOrdered()) {
+            return unordered;
+        }
+        List<A> result = new ArrayList<>();
+        for (CompletableFuture<List<A>> chunk : chunks) {
+            result.addAll(chunk.join());
+        }
+        return result;
+    }
+
+    private static <A extends Object> List<A> map(CollectionManager manager, DB db, ClassMapping mapping, List<DBObject> documents,
+            boolean lazy, boolean complete) {
+        LoadContext context = new LoadContext(manager, db, lazy);
+        List<A> objects = new ArrayList<>(documents.size());
+        try {
+            for (DBObject document : documents) {
+                A obj = manager.mapDocument(mapping, document, context, complete);
+                objects.add(obj);
+            }
+            context.resolve();
+        } catch (InstantiationException | IllegalAccessException | IllegalArgumentException | SecurityException ex) {
+            throw new IllegalStateException("Unable to map a document of " + mapping.getType().getName(), ex);
+        }
+        return objects;
+    }
+
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+import com.mongodb.Mongo;
+import com.mongodb.util.JSON;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The results of the queries with {@link MongoQuery#cache(int)} run on a
+ * collection, kept until their time to live ends or until a manager writes
+ * to the collection.
+ *
+ * <p>Each collection keeps at most <code>mongocom.queryCache.maxSize</code>
+ * results, 1000 by default, evicting the least recently used ones.</p>
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+final class QueryCache {
+
+    private static final int MAX_SIZE = Integer.getInteger("mongocom.queryCache.maxSize", 1000);
+    private static final ConcurrentMap<DB, ConcurrentMap<String, QueryCache>> CACHES = new ConcurrentHashMap<>();
+    private static final Set<String> LOGICAL = new HashSet<>(Arrays.asList("$and", "$or", "$nor"));
+
+    private final AtomicLong generation = new AtomicLong();
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    private QueryCache() {
+    }
+
+    /**
+     * The cache of a collection.
+     *
+     * @param db the database.
+     * @param collectionName the collection.
+     * @return the cache shared by all managers of the database.
+     */
+    static QueryCache of(DB db, String collectionName) {
+        ConcurrentMap<String, QueryCache> caches = CACHES.get(db);
+        if (caches == null) {
+            caches = new ConcurrentHashMap<>();
+            ConcurrentMap<String, QueryCache> previous = CACHES.putIfAbsent(db, caches);
+            if (previous != null) {
+                caches = previous;
+            }
+        }
+        QueryCache cache = caches.get(collectionName);
+        if (cache == null) {
+            cache = new QueryCache();
+            QueryCache previous = caches.putIfAbsent(collectionName, cache);
+            if (previous != null) {
+                cache = previous;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Drop the cached results of the databases of a client being closed.
+     *
+     * @param client the client.
+     */
+    static void forget(Mongo client) {
+        for (Iterator<DB> iterator = CACHES.keySet().iterator(); iterator.hasNext();) {
+            if (iterator.next().getMongo() == client) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop the cached results of a collection, if it has any.
+     *
+     * @param db the database.
+     * @param collectionName the collection written to.
+     */
+    static void invalidate(DB db, String collectionName) {
+        ConcurrentMap<String, QueryCache> caches = CACHES.get(db);
+        QueryCache cache = caches == null ? null : caches.get(collectionName);
+        if (cache != null) {
+            cache.generation.incrementAndGet();
+            synchronized (cache.entries) {
+                cache.entries.clear();
+            }
+        }
+    }
+
+    /**
+     * The key of a query, the same for queries that only differ in the order
+     * of their criteria, at any depth. The order of the clauses of
+     * <code>$and</code>, <code>$or</code> and <code>$nor</code>, of any other
+     * array, and of the fields of an embedded document matched as a whole, is
+     * kept.
+     *
+     * @param operation the kind of result, i.e. <code>find</code>.
+     * @param query the query.
+     * @return the key.
+     */
+    static String key(String operation, MongoQuery query) {
+        StringBuilder key = new StringBuilder(operation);
+        key.append('|').append(JSON.serialize(normalize(query.getCriteria())));
+        key.append('|').append(JSON.serialize(query.getConstraits()));
+        key.append('|').append(JSON.serialize(query.getOrderBy()));
+        key.append('|').append(query.getSkip());
+        key.append('|').append(query.getLimit());
+        return key.toString();
+    }
+
+    private static DBObject normalize(DBObject criteria) {
+        BasicDBObject normalized = new BasicDBObject();
+        for (String field : new TreeSet<>(criteria.keySet())) {
+            Object value = criteria.get(field);
+            if (LOGICAL.contains(field) && value instanceof List) {
+                BasicDBList clauses = new BasicDBList();
+                for (Object clause : (List<?>) value) {
+                    clauses.add(clause instanceof DBObject ? normalize((DBObject) clause) : clause);
+                }
+                value = clauses;
+            } else {
+                value = normalizeValue(value);
+            }
+            normalized.put(field, value);
+        }
+        return normalized;
+    }
+
+    /**
+     * The value of a field in the criteria, with its operators in order when
+     * it is a document of operators.
+     */
+    private static Object normalizeValue(Object value) {
+        if (!(value instanceof DBObject) || value instanceof List) {
+            return value;
+        }
+        DBObject operators = (DBObject) value;
+        for (String operator : operators.keySet()) {
+            if (!operator.startsWith("$")) {
+                return value;
+            }
+        }
+        BasicDBObject normalized = new BasicDBObject();
+        for (String operator : new TreeSet<>(operators.keySet())) {
+            Object argument = operators.get(operator);
+            if (operator.equals("$elemMatch") && argument instanceof DBObject && !(argument instanceof List)) {
+                argument = normalize((DBObject) argument);
+            } else if (operator.equals("$not")) {
+                argument = normalizeValue(argument);
+            }
+            normalized.put(operator, argument);
+        }
+        return normalized;
+    }
+
+    /**
+     * The value of {@link #generation}, to be read before running the query
+     * whose result is cached.
+     */
+    long stamp() {
+        return generation.get();
+    }
+
+    /**
+     * @return a copy of the cached documents, <code>null</code> if there are
+     * none.
+     */
+    List<DBObject> getDocuments(String key) {
+        Object value = get(key);
+        if (!(value instanceof byte[][])) {
+            return null;
+        }
+        DefaultDBDecoder decoder = new DefaultDBDecoder();
+        List<DBObject> documents = new ArrayList<>();
+        for (byte[] document : (byte[][]) value) {
+            documents.add(decoder.decode(document, (DBCollection) null));
+        }
+        return documents;
+    }
+
+    void putDocuments(String key, List<DBObject> documents, int ttl, long stamp) {
+        DefaultDBEncoder encoder = new DefaultDBEncoder();
+        byte[][] value = new byte[documents.size()][];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = encoder.encode(documents.get(i));
+        }
+        put(key, value, ttl, stamp);
+    }
+
+    /**
+     * @return the cached count, <code>null</code> if there is none.
+     */
+    Long getCount(String key) {
+        Object value = get(key);
+        return value instanceof Long ? (Long) value : null;
+    }
+
+    void putCount(String key, long count, int ttl, long stamp) {
+        put(key, count, ttl, stamp);
+    }
+
+    private Object get(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expires - System.nanoTime() < 0) {
+                entries.remove(key);
+                return null;
+            }
+            return entry.value;
+        }
+    }
+
+    private void put(String key, Object value, int ttl, long stamp) {
+        synchronized (entries) {
+            if (generation.get() == stamp) {
+                entries.put(key, new Entry(value, System.nanoTime() + TimeUnit.SECONDS.toNanos(ttl)));
+            }
+        }
+    }
+
+    /**
+     * A cached result.
+     */
+    private static final class Entry {
+
+        private final Object value;
+        private final long expires;
+
+        Entry(Object value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+}
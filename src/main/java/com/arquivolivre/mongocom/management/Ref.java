@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>..
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.arquivolivre.mongocom.mapping.ClassMapping;
+import com.arquivolivre.mongocom.mapping.FieldMapping;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A lazily loaded <code>@Reference</code>. A field declared as
+ * <code>@Reference Ref&lt;Contact&gt; company</code> is not fetched when its
+ * owner is loaded, the referenced document is only fetched on the first call
+ * to {@link #get()}, or together with other references by
+ * {@link CollectionManager#initialize(java.util.Collection)}.
+ *
+ * @param <T> type of the referenced document.
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public final class Ref<T extends Object> {
+
+    private static final Logger LOG = Logger.getLogger(Ref.class.getName());
+    private final Class<T> type;
+    private final CollectionManager manager;
+    private final String id;
+    private volatile T value;
+    private volatile boolean loaded;
+
+    Ref(Class<T> type, String id, CollectionManager manager) {
+        this.type = type;
+        this.id = id;
+        this.manager = manager;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Ref(T value) {
+        this.type = (Class<T>) value.getClass();
+        this.id = null;
+        this.manager = null;
+        this.value = value;
+        this.loaded = true;
+    }
+
+    /**
+     * Create a reference to a document, which is saved when its owner is
+     * saved.
+     *
+     * @param <T> type of the referenced document.
+     * @param document the referenced document.
+     * @return a loaded reference.
+     */
+    public static <T extends Object> Ref<T> of(T document) {
+        if (document == null) {
+            throw new IllegalArgumentException("The referenced document can not be null.");
+        }
+        return new Ref<>(document);
+    }
+
+    /**
+     * The referenced document, fetched on the first call.
+     *
+     * @return the document, <code>null</code> if it doesn't exist.
+     */
+    public T get() {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) {
+                    value = manager.findById(type, id);
+                    loaded = true;
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * The <code>_id</code> of the referenced document.
+     *
+     * @return the <code>_id</code>, <code>null</code> if the document was
+     * not saved yet or has no <code>@ObjectId</code> field.
+     */
+    public String getId() {
+        if (id != null) {
+            return id;
+        }
+        FieldMapping field = ClassMapping.of(type).getObjectIdField();
+        try {
+            return field == null ? null : (String) field.get(value);
+        } catch (IllegalAccessException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    synchronized void set(T value) {
+        this.value = value;
+        this.loaded = true;
+    }
+
+    @Override
+    public String toString() {
+        return "Ref{" + type.getSimpleName() + " " + getId() + (loaded ? "" : ", not loaded") + "}";
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.arquivolivre.mongocom.annotations.Tracked;
+import com.mongodb.DB;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import org.bson.BSON;
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+
+/**
+ * The state of a document of a {@link Tracked} class the last time it was
+ * loaded from or written to a database, kept encoded so later changes to the
+ * object, or to the values it shares with the loaded document, do not change
+ * it.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+final class Snapshot {
+
+    private final DB db;
+    private final String id;
+    private byte[] state;
+    private byte[] raw;
+    private boolean withoutId;
+
+    /**
+     * @param db database the document was loaded from or written to.
+     * @param id the <code>_id</code> of the document.
+     * @param document the document, as mapped by the manager.
+     */
+    Snapshot(DB db, String id, BSONObject document) {
+        this.db = db;
+        this.id = id;
+        this.state = encode(document);
+    }
+
+    /**
+     * A snapshot of a document as read from the database, stored as read and
+     * only put in order when it is first used.
+     *
+     * @param raw the encoded document.
+     * @param withoutId whether the <code>_id</code> is not part of the state,
+     * as the object has no <code>@ObjectId</code> field.
+     */
+    Snapshot(DB db, String id, byte[] raw, boolean withoutId) {
+        this.db = db;
+        this.id = id;
+        this.raw = raw;
+        this.withoutId = withoutId;
+    }
+
+    private synchronized byte[] state() {
+        if (state == null) {
+            BSONObject document = BSON.decode(raw);
+            if (withoutId) {
+                document.removeField("_id");
+            }
+            state = encode(document);
+            raw = null;
+        }
+        return state;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    /**
+     * The stored state of the document, decoded on each call.
+     *
+     * @return a copy of the document.
+     */
+    BSONObject getState() {
+        return BSON.decode(state());
+    }
+
+    /**
+     * @param db a database.
+     * @return <code>true</code> if the document was loaded from or written to
+     * the given database.
+     */
+    boolean isFrom(DB db) {
+        return this.db == db;
+    }
+
+    /**
+     * Whether the given state of the document is the one stored in the
+     * database, regardless of the order of the fields.
+     *
+     * @param db database the document would be written to.
+     * @param document the current state of the document.
+     * @return <code>true</code> if writing it would not change anything.
+     */
+    boolean matches(DB db, BSONObject document) {
+        return this.db == db && Arrays.equals(state(), encode(document));
+    }
+
+    private static byte[] encode(BSONObject document) {
+        return BSON.encode((BSONObject) canonical(document));
+    }
+
+    private static Object canonical(Object value) {
+        if (value instanceof List) {
+            List<Object> list = new ArrayList<>();
+            for (Object item : (List<?>) value) {
+                list.add(canonical(item));
+            }
+            return list;
+        }
+        if (value instanceof BSONObject) {
+            BSONObject document = (BSONObject) value;
+            BasicBSONObject result = new BasicBSONObject();
+            for (String key : new TreeSet<>(document.keySet())) {
+                result.put(key, canonical(document.get(key)));
+            }
+            return result;
+        }
+        return value;
+    }
+
+}
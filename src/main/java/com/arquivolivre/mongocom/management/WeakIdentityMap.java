@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>..
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A concurrent map that compares its keys by identity and does not keep them
+ * from being garbage collected, so entities that override
+ * <code>equals</code> can be tracked without being retained.
+ *
+ * @param <K> type of the keys.
+ * @param <V> type of the values.
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+final class WeakIdentityMap<K, V> {
+
+    private final ConcurrentMap<IdentityKey<K>, V> map = new ConcurrentHashMap<>();
+    private final ReferenceQueue<K> queue = new ReferenceQueue<>();
+
+    V get(K key) {
+        expunge();
+        return map.get(new IdentityKey<>(key, null));
+    }
+
+    boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    void put(K key, V value) {
+        expunge();
+        map.put(new IdentityKey<>(key, queue), value);
+    }
+
+    V remove(K key) {
+        expunge();
+        return map.remove(new IdentityKey<>(key, null));
+    }
+
+    int size() {
+        expunge();
+        return map.size();
+    }
+
+    private void expunge() {
+        Object reference;
+        while ((reference = queue.poll()) != null) {
+            map.remove(reference);
+        }
+    }
+
+    private static final class IdentityKey<K> extends WeakReference<K> {
+
+        private final int hash;
+
+        IdentityKey(K referent, ReferenceQueue<K> queue) {
+            super(referent, queue);
+            this.hash = System.identityHashCode(referent);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof IdentityKey)) {
+                return false;
+            }
+            Object referent = get();
+            return referent != null && referent == ((IdentityKey<?>) obj).get();
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.mapping;
+
+import java.lang.reflect.Field;
+
+/**
+ * Strategy used by {@link ClassMapping} to create the accessors of a mapped
+ * class.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public interface AccessorFactory {
+
+    /**
+     * Create the accessor of a field, the field is already accessible.
+     *
+     * @param field a mapped field.
+     * @return the accessor.
+     */
+    PropertyAccessor createAccessor(Field field);
+
+    /**
+     * Create the instantiator of a class, which uses its no-arg constructor.
+     *
+     * @param type a mapped class.
+     * @return the instantiator.
+     */
+    Instantiator createInstantiator(Class<?> type);
+
+}
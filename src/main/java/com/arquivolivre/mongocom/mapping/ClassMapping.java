@@ -0,0 +1,243 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.mapping;
+
+import com.arquivolivre.mongocom.annotations.Document;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Mapping information of a class, built once per class on first use and
+ * shared by every <code>CollectionManager</code>, so the mapping itself does
+ * not need to look up fields or annotations again.
+ *
+ * <p>When the class has a {@link DocumentMapper} generated at compile time
+ * it is used to build the mapping, otherwise the class is scanned by
+ * reflection.</p>
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public final class ClassMapping {
+
+    /**
+     * Suffix appended to the class name to name its generated mapper.
+     */
+    public static final String MAPPER_SUFFIX = "_MongoMapper";
+    private static final Logger LOG = Logger.getLogger(ClassMapping.class.getName());
+    private static volatile AccessorFactory accessorFactory = createDefaultAccessorFactory();
+    private static final ClassValue<ClassMapping> MAPPINGS = new ClassValue<ClassMapping>() {
+        @Override
+        protected ClassMapping computeValue(Class<?> type) {
+            ClassMapping mapping = generatedMapping(type);
+            if (mapping == null) {
+                mapping = reflectMapping(type);
+            }
+            return mapping;
+        }
+    };
+
+    private final Class<?> type;
+    private final String collectionName;
+    private final List<FieldMapping> fields;
+    private final List<FieldMapping> indexedFields;
+    private final FieldMapping objectIdField;
+    private final Instantiator instantiator;
+
+    private ClassMapping(Builder builder) {
+        this.type = builder.type;
+        this.collectionName = builder.collectionName;
+        this.instantiator = builder.instantiator;
+        List<FieldMapping> indexed = new ArrayList<>();
+        List<FieldMapping> objectIds = new ArrayList<>();
+        for (FieldMapping mapping : builder.fields) {
+            if (mapping.isIndexed()) {
+                indexed.add(mapping);
+            }
+            if (mapping.isObjectId()) {
+                objectIds.add(mapping);
+            }
+        }
+        if (objectIds.size() > 1) {
+            LOG.log(Level.WARNING, "There are more than one @ObjectId field in {0}. Assuming the first one.", type.getName());
+        }
+        this.fields = Collections.unmodifiableList(new ArrayList<>(builder.fields));
+        this.indexedFields = Collections.unmodifiableList(indexed);
+        this.objectIdField = objectIds.isEmpty() ? null : objectIds.get(0);
+    }
+
+    private static ClassMapping reflectMapping(Class<?> type) {
+        AccessorFactory factory = accessorFactory;
+        Builder builder = builder(type).instantiator(factory.createInstantiator(type));
+        Document document = type.getAnnotation(Document.class);
+        if (document != null) {
+            builder.collection(document.collection().equals("") ? type.getSimpleName() : document.collection());
+        }
+        for (Field field : type.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic()) {
+                continue;
+            }
+            field.setAccessible(true);
+            builder.field(FieldMapping.of(field, factory.createAccessor(field)));
+        }
+        return builder.build();
+    }
+
+    private static ClassMapping generatedMapping(Class<?> type) {
+        String name = type.getName();
+        int packageEnd = name.lastIndexOf('.') + 1;
+        String mapperName = name.substring(0, packageEnd) + name.substring(packageEnd).replace('$', '_') + MAPPER_SUFFIX;
+        try {
+            Class<?> mapperClass = Class.forName(mapperName, true, type.getClassLoader());
+            DocumentMapper mapper = (DocumentMapper) mapperClass.newInstance();
+            return mapper.createMapping();
+        } catch (ClassNotFoundException ex) {
+            return null;
+        } catch (InstantiationException | IllegalAccessException | ClassCastException | LinkageError ex) {
+            LOG.log(Level.WARNING, "Ignoring the generated mapper of {0}: {1}", new Object[]{name, ex});
+            return null;
+        }
+    }
+
+    private static AccessorFactory createDefaultAccessorFactory() {
+        if ("reflection".equals(System.getProperty("mongocom.accessors"))) {
+            return new ReflectionAccessorFactory();
+        }
+        return new MethodHandleAccessorFactory();
+    }
+
+    /**
+     * Replace the strategy used to access fields and constructors, it only
+     * applies to classes mapped by reflection after this call. The default one
+     * uses <code>MethodHandle</code>s, unless the system property
+     * <code>mongocom.accessors</code> is set to <code>reflection</code>.
+     *
+     * @param factory the new strategy.
+     */
+    public static void setAccessorFactory(AccessorFactory factory) {
+        accessorFactory = factory;
+    }
+
+    /**
+     * The mapping of the given class, built on the first call.
+     *
+     * @param type a mapped class.
+     * @return the mapping shared by all callers.
+     */
+    public static ClassMapping of(Class<?> type) {
+        return MAPPINGS.get(type);
+    }
+
+    /**
+     * Start the mapping of a class without scanning it, used by the mappers
+     * generated at compile time.
+     *
+     * @param type the mapped class.
+     * @return a builder of the mapping.
+     */
+    public static Builder builder(Class<?> type) {
+        return new Builder(type);
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    /**
+     * Create a new instance of the mapped class using its no-arg constructor.
+     *
+     * @param <A> the mapped class.
+     * @return a new instance.
+     * @throws InstantiationException
+     * @throws IllegalAccessException
+     */
+    @SuppressWarnings("unchecked")
+    public <A extends Object> A newInstance() throws InstantiationException, IllegalAccessException {
+        return (A) instantiator.newInstance();
+    }
+
+    /**
+     * The collection name declared by <code>@Document</code>, or the simple
+     * name of the class when it is not declared.
+     *
+     * @return the collection name, <code>null</code> if the class is not a
+     * <code>@Document</code>.
+     */
+    public String getCollectionName() {
+        return collectionName;
+    }
+
+    public List<FieldMapping> getFields() {
+        return fields;
+    }
+
+    public List<FieldMapping> getIndexedFields() {
+        return indexedFields;
+    }
+
+    /**
+     * The field annotated with <code>@ObjectId</code>.
+     *
+     * @return the first <code>@ObjectId</code> field, <code>null</code> if
+     * there is none.
+     */
+    public FieldMapping getObjectIdField() {
+        return objectIdField;
+    }
+
+    /**
+     * Builder of a {@link ClassMapping}, fields are kept in the order they
+     * are added.
+     */
+    public static final class Builder {
+
+        private final Class<?> type;
+        private final List<FieldMapping> fields = new ArrayList<>();
+        private String collectionName;
+        private Instantiator instantiator;
+
+        private Builder(Class<?> type) {
+            this.type = type;
+        }
+
+        public Builder collection(String collectionName) {
+            this.collectionName = collectionName;
+            return this;
+        }
+
+        public Builder instantiator(Instantiator instantiator) {
+            this.instantiator = instantiator;
+            return this;
+        }
+
+        public Builder field(FieldMapping field) {
+            fields.add(field);
+            return this;
+        }
+
+        public ClassMapping build() {
+            if (instantiator == null) {
+                throw new IllegalStateException("No instantiator for " + type.getName() + ".");
+            }
+            return new ClassMapping(this);
+        }
+    }
+
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.mapping;
+
+/**
+ * Describes the mapping of a class without scanning it at runtime.
+ * Implementations are generated at compile time by the
+ * <code>mongocom-processor</code> annotation processor, in the package of the
+ * mapped class and named after it with the
+ * {@link ClassMapping#MAPPER_SUFFIX} suffix, e.g.
+ * <code>Contact_MongoMapper</code>; they are picked up by
+ * {@link ClassMapping#of(Class)} when present.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public interface DocumentMapper {
+
+    ClassMapping createMapping();
+
+}
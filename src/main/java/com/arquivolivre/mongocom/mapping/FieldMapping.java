@@ -0,0 +1,388 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.mapping;
+
+import com.arquivolivre.mongocom.annotations.GeneratedValue;
+import com.arquivolivre.mongocom.annotations.Id;
+import com.arquivolivre.mongocom.annotations.Index;
+import com.arquivolivre.mongocom.annotations.Internal;
+import com.arquivolivre.mongocom.annotations.ObjectId;
+import com.arquivolivre.mongocom.annotations.Reference;
+import com.arquivolivre.mongocom.utils.Generator;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+
+/**
+ * Mapping information of a single field of a mapped class, resolved once when
+ * its {@link ClassMapping} is built.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public final class FieldMapping {
+
+    private final PropertyAccessor accessor;
+    private final String name;
+    private final Class<?> declaringClass;
+    private final Class<?> type;
+    private final Class<?> elementType;
+    private final boolean enumType;
+    private final boolean primitive;
+    private final boolean reference;
+    private final boolean internal;
+    private final boolean id;
+    private final boolean generatedValue;
+    private final boolean objectId;
+    private final boolean autoIncrement;
+    private final boolean updateGeneratedValue;
+    private final Class<?> idGeneratorClass;
+    private final Class<?> valueGeneratorClass;
+    private final Index index;
+    private volatile Generator idGenerator;
+    private volatile Generator valueGenerator;
+
+    private FieldMapping(Builder builder) {
+        this.accessor = builder.accessor;
+        this.name = builder.name;
+        this.declaringClass = builder.declaringClass;
+        this.type = builder.type;
+        this.elementType = builder.elementType;
+        this.enumType = type.isEnum();
+        this.primitive = type.isPrimitive();
+        this.reference = builder.reference;
+        this.internal = builder.internal;
+        this.objectId = builder.objectId;
+        this.id = builder.id;
+        this.autoIncrement = builder.autoIncrement;
+        this.idGeneratorClass = builder.idGeneratorClass;
+        this.generatedValue = builder.generatedValue;
+        this.updateGeneratedValue = builder.updateGeneratedValue;
+        this.valueGeneratorClass = builder.valueGeneratorClass;
+        this.index = builder.index;
+    }
+
+    /**
+     * Build the mapping of a field from its declaration and annotations.
+     */
+    static FieldMapping of(Field field, PropertyAccessor accessor) {
+        Builder builder = builder(field.getName(), field.getDeclaringClass(), field.getType())
+                .elementType(resolveElementType(field))
+                .accessor(accessor);
+        if (field.isAnnotationPresent(Reference.class)) {
+            builder.reference();
+        }
+        if (field.isAnnotationPresent(Internal.class)) {
+            builder.internal();
+        }
+        if (field.isAnnotationPresent(ObjectId.class)) {
+            builder.objectId();
+        }
+        Id idAnnotation = field.getAnnotation(Id.class);
+        if (idAnnotation != null) {
+            builder.id(idAnnotation.autoIncrement(), idAnnotation.generator());
+        }
+        GeneratedValue generatedAnnotation = field.getAnnotation(GeneratedValue.class);
+        if (generatedAnnotation != null) {
+            builder.generatedValue(generatedAnnotation.update(), generatedAnnotation.generator());
+        }
+        builder.index = field.getAnnotation(Index.class);
+        return builder.build();
+    }
+
+    private static Class<?> resolveElementType(Field field) {
+        Type genericType = field.getGenericType();
+        if (!(genericType instanceof ParameterizedType)) {
+            return null;
+        }
+        Class<?> result = null;
+        for (Type argument : ((ParameterizedType) genericType).getActualTypeArguments()) {
+            while (argument instanceof ParameterizedType) {
+                Type[] arguments = ((ParameterizedType) argument).getActualTypeArguments();
+                argument = arguments[arguments.length - 1];
+            }
+            result = argument instanceof Class ? (Class<?>) argument : null;
+        }
+        return result;
+    }
+
+    /**
+     * Start the mapping of a field without reading its declaration, used by
+     * the mappers generated at compile time.
+     *
+     * @param name field name.
+     * @param declaringClass class that declares the field.
+     * @param type declared type of the field.
+     * @return a builder of the mapping.
+     */
+    public static Builder builder(String name, Class<?> declaringClass, Class<?> type) {
+        return new Builder(name, declaringClass, type);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Class<?> getDeclaringClass() {
+        return declaringClass;
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    /**
+     * The class of the elements of a generic collection field, i.e.
+     * <code>Phone</code> for a <code>List&lt;Phone&gt;</code>.
+     *
+     * @return the last type argument of the field or <code>null</code> if it
+     * can not be resolved to a class.
+     */
+    public Class<?> getElementType() {
+        return elementType;
+    }
+
+    public boolean isEnum() {
+        return enumType;
+    }
+
+    public boolean isPrimitive() {
+        return primitive;
+    }
+
+    public boolean isReference() {
+        return reference;
+    }
+
+    public boolean isInternal() {
+        return internal;
+    }
+
+    public boolean isId() {
+        return id;
+    }
+
+    public boolean isAutoIncrement() {
+        return autoIncrement;
+    }
+
+    public boolean isGeneratedValue() {
+        return generatedValue;
+    }
+
+    public boolean isUpdateGeneratedValue() {
+        return updateGeneratedValue;
+    }
+
+    public boolean isObjectId() {
+        return objectId;
+    }
+
+    public boolean isIndexed() {
+        return index != null;
+    }
+
+    public Index getIndex() {
+        return index;
+    }
+
+    /**
+     * The generator declared by the <code>@Id</code> annotation, created on
+     * first use and shared afterwards.
+     *
+     * @return the generator instance.
+     * @throws InstantiationException
+     * @throws IllegalAccessException
+     */
+    public Generator getIdGenerator() throws InstantiationException, IllegalAccessException {
+        Generator generator = idGenerator;
+        if (generator == null) {
+            generator = (Generator) idGeneratorClass.newInstance();
+            idGenerator = generator;
+        }
+        return generator;
+    }
+
+    /**
+     * The generator declared by the <code>@GeneratedValue</code> annotation,
+     * created on first use and shared afterwards.
+     *
+     * @return the generator instance.
+     * @throws InstantiationException
+     * @throws IllegalAccessException
+     */
+    public Generator getValueGenerator() throws InstantiationException, IllegalAccessException {
+        Generator generator = valueGenerator;
+        if (generator == null) {
+            generator = (Generator) valueGeneratorClass.newInstance();
+            valueGenerator = generator;
+        }
+        return generator;
+    }
+
+    public Object get(Object target) throws IllegalAccessException {
+        return accessor.get(target);
+    }
+
+    public void set(Object target, Object value) throws IllegalAccessException {
+        accessor.set(target, value);
+    }
+
+    /**
+     * Builder of a {@link FieldMapping}, each method stands for the annotation
+     * of the same name.
+     */
+    public static final class Builder {
+
+        private final String name;
+        private final Class<?> declaringClass;
+        private final Class<?> type;
+        private Class<?> elementType;
+        private PropertyAccessor accessor;
+        private boolean reference;
+        private boolean internal;
+        private boolean objectId;
+        private boolean id;
+        private boolean autoIncrement;
+        private Class<?> idGeneratorClass;
+        private boolean generatedValue;
+        private boolean updateGeneratedValue;
+        private Class<?> valueGeneratorClass;
+        private Index index;
+
+        private Builder(String name, Class<?> declaringClass, Class<?> type) {
+            this.name = name;
+            this.declaringClass = declaringClass;
+            this.type = type;
+        }
+
+        public Builder elementType(Class<?> elementType) {
+            this.elementType = elementType;
+            return this;
+        }
+
+        public Builder accessor(PropertyAccessor accessor) {
+            this.accessor = accessor;
+            return this;
+        }
+
+        public Builder reference() {
+            this.reference = true;
+            return this;
+        }
+
+        public Builder internal() {
+            this.internal = true;
+            return this;
+        }
+
+        public Builder objectId() {
+            this.objectId = true;
+            return this;
+        }
+
+        public Builder id(boolean autoIncrement, Class<?> generator) {
+            this.id = true;
+            this.autoIncrement = autoIncrement;
+            this.idGeneratorClass = generator;
+            return this;
+        }
+
+        public Builder generatedValue(boolean update, Class<?> generator) {
+            this.generatedValue = true;
+            this.updateGeneratedValue = update;
+            this.valueGeneratorClass = generator;
+            return this;
+        }
+
+        public Builder index(String value, boolean unique, boolean sparse, boolean dropDups, boolean background, int order, String type) {
+            this.index = new IndexDeclaration(value, unique, sparse, dropDups, background, order, type);
+            return this;
+        }
+
+        public FieldMapping build() {
+            if (accessor == null) {
+                throw new IllegalStateException("No accessor for the field " + name + ".");
+            }
+            return new FieldMapping(this);
+        }
+    }
+
+    /**
+     * The <code>@Index</code> of a field described by a generated mapper.
+     */
+    private static final class IndexDeclaration implements Index {
+
+        private final String value;
+        private final boolean unique;
+        private final boolean sparse;
+        private final boolean dropDups;
+        private final boolean background;
+        private final int order;
+        private final String type;
+
+        IndexDeclaration(String value, boolean unique, boolean sparse, boolean dropDups, boolean background, int order, String type) {
+            this.value = value;
+            this.unique = unique;
+            this.sparse = sparse;
+            this.dropDups = dropDups;
+            this.background = background;
+            this.order = order;
+            this.type = type;
+        }
+
+        @Override
+        public String value() {
+            return value;
+        }
+
+        @Override
+        public boolean unique() {
+            return unique;
+        }
+
+        @Override
+        public boolean sparse() {
+            return sparse;
+        }
+
+        @Override
+        public boolean dropDups() {
+            return dropDups;
+        }
+
+        @Override
+        public boolean background() {
+            return background;
+        }
+
+        @Override
+        public int order() {
+            return order;
+        }
+
+        @Override
+        public String type() {
+            return type;
+        }
+
+        @Override
+        public Class<? extends Annotation> annotationType() {
+            return Index.class;
+        }
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.mapping;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Accessors backed by <code>MethodHandle</code>s resolved once per field and
+ * constructor, so the access checks of the reflective calls are paid only
+ * when the mapping is built. Fields or classes that can not be unreflected
+ * fall back to the {@link ReflectionAccessorFactory}.
+ *
+ * <p>The handles of this factory are held by instances and typed with
+ * <code>Object</code>, so the JIT can not inline them as it does the
+ * <code>static final</code> ones the generated mappers keep from
+ * {@link #getter}, {@link #setter} and {@link #constructor}.</p>
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public class MethodHandleAccessorFactory implements AccessorFactory {
+
+    private static final Logger LOG = Logger.getLogger(MethodHandleAccessorFactory.class.getName());
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+    private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private final AccessorFactory fallback = new ReflectionAccessorFactory();
+
+    @Override
+    public PropertyAccessor createAccessor(Field field) {
+        if (Modifier.isStatic(field.getModifiers())) {
+            return fallback.createAccessor(field);
+        }
+        try {
+            MethodHandle getter = lookup.unreflectGetter(field).asType(GETTER_TYPE);
+            MethodHandle setter = lookup.unreflectSetter(field).asType(SETTER_TYPE);
+            return new MethodHandleAccessor(field, getter, setter);
+        } catch (IllegalAccessException ex) {
+            LOG.log(Level.FINE, "Using reflection to access {0}: {1}", new Object[]{field, ex.getMessage()});
+            return fallback.createAccessor(field);
+        }
+    }
+
+    @Override
+    public Instantiator createInstantiator(Class<?> type) {
+        try {
+            Constructor<?> constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return new MethodHandleInstantiator(lookup.unreflectConstructor(constructor).asType(CONSTRUCTOR_TYPE));
+        } catch (NoSuchMethodException | SecurityException | IllegalAccessException ex) {
+            LOG.log(Level.FINE, "Using reflection to instantiate {0}: {1}", new Object[]{type, ex.getMessage()});
+            return fallback.createInstantiator(type);
+        }
+    }
+
+    /**
+     * The getter of a field, typed <code>(declaring class)field type</code>,
+     * for the mappers generated at compile time to keep in a
+     * <code>static final</code> field and call with <code>invokeExact</code>.
+     *
+     * @param type the class declaring the field.
+     * @param name the name of the field.
+     * @return the getter of the field.
+     */
+    public static MethodHandle getter(Class<?> type, String name) {
+        try {
+            return MethodHandles.lookup().unreflectGetter(accessibleField(type, name));
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException("Unable to read " + type.getName() + "." + name + ".", ex);
+        }
+    }
+
+    /**
+     * The setter of a field, typed <code>(declaring class, field
+     * type)void</code>, see {@link #getter}.
+     *
+     * @param type the class declaring the field.
+     * @param name the name of the field.
+     * @return the setter of the field.
+     */
+    public static MethodHandle setter(Class<?> type, String name) {
+        try {
+            return MethodHandles.lookup().unreflectSetter(accessibleField(type, name));
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException("Unable to write " + type.getName() + "." + name + ".", ex);
+        }
+    }
+
+    /**
+     * The no-arg constructor of a class, typed <code>()class</code>, see
+     * {@link #getter}.
+     *
+     * @param type the class to instantiate.
+     * @return the constructor of the class.
+     */
+    public static MethodHandle constructor(Class<?> type) {
+        try {
+            Constructor<?> constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(constructor);
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new IllegalStateException("Unable to instantiate " + type.getName() + ".", ex);
+        }
+    }
+
+    private static Field accessibleField(Class<?> type, String name) {
+        try {
+            Field field = type.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException ex) {
+            throw new IllegalStateException("The mapper of " + type.getName() + " is out of date.", ex);
+        }
+    }
+
+    private static final class MethodHandleAccessor implements PropertyAccessor {
+
+        private final Field field;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        MethodHandleAccessor(Field field, MethodHandle getter, MethodHandle setter) {
+            this.field = field;
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        @Override
+        public Object get(Object target) {
+            try {
+                return (Object) getter.invokeExact(target);
+            } catch (RuntimeException | Error ex) {
+                throw ex;
+            } catch (Throwable ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        public void set(Object target, Object value) throws IllegalAccessException {
+            try {
+                setter.invokeExact(target, value);
+            } catch (ClassCastException ex) {
+                // primitive widening, e.g. an Integer into a long field, is
+                // only performed by Field.set
+                field.set(target, value);
+            } catch (RuntimeException | Error ex) {
+                throw ex;
+            } catch (Throwable ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    private static final class MethodHandleInstantiator implements Instantiator {
+
+        private final MethodHandle constructor;
+
+        MethodHandleInstantiator(MethodHandle constructor) {
+            this.constructor = constructor;
+        }
+
+        @Override
+        public Object newInstance() throws InstantiationException {
+            try {
+                return (Object) constructor.invokeExact();
+            } catch (RuntimeException | Error ex) {
+                throw ex;
+            } catch (Throwable ex) {
+                InstantiationException instantiation = new InstantiationException(ex.getMessage());
+                instantiation.initCause(ex);
+                throw instantiation;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.mapping;
+
+import java.lang.reflect.Field;
+
+/**
+ * Accessors backed by <code>Field.get</code>, <code>Field.set</code> and
+ * <code>Class.newInstance</code>.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public class ReflectionAccessorFactory implements AccessorFactory {
+
+    @Override
+    public PropertyAccessor createAccessor(final Field field) {
+        return new PropertyAccessor() {
+            @Override
+            public Object get(Object target) throws IllegalAccessException {
+                return field.get(target);
+            }
+
+            @Override
+            public void set(Object target, Object value) throws IllegalAccessException {
+                field.set(target, value);
+            }
+        };
+    }
+
+    @Override
+    public Instantiator createInstantiator(final Class<?> type) {
+        return new Instantiator() {
+            @Override
+            public Object newInstance() throws InstantiationException, IllegalAccessException {
+                return type.newInstance();
+            }
+        };
+    }
+
+}
@@ -19,26 +19,130 @@ import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+import com.mongodb.MongoException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Generates sequential integers per class, stored in the collection
+ * <code>values_&lt;class&gt;</code>.
+ *
+ * <p>Values are reserved in blocks with an atomic <code>$inc</code> on the
+ * stored counter, by default of 100 values or the size set in the system
+ * property <code>mongocom.generator.blockSize</code>, and handed out from
+ * memory until the block runs out. Values are unique among threads and
+ * processes sharing the database, but not contiguous: the rest of a block is
+ * lost when the process stops.</p>
  *
  * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>
  */
 public class IntegerGenerator implements Generator {
 
+    private static final String FIELD = "generatedValue";
+    private static final int BLOCK_SIZE = Integer.getInteger("mongocom.generator.blockSize", 100);
+    private static final ConcurrentMap<DB, ConcurrentMap<String, Block>> BLOCKS = new ConcurrentHashMap<>();
+
     @Override
     public Integer generateValue(Class parent, DB db) {
-        DBCollection collection = db.getCollection("values_" + parent.getSimpleName());
-        DBObject o = collection.findOne();
-        int value = 0;
-        if (o != null) {
-            value = (int) o.get("generatedValue");
-        } else {
-            o = new BasicDBObject("generatedValue", value);
+        String collectionName = "values_" + parent.getSimpleName();
+        Block block = block(db, collectionName);
+        int value = block.next();
+        while (value == 0) {
+            synchronized (block) {
+                value = block.next();
+                if (value == 0) {
+                    block.reserve(reserve(db.getCollection(collectionName)));
+                }
+            }
         }
-        o.put("generatedValue", ++value);
-        collection.save(o);
         return value;
     }
 
+    /**
+     * Drop the blocks reserved of the databases of a client being closed.
+     *
+     * @param client the client.
+     */
+    public static void forget(Mongo client) {
+        for (Iterator<DB> iterator = BLOCKS.keySet().iterator(); iterator.hasNext();) {
+            if (iterator.next().getMongo() == client) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static Block block(DB db, String collectionName) {
+        ConcurrentMap<String, Block> blocks = BLOCKS.get(db);
+        if (blocks == null) {
+            blocks = new ConcurrentHashMap<>();
+            ConcurrentMap<String, Block> previous = BLOCKS.putIfAbsent(db, blocks);
+            if (previous != null) {
+                blocks = previous;
+            }
+        }
+        Block block = blocks.get(collectionName);
+        if (block == null) {
+            block = new Block();
+            Block previous = blocks.putIfAbsent(collectionName, block);
+            if (previous != null) {
+                block = previous;
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Reserve the next block in the stored counter. The first counter of a
+     * collection is created by an upsert, if another process creates it at the
+     * same time the reservation is retried on the existing one.
+     *
+     * @return the last value of the reserved block.
+     */
+    private static int reserve(DBCollection collection) {
+        DBObject increment = new BasicDBObject("$inc", new BasicDBObject(FIELD, BLOCK_SIZE));
+        DBObject counter = collection.findAndModify(new BasicDBObject(), null, null, false, increment, true, false);
+        if (counter == null) {
+            try {
+                counter = collection.findAndModify(new BasicDBObject("_id", FIELD), null, null, false, increment, true, true);
+            } catch (MongoException ex) {
+                counter = collection.findAndModify(new BasicDBObject(), null, null, false, increment, true, false);
+                if (counter == null) {
+                    throw ex;
+                }
+            }
+        }
+        return ((Number) counter.get(FIELD)).intValue();
+    }
+
+    /**
+     * The values reserved by this process, read without locking.
+     */
+    static final class Block {
+
+        private final AtomicInteger next = new AtomicInteger(1);
+        private volatile int last;
+
+        /**
+         * @return the next value, <code>0</code> if the block ran out.
+         */
+        int next() {
+            int value = next.get();
+            while (value <= last) {
+                if (next.compareAndSet(value, value + 1)) {
+                    return value;
+                }
+                value = next.get();
+            }
+            return 0;
+        }
+
+        void reserve(int last) {
+            next.set(last - BLOCK_SIZE + 1);
+            this.last = last;
+        }
+    }
+
 }
@@ -15,70 +15,265 @@
  */
 package com.arquivolivre.mongocom.utils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
+ * Describes a query to be compiled once into a {@link QueryTemplate}, e.g.
+ *
+ * <pre>
+ * QueryTemplate&lt;Contact&gt; byCompany = QueryPrototype.select("name", "email")
+ *         .from(Contact.class)
+ *         .where("company").equalsTo(QueryPrototype.param("company"))
+ *         .and("age").greaterThanOrEqualTo(18)
+ *         .compile();
+ * List&lt;Contact&gt; contacts = manager.find(Contact.class, byCompany.bind("ACME"));
+ * </pre>
+ *
+ * <p>The values given as {@link #param(java.lang.String)} are filled when the
+ * template is bound, the others are constants. Criteria joined by
+ * <code>and</code> bind tighter than <code>or</code>, so
+ * <code>where(a)...and(b)...or(c)...</code> matches (a and b) or c.</p>
  *
+ * @param <A> generic type of the collection.
  * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>
  */
-public class QueryPrototype {
+public final class QueryPrototype<A extends Object> {
+
+    private final String[] fields;
+    private final Class<A> collection;
+    private final List<Map<String, Object>> disjuncts = new ArrayList<>();
+    private Map<String, Object> conjunct;
+    private String field;
+    private String orderField;
+    private int order;
+    private int skip;
+    private int limit;
+
+    private QueryPrototype(String[] fields, Class<A> collection) {
+        this.fields = fields;
+        this.collection = collection;
+        this.conjunct = new LinkedHashMap<>();
+        disjuncts.add(conjunct);
+    }
 
-    public static void select(String... fields) {
+    /**
+     * Start a query that only returns the given fields.
+     *
+     * @param fields fields returned with the <code>_id</code>, none for all of
+     * them.
+     * @return the collection to choose.
+     */
+    public static Selection select(String... fields) {
+        return new Selection(fields.clone());
+    }
 
+    /**
+     * Start a query that returns whole documents.
+     *
+     * @param <A> generic type of the collection.
+     * @param collection the class of the collection.
+     * @return the prototype.
+     */
+    public static <A extends Object> QueryPrototype<A> from(Class<A> collection) {
+        return new QueryPrototype<>(new String[0], collection);
     }
 
-    public static void from(Class<?> collection) {
+    /**
+     * A value that is given when the template is bound.
+     *
+     * @param name name of the parameter, the same name used more than once is
+     * a single parameter.
+     * @return the placeholder.
+     */
+    public static Parameter param(String name) {
+        return new Parameter(name);
+    }
 
+    public QueryPrototype<A> where(String field) {
+        this.field = field;
+        return this;
     }
 
-    public static void where(String field) {
+    public QueryPrototype<A> and(String field) {
+        return where(field);
+    }
 
+    public QueryPrototype<A> or(String field) {
+        if (conjunct.isEmpty()) {
+            throw new IllegalStateException("or(" + field + ") must follow a criteria.");
+        }
+        conjunct = new LinkedHashMap<>();
+        disjuncts.add(conjunct);
+        return where(field);
     }
 
-    public static void equalsTo(Object value) {
+    public QueryPrototype<A> equalsTo(Object value) {
+        String current = current();
+        if (conjunct.containsKey(current)) {
+            throw new IllegalStateException("The field " + current + " already has a criteria.");
+        }
+        conjunct.put(current, value);
+        return this;
+    }
 
+    public QueryPrototype<A> notEqualsTo(Object value) {
+        return operator("$ne", value);
     }
 
-    public static void notEqualsTo(Object value) {
+    public QueryPrototype<A> greaterThan(Object value) {
+        return operator("$gt", value);
+    }
 
+    /**
+     * @deprecated misspelled, use {@link #greaterThan(java.lang.Object)}.
+     */
+    @Deprecated
+    public QueryPrototype<A> graterThan(Object value) {
+        return greaterThan(value);
     }
 
-    public static void graterThan(Object value) {
+    public QueryPrototype<A> lessThan(Object value) {
+        return operator("$lt", value);
+    }
 
+    public QueryPrototype<A> greaterThanOrEqualTo(Object value) {
+        return operator("$gte", value);
     }
 
-    public static void lessThan(Object value) {
+    public QueryPrototype<A> lessThanOrEqualTo(Object value) {
+        return operator("$lte", value);
+    }
 
+    public QueryPrototype<A> exists() {
+        return operator("$exists", true);
     }
 
-    public static void greaterThanOrEqualTo(Object value) {
+    public QueryPrototype<A> notExists() {
+        return operator("$exists", false);
+    }
 
+    /**
+     * @param values the values, or a single {@link Parameter} bound to a
+     * collection or an array.
+     */
+    public QueryPrototype<A> in(Object... values) {
+        return operator("$in", list(values));
     }
 
-    public static void lessThanOrEqualTo(Object valu) {
+    /**
+     * @param values the values, or a single {@link Parameter} bound to a
+     * collection or an array.
+     */
+    public QueryPrototype<A> notIn(Object... values) {
+        return operator("$nin", list(values));
+    }
 
+    public QueryPrototype<A> orderBy(String field, int order) {
+        this.orderField = field;
+        this.order = order;
+        return this;
     }
 
-    public static void and(String field) {
+    public QueryPrototype<A> skip(int skip) {
+        this.skip = skip;
+        return this;
+    }
 
+    public QueryPrototype<A> limit(int limit) {
+        this.limit = limit;
+        return this;
     }
 
-    public static void or(String field) {
+    /**
+     * Build the template, the prototype can still be changed and compiled
+     * again without affecting it.
+     *
+     * @return the immutable template.
+     */
+    public QueryTemplate<A> compile() {
+        return new QueryTemplate<>(collection, fields, disjuncts, orderField, order, skip, limit);
+    }
 
+    private String current() {
+        if (field == null) {
+            throw new IllegalStateException("A criteria must follow where(field), and(field) or or(field).");
+        }
+        return field;
     }
 
-    public static void exists() {
+    @SuppressWarnings("unchecked")
+    private QueryPrototype<A> operator(String operator, Object value) {
+        String current = current();
+        Object criteria = conjunct.get(current);
+        if (!(criteria instanceof OperatorMap)) {
+            if (conjunct.containsKey(current)) {
+                throw new IllegalStateException("The field " + current + " already has an equality criteria.");
+            }
+            criteria = new OperatorMap();
+            conjunct.put(current, criteria);
+        }
+        ((Map<String, Object>) criteria).put(operator, value);
+        return this;
+    }
 
+    private static Object list(Object[] values) {
+        if (values.length == 1 && values[0] instanceof Parameter) {
+            return values[0];
+        }
+        return new ArrayList<>(Arrays.asList(values));
     }
 
-    public static void notExists() {
+    /**
+     * The operators of a field, told apart from an embedded document given to
+     * <code>equalsTo</code>.
+     */
+    static final class OperatorMap extends LinkedHashMap<String, Object> {
 
+        private static final long serialVersionUID = 1L;
     }
 
-    public static void in(Object... values) {
+    /**
+     * The collection of a query started by {@link #select(java.lang.String...)}.
+     */
+    public static final class Selection {
 
+        private final String[] fields;
+
+        private Selection(String[] fields) {
+            this.fields = fields;
+        }
+
+        public <A extends Object> QueryPrototype<A> from(Class<A> collection) {
+            return new QueryPrototype<>(fields, collection);
+        }
     }
 
-    public static void notIn(Object... values) {
+    /**
+     * A placeholder for a value given when the template is bound.
+     */
+    public static final class Parameter {
+
+        private final String name;
+
+        private Parameter(String name) {
+            if (name == null) {
+                throw new IllegalArgumentException("The name of a parameter can not be null.");
+            }
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
 
+        @Override
+        public String toString() {
+            return ":" + name;
+        }
     }
 
 }
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.utils;
+
+import com.arquivolivre.mongocom.management.MongoQuery;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.bson.types.ObjectId;
+
+/**
+ * A query compiled by {@link QueryPrototype#compile()}. The criteria are
+ * checked and laid out once, binding only copies the documents that hold a
+ * parameter and puts the values in their place; the parts without parameters
+ * are shared by all the queries bound, so they must not be changed through
+ * {@link MongoQuery#getQuery()}.
+ *
+ * <p>A template is immutable and can be bound by many threads at the same
+ * time.</p>
+ *
+ * @param <A> generic type of the collection.
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>
+ */
+public final class QueryTemplate<A extends Object> {
+
+    private final Class<A> collection;
+    private final String[] fields;
+    private final String orderField;
+    private final int order;
+    private final int skip;
+    private final int limit;
+    private final List<String> parameters;
+    private final DocumentNode criteria;
+
+    QueryTemplate(Class<A> collection, String[] fields, List<Map<String, Object>> disjuncts,
+            String orderField, int order, int skip, int limit) {
+        this.collection = collection;
+        this.fields = fields.clone();
+        this.orderField = orderField;
+        this.order = order;
+        this.skip = skip;
+        this.limit = limit;
+        Map<String, Integer> indexes = new LinkedHashMap<>();
+        if (disjuncts.size() == 1) {
+            criteria = conjunct(disjuncts.get(0), indexes);
+        } else {
+            Node[] alternatives = new Node[disjuncts.size()];
+            for (int i = 0; i < alternatives.length; i++) {
+                if (disjuncts.get(i).isEmpty()) {
+                    throw new IllegalStateException("or(field) must be followed by a criteria.");
+                }
+                alternatives[i] = constant(conjunct(disjuncts.get(i), indexes));
+            }
+            criteria = new DocumentNode(new String[]{"$or"}, new Node[]{constant(new ListNode(alternatives))});
+        }
+        this.parameters = Collections.unmodifiableList(new ArrayList<>(indexes.keySet()));
+    }
+
+    public Class<A> getCollectionClass() {
+        return collection;
+    }
+
+    /**
+     * @return the names of the parameters, in the order of the values of
+     * {@link #bind(java.lang.Object...)}.
+     */
+    public List<String> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * A query with the parameters set to the given values.
+     *
+     * @param values one value per parameter, in the order they first appear.
+     * @return a new query.
+     */
+    public MongoQuery bind(Object... values) {
+        if (values.length != parameters.size()) {
+            throw new IllegalArgumentException("Expected " + parameters.size() + " values for " + parameters + ", got " + values.length + ".");
+        }
+        return query(values);
+    }
+
+    /**
+     * A query with the parameters set to the given values.
+     *
+     * @param values the value of each parameter by its name.
+     * @return a new query.
+     */
+    public MongoQuery bind(Map<String, ?> values) {
+        Object[] ordered = new Object[parameters.size()];
+        for (int i = 0; i < ordered.length; i++) {
+            String name = parameters.get(i);
+            if (!values.containsKey(name)) {
+                throw new IllegalArgumentException("No value for the parameter " + name + ".");
+            }
+            ordered[i] = values.get(name);
+        }
+        return query(ordered);
+    }
+
+    private MongoQuery query(Object[] values) {
+        MongoQuery query = new MongoQuery(criteria.fill(values));
+        if (fields.length > 0) {
+            query.returnOnly(true, fields);
+        }
+        if (orderField != null) {
+            query.orderBy(orderField, order);
+        }
+        query.skip(skip);
+        query.limit(limit);
+        return query;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static DocumentNode conjunct(Map<String, Object> criteria, Map<String, Integer> indexes) {
+        String[] keys = new String[criteria.size()];
+        Node[] children = new Node[keys.length];
+        int i = 0;
+        for (Map.Entry<String, Object> entry : criteria.entrySet()) {
+            boolean id = entry.getKey().equals("_id");
+            keys[i] = entry.getKey();
+            if (entry.getValue() instanceof QueryPrototype.OperatorMap) {
+                Map<String, Object> operators = (Map<String, Object>) entry.getValue();
+                String[] names = operators.keySet().toArray(new String[operators.size()]);
+                Node[] operands = new Node[names.length];
+                for (int j = 0; j < names.length; j++) {
+                    boolean list = names[j].equals("$in") || names[j].equals("$nin");
+                    operands[j] = value(operators.get(names[j]), id, list, indexes);
+                }
+                children[i] = constant(new DocumentNode(names, operands));
+            } else {
+                children[i] = value(entry.getValue(), id, false, indexes);
+            }
+            i++;
+        }
+        return new DocumentNode(keys, children);
+    }
+
+    private static Node value(Object value, boolean id, boolean list, Map<String, Integer> indexes) {
+        if (value instanceof QueryPrototype.Parameter) {
+            String name = ((QueryPrototype.Parameter) value).getName();
+            Integer index = indexes.get(name);
+            if (index == null) {
+                index = indexes.size();
+                indexes.put(name, index);
+            }
+            return new SlotNode(index, id, list);
+        }
+        if (list) {
+            List<?> values = (List<?>) value;
+            Node[] items = new Node[values.size()];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = value(values.get(i), id, false, indexes);
+            }
+            return constant(new ListNode(items));
+        }
+        return new ConstantNode(convert(value, id));
+    }
+
+    /**
+     * The node itself, or its value if it has no parameters.
+     */
+    private static Node constant(Node node) {
+        return node.isConstant() ? new ConstantNode(node.fill(null)) : node;
+    }
+
+    private static Object convert(Object value, boolean id) {
+        return id && value instanceof String ? new ObjectId((String) value) : value;
+    }
+
+    /**
+     * A part of the criteria.
+     */
+    private interface Node {
+
+        boolean isConstant();
+
+        Object fill(Object[] values);
+    }
+
+    private static final class ConstantNode implements Node {
+
+        private final Object value;
+
+        ConstantNode(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean isConstant() {
+            return true;
+        }
+
+        @Override
+        public Object fill(Object[] values) {
+            return value;
+        }
+    }
+
+    private static final class SlotNode implements Node {
+
+        private final int index;
+        private final boolean id;
+        private final boolean list;
+
+        SlotNode(int index, boolean id, boolean list) {
+            this.index = index;
+            this.id = id;
+            this.list = list;
+        }
+
+        @Override
+        public boolean isConstant() {
+            return false;
+        }
+
+        @Override
+        public Object fill(Object[] values) {
+            Object value = values[index];
+            if (!list) {
+                return convert(value, id);
+            }
+            BasicDBList items = new BasicDBList();
+            if (value instanceof Collection) {
+                for (Object item : (Collection<?>) value) {
+                    items.add(convert(item, id));
+                }
+            } else if (value instanceof Object[]) {
+                for (Object item : (Object[]) value) {
+                    items.add(convert(item, id));
+                }
+            } else {
+                throw new IllegalArgumentException("The value of parameter " + (index + 1) + " must be a collection or an array.");
+            }
+            return items;
+        }
+    }
+
+    private static final class DocumentNode implements Node {
+
+        private final String[] keys;
+        private final Node[] children;
+
+        DocumentNode(String[] keys, Node[] children) {
+            this.keys = keys;
+            this.children = children;
+        }
+
+        @Override
+        public boolean isConstant() {
+            for (Node child : children) {
+                if (!child.isConstant()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public BasicDBObject fill(Object[] values) {
+            BasicDBObject document = new BasicDBObject(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                document.put(keys[i], children[i].fill(values));
+            }
+            return document;
+        }
+    }
+
+    private static final class ListNode implements Node {
+
+        private final Node[] items;
+
+        ListNode(Node[] items) {
+            this.items = items;
+        }
+
+        @Override
+        public boolean isConstant() {
+            for (Node item : items) {
+                if (!item.isConstant()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public BasicDBList fill(Object[] values) {
+            BasicDBList list = new BasicDBList();
+            for (Node item : items) {
+                list.add(item.fill(values));
+            }
+            return list;
+        }
+    }
+
+}
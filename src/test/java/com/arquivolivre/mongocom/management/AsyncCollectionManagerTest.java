@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+/**
+ * The limit of operations in flight of {@link AsyncCollectionManager}. The
+ * operations run without a manager and fail, which is enough to free their
+ * slot.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public class AsyncCollectionManagerTest extends TestCase {
+
+    public void testOperationsOverTheLimitAreRejected() throws Exception {
+        final List<Runnable> queued = new CopyOnWriteArrayList<>();
+        AsyncCollectionManager async = new AsyncCollectionManager(null, new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                queued.add(task);
+            }
+        }, 1);
+        CompletableFuture<Void> first = async.removeAsync(new Object());
+        CompletableFuture<Void> second = async.removeAsync(new Object());
+        assertEquals(1, queued.size());
+        try {
+            second.get();
+            fail("there is no room for the operation");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof RejectedExecutionException);
+        }
+        queued.get(0).run();
+        assertTrue(first.isCompletedExceptionally());
+        async.removeAsync(new Object());
+        assertEquals(2, queued.size());
+    }
+
+    public void testBlockingCallerWaitsForRoom() throws Exception {
+        final List<Runnable> queued = new CopyOnWriteArrayList<>();
+        final AsyncCollectionManager async = new AsyncCollectionManager(null, new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                queued.add(task);
+            }
+        }, 2, true);
+        CompletableFuture<Void> first = async.removeAsync(new Object());
+        async.removeAsync(new Object());
+        assertEquals(2, queued.size());
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                async.removeAsync(new Object());
+            }
+        });
+        caller.start();
+        caller.join(200);
+        assertTrue(caller.isAlive());
+        assertEquals(2, queued.size());
+        queued.get(0).run();
+        caller.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(caller.isAlive());
+        assertEquals(3, queued.size());
+        try {
+            first.get();
+            fail("the operation should fail without a manager");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof NullPointerException);
+        }
+    }
+
+    public void testRejectedOperationsFreeTheirSlot() throws Exception {
+        AsyncCollectionManager async = new AsyncCollectionManager(null, new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                throw new RejectedExecutionException("closed");
+            }
+        }, 1);
+        for (int i = 0; i < 3; i++) {
+            CompletableFuture<String> future = async.saveAsync(new Object());
+            assertTrue(future.isCompletedExceptionally());
+        }
+    }
+
+}
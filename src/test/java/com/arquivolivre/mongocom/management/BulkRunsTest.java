@@ -0,0 +1,47 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * The bulk writes <code>insertAll</code> and <code>saveAll</code> split the
+ * documents into, without a server.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public class BulkRunsTest extends TestCase {
+
+    private static final Object[] INPUT = {"a", "b", 1, "c", null, "d"};
+
+    public void testOrderedRunsFollowTheInput() {
+        BatchResult[] results = new BatchResult[INPUT.length];
+        List<List<Integer>> runs = CollectionManager.runs(INPUT, results, true);
+        assertEquals(Arrays.asList(Arrays.asList(0, 1), Arrays.asList(2), Arrays.asList(3)), runs);
+        assertFalse(results[4].isSuccess());
+        assertNull("nothing is written after an error", results[5]);
+    }
+
+    public void testUnorderedRunsAreGroupedByClass() {
+        BatchResult[] results = new BatchResult[INPUT.length];
+        List<List<Integer>> runs = CollectionManager.runs(INPUT, results, false);
+        assertEquals(Arrays.asList(Arrays.asList(0, 1, 3, 5), Arrays.asList(2)), runs);
+        assertFalse(results[4].isSuccess());
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.arquivolivre.mongocom.annotations.Cached;
+import com.mongodb.DB;
+import com.mongodb.Mongo;
+import junit.framework.TestCase;
+
+/**
+ * Sharing and closing the clients of the managers. Clients connect lazily, so
+ * this runs without a mongod.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>
+ */
+public class ClientRegistryTest extends TestCase {
+
+    private static final String URI = "mongodb://localhost:27017/";
+
+    @Cached
+    private static class Sample {
+    }
+
+    public void testClientIsSharedUntilLastRelease() throws Exception {
+        Mongo client = ClientRegistry.acquire(URI, null);
+        assertSame(client, ClientRegistry.acquire(URI, null));
+        assertTrue(ClientRegistry.retain(client));
+        assertTrue(ClientRegistry.release(client));
+        assertTrue(ClientRegistry.release(client));
+        assertSame(client, ClientRegistry.acquire(URI, null));
+        assertTrue(ClientRegistry.release(client));
+        assertTrue(ClientRegistry.release(client));
+        assertFalse(ClientRegistry.retain(client));
+        assertFalse(ClientRegistry.release(client));
+        Mongo recreated = ClientRegistry.acquire(URI, null);
+        assertNotSame(client, recreated);
+        ClientRegistry.release(recreated);
+    }
+
+    public void testClosingAClientDropsTheCachesOfItsDatabases() throws Exception {
+        Mongo client = ClientRegistry.acquire(URI, null);
+        Mongo other = ClientRegistry.acquire("mongodb://127.0.0.1:27017/", null);
+        DB db = client.getDB("registry");
+        DB otherDb = other.getDB("registry");
+        QueryCache queries = QueryCache.of(db, "samples");
+        EntityCache entities = EntityCache.of(db, Sample.class);
+        QueryCache otherQueries = QueryCache.of(otherDb, "samples");
+        assertSame(queries, QueryCache.of(db, "samples"));
+        assertSame(entities, EntityCache.of(db, Sample.class));
+        ClientRegistry.release(client);
+        assertNotSame(queries, QueryCache.of(db, "samples"));
+        assertNotSame(entities, EntityCache.of(db, Sample.class));
+        assertSame(otherQueries, QueryCache.of(otherDb, "samples"));
+        ClientRegistry.release(other);
+        QueryCache.forget(client);
+        EntityCache.forget(client);
+    }
+
+}
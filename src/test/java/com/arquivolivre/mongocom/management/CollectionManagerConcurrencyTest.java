@@ -0,0 +1,150 @@
+package com.arquivolivre.mongocom.management;
+
+import com.arquivolivre.mongocom.annotations.Document;
+import com.arquivolivre.mongocom.annotations.ObjectId;
+import com.arquivolivre.mongocom.mapping.ClassMapping;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import junit.framework.TestCase;
+
+/**
+ * Shares a single manager between many threads that query other databases at
+ * the same time. The results of the queries are put in the query cache of
+ * each database beforehand, so nothing here talks to the server and it runs
+ * without a mongod.
+ */
+public class CollectionManagerConcurrencyTest extends TestCase {
+
+    private static final int THREADS = 32;
+    private static final int ITERATIONS = 2000;
+    private static final String URI = "mongodb://localhost:27017/";
+
+    @Document
+    public static class Sample {
+
+        @ObjectId
+        private String id;
+        private String name;
+    }
+
+    private Mongo client;
+    private CollectionManager manager;
+
+    @Override
+    protected void setUp() throws Exception {
+        manager = CollectionManagerFactory.createCollectionManager("localhost", 27017, "base", "", "");
+        assertNotNull(manager);
+        client = ClientRegistry.acquire(URI, null);
+        cache("base");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        manager.close();
+        ClientRegistry.release(client);
+    }
+
+    private static MongoQuery query() {
+        MongoQuery query = new MongoQuery();
+        query.cache(3600);
+        return query;
+    }
+
+    /**
+     * Cache the result of {@link #query()} in the given database, a single
+     * sample named after it.
+     */
+    private void cache(String dbName) {
+        QueryCache cache = QueryCache.of(client.getDB(dbName), ClassMapping.of(Sample.class).getCollectionName());
+        DBObject document = new BasicDBObject("_id", new org.bson.types.ObjectId()).append("name", dbName);
+        cache.putDocuments(QueryCache.key("find", query()), Collections.singletonList(document), 3600, cache.stamp());
+    }
+
+    private static String queriedDatabase(CollectionManager manager) {
+        List<Sample> samples = manager.find(Sample.class, query());
+        assertEquals(1, samples.size());
+        return samples.get(0).name;
+    }
+
+    public void testViewsAreIsolatedBetweenThreads() throws Exception {
+        for (int i = 0; i < THREADS; i++) {
+            for (int j = 0; j < 4; j++) {
+                cache("db" + i + "_" + j);
+            }
+            cache("db" + i);
+        }
+        final ClassMapping mapping = ClassMapping.of(Sample.class);
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                final String dbName = "db" + i;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        for (int j = 0; j < ITERATIONS; j++) {
+                            CollectionManager view = manager.withDatabase(dbName);
+                            CollectionManager nested = view.withDatabase(dbName + "_" + (j % 4));
+                            assertEquals(dbName, view.getDatabaseName());
+                            assertEquals(dbName, queriedDatabase(view));
+                            assertEquals(dbName + "_" + (j % 4), nested.getDatabaseName());
+                            assertEquals(dbName + "_" + (j % 4), queriedDatabase(nested));
+                            assertEquals("base", manager.getDatabaseName());
+                            assertEquals("base", queriedDatabase(manager));
+                            assertSame(mapping, ClassMapping.of(Sample.class));
+                            nested.close();
+                            assertEquals(dbName, queriedDatabase(view));
+                            view.close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals("base", manager.getDatabaseName());
+        assertEquals("base", queriedDatabase(manager));
+    }
+
+    public void testViewOutlivesItsManager() throws Exception {
+        cache("last");
+        CollectionManager other = CollectionManagerFactory.createCollectionManager("localhost", 27017, "base", "", "");
+        CollectionManager view = other.withDatabase("last");
+        other.close();
+        assertEquals("last", view.getDatabaseName());
+        assertEquals("last", queriedDatabase(view));
+        view.close();
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testUseSwitchesTheDatabaseOfTheManager() throws Exception {
+        cache("switched");
+        CollectionManager other = CollectionManagerFactory.createCollectionManager("localhost", 27017, "base", "", "");
+        try {
+            assertEquals("base", queriedDatabase(other));
+            other.use("switched");
+            assertEquals("switched", other.getDatabaseName());
+            assertEquals("switched", queriedDatabase(other));
+            assertEquals("base", queriedDatabase(manager));
+        } finally {
+            other.close();
+        }
+    }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.arquivolivre.mongocom.annotations.Document;
+import com.arquivolivre.mongocom.mapping.ClassMapping;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+import com.mongodb.ReadPreference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import junit.framework.TestCase;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * The demand and cancellation contract of the subscriptions of a
+ * {@link DocumentPublisher}, over a cursor of generated documents, without a
+ * server.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public class DocumentPublisherTest extends TestCase {
+
+    private static final String URI = "mongodb://localhost:27017/";
+    private static final int CHUNK_SIZE = 3;
+
+    @Document
+    public static class Sample {
+
+        private int number;
+    }
+
+    /**
+     * A cursor over <code>size</code> documents numbered from 0.
+     */
+    private static class GeneratedCursor extends DBCursor {
+
+        private final int size;
+        private int read;
+        private boolean closed;
+
+        GeneratedCursor(DB db, int size) {
+            super(db.getCollection("samples"), new BasicDBObject(), null, ReadPreference.primary());
+            this.size = size;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !closed && read < size;
+        }
+
+        @Override
+        public DBObject next() {
+            return new BasicDBObject("number", read++);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static class Recorder implements Subscriber<Sample> {
+
+        private final List<Integer> received = new ArrayList<>();
+        private Subscription subscription;
+        private Throwable error;
+        private boolean completed;
+        private boolean inOnNext;
+        private boolean reentered;
+        private boolean requestFromOnNext;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Sample sample) {
+            reentered |= inOnNext;
+            inOnNext = true;
+            received.add(sample.number);
+            if (requestFromOnNext) {
+                subscription.request(1);
+            }
+            inOnNext = false;
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    private Mongo client;
+    private DB db;
+    private CollectionManager manager;
+
+    @Override
+    protected void setUp() throws Exception {
+        manager = CollectionManagerFactory.createCollectionManager("localhost", 27017, "publishing", "", "");
+        client = ClientRegistry.acquire(URI, null);
+        db = client.getDB("publishing");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        manager.close();
+        ClientRegistry.release(client);
+    }
+
+    private DocumentPublisher.CursorSubscription<Sample> subscribe(Recorder recorder, GeneratedCursor cursor, Executor executor) {
+        DocumentCursor<Sample> documents = new DocumentCursor<>(manager, new LoadContext(manager, db),
+                ClassMapping.of(Sample.class), cursor, CHUNK_SIZE, true);
+        DocumentPublisher.CursorSubscription<Sample> subscription = new DocumentPublisher.CursorSubscription<>(recorder, documents, executor);
+        recorder.onSubscribe(subscription);
+        return subscription;
+    }
+
+    public void testDocumentsFollowTheDemand() {
+        Recorder recorder = new Recorder();
+        GeneratedCursor cursor = new GeneratedCursor(db, 10);
+        subscribe(recorder, cursor, null);
+        assertEquals(0, cursor.read);
+        recorder.subscription.request(2);
+        assertEquals(2, recorder.received.size());
+        assertEquals("only one chunk is fetched", CHUNK_SIZE, cursor.read);
+        recorder.subscription.request(3);
+        assertEquals(5, recorder.received.size());
+        assertFalse(recorder.completed);
+        recorder.subscription.request(Long.MAX_VALUE);
+        recorder.subscription.request(Long.MAX_VALUE);
+        assertEquals(10, recorder.received.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, (int) recorder.received.get(i));
+        }
+        assertTrue(recorder.completed);
+        assertTrue(cursor.closed);
+        assertNull(recorder.error);
+    }
+
+    public void testCancelClosesTheCursor() {
+        Recorder recorder = new Recorder();
+        GeneratedCursor cursor = new GeneratedCursor(db, 10);
+        subscribe(recorder, cursor, null);
+        recorder.subscription.request(1);
+        recorder.subscription.cancel();
+        assertTrue(cursor.closed);
+        recorder.subscription.request(5);
+        assertEquals(1, recorder.received.size());
+        assertFalse(recorder.completed);
+        assertNull(recorder.error);
+    }
+
+    public void testNonPositiveRequestsSignalAnError() {
+        Recorder recorder = new Recorder();
+        GeneratedCursor cursor = new GeneratedCursor(db, 10);
+        subscribe(recorder, cursor, null);
+        recorder.subscription.request(0);
+        assertTrue(recorder.error instanceof IllegalArgumentException);
+        assertTrue(cursor.closed);
+        recorder.subscription.request(1);
+        assertTrue(recorder.received.isEmpty());
+    }
+
+    public void testRequestsFromOnNextDoNotRecurse() {
+        Recorder recorder = new Recorder();
+        recorder.requestFromOnNext = true;
+        GeneratedCursor cursor = new GeneratedCursor(db, 10);
+        subscribe(recorder, cursor, null);
+        recorder.subscription.request(1);
+        assertEquals(10, recorder.received.size());
+        assertFalse(recorder.reentered);
+        assertTrue(recorder.completed);
+    }
+
+    public void testEmissionRunsOnTheExecutor() {
+        final List<Runnable> queued = new ArrayList<>();
+        Recorder recorder = new Recorder();
+        GeneratedCursor cursor = new GeneratedCursor(db, 10);
+        subscribe(recorder, cursor, new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                queued.add(task);
+            }
+        });
+        recorder.subscription.request(2);
+        recorder.subscription.request(2);
+        assertEquals("one task at a time", 1, queued.size());
+        assertTrue(recorder.received.isEmpty());
+        queued.remove(0).run();
+        assertEquals(4, recorder.received.size());
+        assertTrue(queued.isEmpty());
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.arquivolivre.mongocom.annotations.Cached;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import junit.framework.TestCase;
+
+/**
+ * Eviction, expiration and invalidation of the {@link EntityCache}, without a
+ * server.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public class EntityCacheTest extends TestCase {
+
+    @Cached(maxSize = 10)
+    private static class Small {
+    }
+
+    @Cached(maxSize = 37)
+    private static class Uneven {
+    }
+
+    @Cached(maxSize = 1000, maxWeight = 5000)
+    private static class Heavy {
+    }
+
+    @Cached(ttl = 0)
+    private static class Expiring {
+    }
+
+    @Cached
+    private static class Default {
+    }
+
+    private static EntityCache cache(Class<?> type) {
+        return new EntityCache(type.getAnnotation(Cached.class));
+    }
+
+    private static void put(EntityCache cache, Object id) {
+        cache.put(id, new BasicDBObject("_id", id).append("name", "document " + id), cache.stamp(id));
+    }
+
+    public void testSizeNeverExceedsMaxSize() {
+        for (Class<?> type : new Class<?>[]{Small.class, Uneven.class}) {
+            EntityCache cache = cache(type);
+            int maxSize = type.getAnnotation(Cached.class).maxSize();
+            for (int i = 0; i < 10 * maxSize; i++) {
+                put(cache, i);
+                assertTrue(cache.stats().getSize() <= maxSize);
+            }
+            assertTrue(cache.stats().getEvictionCount() >= 9 * maxSize);
+        }
+    }
+
+    public void testWeightNeverExceedsMaxWeight() {
+        EntityCache cache = cache(Heavy.class);
+        for (int i = 0; i < 1000; i++) {
+            put(cache, i);
+            assertTrue(cache.stats().getWeight() <= 5000);
+        }
+        assertTrue(cache.stats().getSize() > 0);
+    }
+
+    public void testFrequentlyReadEntriesStay() {
+        EntityCache cache = cache(Small.class);
+        put(cache, 0);
+        for (int i = 1; i < 1000; i++) {
+            assertNotNull(cache.get(0));
+            put(cache, i);
+        }
+        assertNotNull(cache.get(0));
+    }
+
+    public void testExpiredEntriesAreDropped() throws InterruptedException {
+        EntityCache cache = cache(Expiring.class);
+        put(cache, 1);
+        Thread.sleep(2);
+        assertNull(cache.get(1));
+        assertEquals(0, cache.stats().getSize());
+        assertEquals(1, cache.stats().getEvictionCount());
+    }
+
+    public void testGetReturnsACopy() {
+        EntityCache cache = cache(Default.class);
+        put(cache, 1);
+        DBObject document = cache.get(1);
+        document.put("name", "changed");
+        assertEquals("document 1", cache.get(1).get("name"));
+        assertEquals(2, cache.stats().getHitCount());
+        assertNull(cache.get(2));
+        assertEquals(1, cache.stats().getMissCount());
+    }
+
+    public void testInvalidationOnlyRejectsStalePutsOfItsSegment() {
+        EntityCache cache = cache(Default.class);
+        long stamp = cache.stamp(1);
+        long otherStamp = cache.stamp(2);
+        // 17 falls in the segment of 1, out of the 16 of the default size
+        cache.invalidate(17);
+        cache.put(1, new BasicDBObject("_id", 1), stamp);
+        assertNull(cache.get(1));
+        cache.put(2, new BasicDBObject("_id", 2), otherStamp);
+        assertNotNull(cache.get(2));
+        put(cache, 1);
+        assertNotNull(cache.get(1));
+    }
+
+    public void testInvalidateAllRejectsEveryStalePut() {
+        EntityCache cache = cache(Default.class);
+        long stamp = cache.stamp(1);
+        put(cache, 2);
+        cache.invalidateAll();
+        assertNull(cache.get(2));
+        cache.put(1, new BasicDBObject("_id", 1), stamp);
+        assertNull(cache.get(1));
+    }
+
+}
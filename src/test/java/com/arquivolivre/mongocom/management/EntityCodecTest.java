@@ -0,0 +1,228 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.arquivolivre.mongocom.annotations.Document;
+import com.arquivolivre.mongocom.annotations.Internal;
+import com.arquivolivre.mongocom.annotations.ObjectId;
+import com.arquivolivre.mongocom.mapping.ClassMapping;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.Mongo;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import junit.framework.TestCase;
+import org.bson.BSON;
+import org.bson.BSONObject;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.Binary;
+
+/**
+ * Objects written by {@link EntityEncoder} and read back by
+ * {@link EntityDecoder}, without a server.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public class EntityCodecTest extends TestCase {
+
+    private static final String URI = "mongodb://localhost:27017/";
+
+    public enum Status {
+
+        ACTIVE, CLOSED
+    }
+
+    public static class Item {
+
+        private String code;
+        private int quantity;
+    }
+
+    @Document
+    public static class Order {
+
+        @ObjectId
+        private String id;
+        private String customer;
+        private double total;
+        private Date created;
+        private Status status;
+        private List<String> tags;
+        private byte[] signature;
+        @Internal
+        private Item main;
+        @Internal
+        private List<Item> items;
+    }
+
+    private Mongo client;
+    private CollectionManager manager;
+
+    @Override
+    protected void setUp() throws Exception {
+        manager = CollectionManagerFactory.createCollectionManager("localhost", 27017, "codec", "", "");
+        client = ClientRegistry.acquire(URI, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        manager.close();
+        ClientRegistry.release(client);
+    }
+
+    private static Item item(String code, int quantity) {
+        Item item = new Item();
+        item.code = code;
+        item.quantity = quantity;
+        return item;
+    }
+
+    private static Order order() {
+        Order order = new Order();
+        order.id = "5f0000000000000000000001";
+        order.customer = "acme";
+        order.total = 12.5;
+        order.created = new Date(1400000000000L);
+        order.status = Status.CLOSED;
+        order.tags = new ArrayList<>(Arrays.asList("a", "b"));
+        order.signature = new byte[]{1, 2, 3, -1};
+        order.main = item("x", 1);
+        order.items = new ArrayList<>(Arrays.asList(item("y", 2), item("z", 3)));
+        return order;
+    }
+
+    private EntityDBObject encoded(Object document) throws Exception {
+        Set<Object> saving = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        saving.add(document);
+        return manager.loadDocument(document, saving, false);
+    }
+
+    private <A> A decode(Class<A> type, byte[] bson, boolean complete) {
+        LoadContext context = new LoadContext(manager, client.getDB("codec"), false);
+        DBObject decoded = EntityDecoder.factory(manager, ClassMapping.of(type), context, complete).create().decode(bson, (DBCollection) null);
+        assertTrue(decoded instanceof EntityDBObject);
+        assertEquals(complete ? bson : null, ((EntityDBObject) decoded).getBson());
+        return type.cast(((EntityDBObject) decoded).getDocument());
+    }
+
+    public void testEncoderKeepsTheBytesItWrites() throws Exception {
+        EntityDBObject document = encoded(order());
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        int size = new EntityEncoder(true).writeObject(buffer, document);
+        assertEquals(size, buffer.size());
+        assertTrue(Arrays.equals(buffer.toByteArray(), document.getBson()));
+        BSONObject decoded = BSON.decode(document.getBson());
+        assertEquals(new org.bson.types.ObjectId("5f0000000000000000000001"), decoded.get("_id"));
+        assertEquals("CLOSED", decoded.get("status"));
+        assertEquals(new BasicDBObject("code", "x").append("quantity", 1).toMap(), ((BSONObject) decoded.get("main")).toMap());
+    }
+
+    public void testEncoderWritesTheSameBytesAsAMap() throws Exception {
+        EntityDBObject document = encoded(order());
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        new EntityEncoder(false).writeObject(buffer, document);
+        assertNull(document.getBson());
+        assertTrue(Arrays.equals(BSON.encode(new BasicDBObject(document.toMap())), buffer.toByteArray()));
+    }
+
+    public void testEncoderOnlyKeepsTheRangeItWrites() throws Exception {
+        EntityDBObject document = encoded(order());
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        buffer.write(new byte[]{9, 9, 9});
+        int size = new EntityEncoder(true).writeObject(buffer, document);
+        assertEquals(3 + size, buffer.size());
+        assertTrue(Arrays.equals(Arrays.copyOfRange(buffer.toByteArray(), 3, 3 + size), document.getBson()));
+    }
+
+    public void testEncoderWritesOtherDocumentsAsUsual() {
+        BasicDBObject document = new BasicDBObject("a", 1).append("b", new BasicDBObject("c", "d"));
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        new EntityEncoder(true).writeObject(buffer, document);
+        assertTrue(Arrays.equals(BSON.encode(document), buffer.toByteArray()));
+    }
+
+    public void testRoundTrip() throws Exception {
+        Order order = order();
+        EntityDBObject document = encoded(order);
+        new EntityEncoder(true).writeObject(new BasicOutputBuffer(), document);
+        Order decoded = decode(Order.class, document.getBson(), true);
+        assertNotSame(order, decoded);
+        assertEquals(order.id, decoded.id);
+        assertEquals(order.customer, decoded.customer);
+        assertEquals(order.total, decoded.total);
+        assertEquals(order.created, decoded.created);
+        assertEquals(order.status, decoded.status);
+        assertEquals(order.tags, decoded.tags);
+        assertTrue(Arrays.equals(order.signature, decoded.signature));
+        assertEquals("x", decoded.main.code);
+        assertEquals(1, decoded.main.quantity);
+        assertEquals(2, decoded.items.size());
+        assertEquals("z", decoded.items.get(1).code);
+        assertEquals(3, decoded.items.get(1).quantity);
+        assertTrue(Arrays.equals(document.getBson(), encodedBytes(decoded)));
+    }
+
+    public void testUndeclaredElementsAreSkipped() {
+        BasicDBObject document = new BasicDBObject("_id", new org.bson.types.ObjectId("5f0000000000000000000001"))
+                .append("customer", "acme")
+                .append("signature", new Binary(BSON.B_BINARY, new byte[]{4, 5}))
+                .append("unknown", new BasicDBObject("deep", Arrays.asList(1, 2)))
+                .append("main", new BasicDBObject("code", "x").append("other", 1));
+        Order decoded = decode(Order.class, BSON.encode(document), false);
+        assertEquals("5f0000000000000000000001", decoded.id);
+        assertEquals("acme", decoded.customer);
+        assertTrue(Arrays.equals(new byte[]{4, 5}, decoded.signature));
+        assertEquals("x", decoded.main.code);
+        assertNull(decoded.items);
+    }
+
+    public void testDecoderMapsAsLoadObject() throws Exception {
+        EntityDBObject document = encoded(order());
+        new EntityEncoder(true).writeObject(new BasicOutputBuffer(), document);
+        Order decoded = decode(Order.class, document.getBson(), true);
+        Order loaded = new Order();
+        manager.loadObject(loaded, new DefaultDBDecoder().decode(document.getBson(), (DBCollection) null), new LoadContext(manager, client.getDB("codec"), false));
+        assertTrue(Arrays.equals(encodedBytes(loaded), encodedBytes(decoded)));
+        assertEquals(loaded.tags.getClass(), decoded.tags.getClass());
+        assertEquals(loaded.created.getClass(), decoded.created.getClass());
+    }
+
+    public void testErrorRepliesAreDecodedAsUsual() {
+        BasicDBObject first = new BasicDBObject("$err", "bad").append("code", 13);
+        BasicDBObject later = new BasicDBObject("code", 13).append("$err", "bad");
+        for (BasicDBObject reply : Arrays.asList(first, later)) {
+            LoadContext context = new LoadContext(manager, client.getDB("codec"), false);
+            DBObject decoded = EntityDecoder.factory(manager, ClassMapping.of(Item.class), context, true).create().decode(BSON.encode(reply), (DBCollection) null);
+            assertFalse(decoded instanceof EntityDBObject);
+            assertEquals("bad", decoded.get("$err"));
+            assertEquals(13, decoded.get("code"));
+        }
+    }
+
+    private byte[] encodedBytes(Object document) throws Exception {
+        EntityDBObject encoded = encoded(document);
+        new EntityEncoder(true).writeObject(new BasicOutputBuffer(), encoded);
+        return encoded.getBson();
+    }
+
+}
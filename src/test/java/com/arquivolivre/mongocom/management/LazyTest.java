@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.arquivolivre.mongocom.annotations.Document;
+import com.arquivolivre.mongocom.annotations.Internal;
+import com.arquivolivre.mongocom.mapping.ClassMapping;
+import com.arquivolivre.mongocom.mapping.FieldMapping;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Mapping of {@link Lazy} fields on their first read, without a server.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public class LazyTest extends TestCase {
+
+    public enum Size {
+
+        SMALL, LARGE
+    }
+
+    public static class Item {
+
+        private String code;
+    }
+
+    @Document
+    public static class Box {
+
+        @Internal
+        private Lazy<List<Item>> items;
+        private Lazy<Size> size;
+    }
+
+    private CollectionManager manager;
+
+    @Override
+    protected void setUp() throws Exception {
+        manager = CollectionManagerFactory.createCollectionManager("localhost", 27017, "lazy", "", "");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        manager.close();
+    }
+
+    private static FieldMapping field(String name) {
+        for (FieldMapping field : ClassMapping.of(Box.class).getFields()) {
+            if (field.getName().equals(name)) {
+                return field;
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    public void testNestedElementsAreMapped() {
+        BasicDBList content = new BasicDBList();
+        content.add(new BasicDBObject("code", "a"));
+        content.add(new BasicDBObject("code", "b"));
+        Lazy<List<Item>> items = new Lazy<>(manager, field("items"), content);
+        assertEquals(Item.class, field("items").getElementType());
+        assertFalse(items.isLoaded());
+        assertEquals(2, items.get().size());
+        assertEquals("b", items.get().get(1).code);
+        assertTrue(items.isLoaded());
+        assertNull(items.getContent());
+        Lazy<Size> size = new Lazy<>(manager, field("size"), "LARGE");
+        assertEquals(Size.LARGE, size.get());
+    }
+
+    public void testFailureKeepsTheContent() {
+        BasicDBList content = new BasicDBList();
+        content.add("not a document");
+        Lazy<List<Item>> items = new Lazy<>(manager, field("items"), content);
+        for (int i = 0; i < 2; i++) {
+            try {
+                items.get();
+                fail("the element can not be mapped");
+            } catch (IllegalStateException ex) {
+                // expected
+            }
+            assertFalse(items.isLoaded());
+            assertSame(content, items.getContent());
+        }
+        Lazy<Size> size = new Lazy<>(manager, field("size"), "MEDIUM");
+        try {
+            size.get();
+            fail("there is no such constant");
+        } catch (IllegalStateException ex) {
+            assertEquals("MEDIUM", size.getContent());
+        }
+    }
+
+}
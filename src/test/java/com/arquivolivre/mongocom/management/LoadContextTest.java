@@ -0,0 +1,132 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.arquivolivre.mongocom.annotations.Cached;
+import com.arquivolivre.mongocom.annotations.Document;
+import com.arquivolivre.mongocom.annotations.ObjectId;
+import com.arquivolivre.mongocom.annotations.Reference;
+import com.arquivolivre.mongocom.mapping.ClassMapping;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.Mongo;
+import junit.framework.TestCase;
+
+/**
+ * Batched resolution of references and the identity map of a
+ * {@link LoadContext}, over documents of a seeded entity cache, without a
+ * server.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public class LoadContextTest extends TestCase {
+
+    private static final String URI = "mongodb://localhost:27017/";
+    private static final org.bson.types.ObjectId ANN = new org.bson.types.ObjectId("5f0000000000000000000001");
+    private static final org.bson.types.ObjectId BOB = new org.bson.types.ObjectId("5f0000000000000000000002");
+
+    @Document
+    @Cached
+    public static class Author {
+
+        @ObjectId
+        private String id;
+        private String name;
+        @Reference
+        private Author mentor;
+    }
+
+    @Document
+    public static class Book {
+
+        private String title;
+        @Reference
+        private Author author;
+    }
+
+    private Mongo client;
+    private DB db;
+    private CollectionManager manager;
+    private EntityCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        manager = CollectionManagerFactory.createCollectionManager("localhost", 27017, "loading", "", "");
+        client = ClientRegistry.acquire(URI, null);
+        db = client.getDB("loading");
+        cache = EntityCache.of(db, Author.class);
+        cache.invalidateAll();
+        cache.put(ANN, new BasicDBObject("_id", ANN).append("name", "ann").append("mentor", BOB), cache.stamp(ANN));
+        cache.put(BOB, new BasicDBObject("_id", BOB).append("name", "bob").append("mentor", ANN), cache.stamp(BOB));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        manager.close();
+        ClientRegistry.release(client);
+    }
+
+    private Book book(String title, LoadContext context) throws Exception {
+        Book book = new Book();
+        manager.loadObject(book, new BasicDBObject("title", title).append("author", ANN), context);
+        return book;
+    }
+
+    public void testReferencesAreResolvedTogether() throws Exception {
+        LoadContext context = new LoadContext(manager, db);
+        Book first = book("first", context);
+        Book second = book("second", context);
+        assertNull("references wait for resolve", first.author);
+        long hits = cache.stats().getHitCount();
+        context.resolve();
+        assertEquals("ann", first.author.name);
+        assertSame(first.author, second.author);
+        assertEquals("each document is fetched once", hits + 2, cache.stats().getHitCount());
+    }
+
+    public void testCyclesShareTheInstances() throws Exception {
+        LoadContext context = new LoadContext(manager, db);
+        Book book = book("cycle", context);
+        context.resolve();
+        Author ann = book.author;
+        assertEquals("bob", ann.mentor.name);
+        assertSame(ann, ann.mentor.mentor);
+        assertEquals(ANN.toString(), ann.id);
+    }
+
+    public void testIdentityMap() {
+        LoadContext context = new LoadContext(manager, db);
+        Author ann = new Author();
+        context.register(ClassMapping.of(Author.class), ANN, ann);
+        context.register(ClassMapping.of(Author.class), ANN, new Author());
+        assertSame("the first instance is kept", ann, context.identity(ClassMapping.of(Author.class), ANN));
+        assertNull(context.identity(ClassMapping.of(Author.class), BOB));
+        context.clear();
+        assertNull(context.identity(ClassMapping.of(Author.class), ANN));
+    }
+
+    public void testRegisteredInstancesAreNotFetched() throws Exception {
+        LoadContext context = new LoadContext(manager, db);
+        Author ann = new Author();
+        context.register(ClassMapping.of(Author.class), ANN, ann);
+        Book book = book("known", context);
+        long hits = cache.stats().getHitCount();
+        context.resolve();
+        assertSame(ann, book.author);
+        assertEquals(hits, cache.stats().getHitCount());
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import java.util.Date;
+import junit.framework.TestCase;
+import org.bson.types.ObjectId;
+
+/**
+ * Encoding of the {@link PageToken} and the criteria of the page after it,
+ * without a server.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public class PageTokenTest extends TestCase {
+
+    private static final ObjectId ID = new ObjectId("5f0000000000000000000001");
+
+    private static BasicDBList list(Object... items) {
+        BasicDBList list = new BasicDBList();
+        for (Object item : items) {
+            list.add(item);
+        }
+        return list;
+    }
+
+    public void testRoundTrip() {
+        Date date = new Date(1400000000000L);
+        String token = new PageToken("created", MongoQuery.ORDER_DESC, date, ID).encode();
+        assertFalse(token.contains("=") || token.contains("+") || token.contains("/"));
+        assertEquals(new PageToken("created", MongoQuery.ORDER_DESC, date, ID).after(),
+                PageToken.decode(token, "created", MongoQuery.ORDER_DESC).after());
+        String byId = new PageToken(null, MongoQuery.ORDER_ASC, null, ID).encode();
+        assertEquals(new BasicDBObject("_id", new BasicDBObject("$gt", ID)),
+                PageToken.decode(byId, null, MongoQuery.ORDER_ASC).after());
+    }
+
+    public void testDecodeRejectsOtherQueries() {
+        String token = new PageToken("name", MongoQuery.ORDER_ASC, "b", ID).encode();
+        String[][] queries = {{"name", "-1"}, {"age", "1"}, {null, "1"}};
+        for (String[] query : queries) {
+            try {
+                PageToken.decode(token, query[0], Integer.parseInt(query[1]));
+                fail("the token belongs to another query");
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+        try {
+            PageToken.decode("not a token", "name", MongoQuery.ORDER_ASC);
+            fail("a malformed token should be rejected");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    public void testAfterAscending() {
+        assertEquals(new BasicDBObject("$or", list(
+                new BasicDBObject("name", new BasicDBObject("$gt", "b")),
+                new BasicDBObject("name", "b").append("_id", new BasicDBObject("$gt", ID)))),
+                new PageToken("name", MongoQuery.ORDER_ASC, "b", ID).after());
+    }
+
+    public void testAfterDescendingIncludesNulls() {
+        assertEquals(new BasicDBObject("$or", list(
+                new BasicDBObject("name", new BasicDBObject("$lt", "b")),
+                new BasicDBObject("name", null),
+                new BasicDBObject("name", "b").append("_id", new BasicDBObject("$lt", ID)))),
+                new PageToken("name", MongoQuery.ORDER_DESC, "b", ID).after());
+    }
+
+    public void testAfterNullValue() {
+        assertEquals(new BasicDBObject("$or", list(
+                new BasicDBObject("name", new BasicDBObject("$ne", null)),
+                new BasicDBObject("name", null).append("_id", new BasicDBObject("$gt", ID)))),
+                new PageToken("name", MongoQuery.ORDER_ASC, null, ID).after());
+        assertEquals(new BasicDBObject("name", null).append("_id", new BasicDBObject("$lt", ID)),
+                new PageToken("name", MongoQuery.ORDER_DESC, null, ID).after());
+    }
+
+}
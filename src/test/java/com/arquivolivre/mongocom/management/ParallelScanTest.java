@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import junit.framework.TestCase;
+import org.bson.types.ObjectId;
+
+/**
+ * The ranges a {@link ParallelScan} splits a collection in, computed from
+ * split points or samples of the <code>_id</code>, without a server.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public class ParallelScanTest extends TestCase {
+
+    private static List<Object> numbers(int from, int to) {
+        List<Object> numbers = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            numbers.add(i);
+        }
+        return numbers;
+    }
+
+    public void testSplitPointsAreTakenEvenly() {
+        // 7 split points make 8 chunks, 4 ranges take 2 chunks each
+        assertEquals(Arrays.<Object>asList(1, 3, 5), ParallelScan.bounds(numbers(0, 7), 4));
+        // 64 samples for 4 ranges
+        assertEquals(Arrays.<Object>asList(15, 31, 47), ParallelScan.bounds(numbers(0, 64), 4));
+    }
+
+    public void testFewCandidatesMakeFewerRanges() {
+        assertEquals(Arrays.<Object>asList(0), ParallelScan.bounds(numbers(0, 1), 4));
+        assertEquals(Collections.emptyList(), ParallelScan.bounds(Collections.emptyList(), 4));
+        assertEquals(Collections.emptyList(), ParallelScan.bounds(numbers(0, 10), 1));
+    }
+
+    public void testRepeatedBoundsAreDropped() {
+        List<Object> candidates = Arrays.<Object>asList(1, 1, 1, 1, 2, 2, 3);
+        assertEquals(Arrays.<Object>asList(1, 2), ParallelScan.bounds(candidates, 4));
+    }
+
+    public void testRangesCoverTheCollection() {
+        List<DBObject> ranges = ParallelScan.ranges(Arrays.<Object>asList(10, 20));
+        assertEquals(3, ranges.size());
+        assertEquals(new BasicDBObject("_id", new BasicDBObject("$lte", 10)), ranges.get(0));
+        assertEquals(new BasicDBObject("_id", new BasicDBObject("$gt", 10).append("$lte", 20)), ranges.get(1));
+        assertEquals(new BasicDBObject("_id", new BasicDBObject("$gt", 20)), ranges.get(2));
+        assertEquals(Collections.<DBObject>singletonList(null), ParallelScan.ranges(Collections.emptyList()));
+    }
+
+    public void testMixedIdTypesAreNotSplit() {
+        assertTrue(ParallelScan.sameType(new ObjectId("5f0000000000000000000001"), new ObjectId("5f0000000000000000000002")));
+        assertTrue(ParallelScan.sameType(1, 2.5));
+        assertTrue(ParallelScan.sameType("a", "b"));
+        assertFalse(ParallelScan.sameType(1, "b"));
+        assertFalse(ParallelScan.sameType(new ObjectId("5f0000000000000000000001"), "b"));
+        assertFalse("an empty collection is not split", ParallelScan.sameType(null, null));
+    }
+
+}
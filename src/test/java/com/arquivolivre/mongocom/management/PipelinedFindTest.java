@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.arquivolivre.mongocom.annotations.Document;
+import com.arquivolivre.mongocom.mapping.ClassMapping;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+import com.mongodb.ServerAddress;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * The pipelined find over a cursor of generated documents, without a server.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public class PipelinedFindTest extends TestCase {
+
+    private static final String URI = "mongodb://localhost:27017/";
+
+    @Document
+    public static class Sample {
+
+        private int number;
+    }
+
+    @Document
+    public static class Broken {
+
+        private int number;
+
+        public Broken() {
+            throw new UnsupportedOperationException("broken");
+        }
+    }
+
+    /**
+     * A cursor over <code>size</code> documents numbered from 0.
+     */
+    private static class GeneratedCursor implements Cursor {
+
+        private final int size;
+        private int read;
+        private boolean closed;
+
+        GeneratedCursor(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !closed && read < size;
+        }
+
+        @Override
+        public DBObject next() {
+            return new BasicDBObject("number", read++);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getCursorId() {
+            return 1;
+        }
+
+        @Override
+        public ServerAddress getServerAddress() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private Mongo client;
+    private CollectionManager manager;
+
+    @Override
+    protected void setUp() throws Exception {
+        manager = CollectionManagerFactory.createCollectionManager("localhost", 27017, "pipelined", "", "");
+        client = ClientRegistry.acquire(URI, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        manager.close();
+        ClientRegistry.release(client);
+    }
+
+    private static MongoQuery query(boolean ordered) {
+        MongoQuery query = new MongoQuery();
+        query.batchSize(10);
+        query.pipeline(2, ordered);
+        return query;
+    }
+
+    public void testOrderedResult() {
+        List<DBObject> loaded = new ArrayList<>();
+        List<Sample> samples = PipelinedFind.find(manager, client.getDB("pipelined"), ClassMapping.of(Sample.class),
+                new GeneratedCursor(1005), query(true), loaded, true);
+        assertEquals(1005, samples.size());
+        assertEquals(1005, loaded.size());
+        for (int i = 0; i < samples.size(); i++) {
+            assertEquals(i, samples.get(i).number);
+        }
+    }
+
+    public void testUnorderedResult() {
+        List<Sample> samples = PipelinedFind.find(manager, client.getDB("pipelined"), ClassMapping.of(Sample.class),
+                new GeneratedCursor(1005), query(false), null, true);
+        boolean[] seen = new boolean[1005];
+        for (Sample sample : samples) {
+            assertFalse(seen[sample.number]);
+            seen[sample.number] = true;
+        }
+        assertEquals(1005, samples.size());
+    }
+
+    public void testFailureStopsTheReading() {
+        GeneratedCursor cursor = new GeneratedCursor(100000);
+        try {
+            PipelinedFind.find(manager, client.getDB("pipelined"), ClassMapping.of(Broken.class), cursor, query(true), null, true);
+            fail("the documents can not be mapped");
+        } catch (RuntimeException ex) {
+            // expected
+        }
+        assertTrue(cursor.closed);
+        // the chunks mapped by the two workers and the one waiting for them
+        assertTrue(cursor.read <= 30);
+    }
+
+}
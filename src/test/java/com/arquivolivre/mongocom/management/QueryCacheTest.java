@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import junit.framework.TestCase;
+
+/**
+ * The keys of the {@link QueryCache}, without a server.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public class QueryCacheTest extends TestCase {
+
+    private static String key(BasicDBObject criteria) {
+        return QueryCache.key("find", new MongoQuery(criteria));
+    }
+
+    private static BasicDBList list(Object... items) {
+        BasicDBList list = new BasicDBList();
+        for (Object item : items) {
+            list.add(item);
+        }
+        return list;
+    }
+
+    public void testOrderOfCriteriaIsIgnored() {
+        assertEquals(key(new BasicDBObject("a", 1).append("b", 2)),
+                key(new BasicDBObject("b", 2).append("a", 1)));
+    }
+
+    public void testOrderOfOperatorsIsIgnored() {
+        assertEquals(key(new BasicDBObject("age", new BasicDBObject("$gt", 1).append("$lt", 5))),
+                key(new BasicDBObject("age", new BasicDBObject("$lt", 5).append("$gt", 1))));
+        assertEquals(key(new BasicDBObject("items", new BasicDBObject("$elemMatch", new BasicDBObject("a", 1).append("b", 2)))),
+                key(new BasicDBObject("items", new BasicDBObject("$elemMatch", new BasicDBObject("b", 2).append("a", 1)))));
+        assertEquals(key(new BasicDBObject("age", new BasicDBObject("$not", new BasicDBObject("$gt", 1).append("$lt", 5)))),
+                key(new BasicDBObject("age", new BasicDBObject("$not", new BasicDBObject("$lt", 5).append("$gt", 1)))));
+    }
+
+    public void testClausesAreNormalizedInOrder() {
+        assertEquals(key(new BasicDBObject("$or", list(new BasicDBObject("a", 1).append("b", 2), new BasicDBObject("c", 3)))),
+                key(new BasicDBObject("$or", list(new BasicDBObject("b", 2).append("a", 1), new BasicDBObject("c", 3)))));
+        assertFalse(key(new BasicDBObject("$or", list(new BasicDBObject("a", 1), new BasicDBObject("b", 2)))).equals(
+                key(new BasicDBObject("$or", list(new BasicDBObject("b", 2), new BasicDBObject("a", 1))))));
+        assertFalse(key(new BasicDBObject("$and", list(new BasicDBObject("a", 1), new BasicDBObject("b", 2)))).equals(
+                key(new BasicDBObject("$and", list(new BasicDBObject("b", 2), new BasicDBObject("a", 1))))));
+    }
+
+    public void testEmbeddedDocumentsAndArraysKeepTheirOrder() {
+        assertFalse(key(new BasicDBObject("address", new BasicDBObject("city", "x").append("zip", "1"))).equals(
+                key(new BasicDBObject("address", new BasicDBObject("zip", "1").append("city", "x")))));
+        assertFalse(key(new BasicDBObject("tags", list("a", "b"))).equals(key(new BasicDBObject("tags", list("b", "a")))));
+    }
+
+    public void testOptionsArePartOfTheKey() {
+        MongoQuery query = new MongoQuery(new BasicDBObject("a", 1));
+        MongoQuery limited = new MongoQuery(new BasicDBObject("a", 1));
+        limited.limit(10);
+        MongoQuery skipped = new MongoQuery(new BasicDBObject("a", 1));
+        skipped.skip(10);
+        MongoQuery ordered = new MongoQuery(new BasicDBObject("a", 1));
+        ordered.orderBy("a", MongoQuery.ORDER_DESC);
+        String key = QueryCache.key("find", query);
+        assertFalse(key.equals(QueryCache.key("count", query)));
+        assertFalse(key.equals(QueryCache.key("find", limited)));
+        assertFalse(key.equals(QueryCache.key("find", skipped)));
+        assertFalse(key.equals(QueryCache.key("find", ordered)));
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.management;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+import org.bson.BSON;
+import org.bson.BSONObject;
+import org.bson.types.ObjectId;
+
+/**
+ * Snapshots of documents and the partial updates computed from them, without
+ * a server.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public class SnapshotTest extends TestCase {
+
+    private static BasicDBObject document() {
+        BasicDBList tags = new BasicDBList();
+        tags.addAll(Arrays.asList("a", "b"));
+        return new BasicDBObject("_id", new ObjectId("5f0000000000000000000001"))
+                .append("name", "pen")
+                .append("price", 2.5)
+                .append("tags", tags)
+                .append("maker", new BasicDBObject("name", "acme").append("country", "br"));
+    }
+
+    public void testMatchesIgnoresFieldOrder() {
+        Snapshot snapshot = new Snapshot(null, "1", document());
+        BasicDBObject reordered = new BasicDBObject("maker", new BasicDBObject("country", "br").append("name", "acme"));
+        BasicDBObject original = document();
+        for (String key : original.keySet()) {
+            if (!key.equals("maker")) {
+                reordered.put(key, original.get(key));
+            }
+        }
+        assertTrue(snapshot.matches(null, reordered));
+        reordered.put("price", 3.0);
+        assertFalse(snapshot.matches(null, reordered));
+    }
+
+    public void testSnapshotIsACopy() {
+        BasicDBObject document = document();
+        Snapshot snapshot = new Snapshot(null, "1", document);
+        ((BasicDBList) document.get("tags")).add("c");
+        assertFalse(snapshot.matches(null, document));
+        assertEquals(2, ((List<?>) snapshot.getState().get("tags")).size());
+        assertEquals("1", snapshot.getId());
+    }
+
+    public void testRawSnapshotWithoutId() {
+        BasicDBObject document = document();
+        Snapshot snapshot = new Snapshot(null, "1", BSON.encode(document), true);
+        assertFalse(snapshot.getState().containsField("_id"));
+        document.removeField("_id");
+        assertTrue(snapshot.matches(null, document));
+    }
+
+    public void testDiffSetsUnsetsAndPushes() {
+        BSONObject old = document();
+        BasicDBObject current = document();
+        current.put("price", 3.0);
+        current.removeField("name");
+        current.put("stock", 10);
+        ((BasicDBList) current.get("tags")).add("c");
+        ((BasicDBObject) current.get("maker")).put("country", "pt");
+        BasicDBObject set = new BasicDBObject();
+        BasicDBObject unset = new BasicDBObject();
+        BasicDBObject push = new BasicDBObject();
+        CollectionManager.diff("", old, current, set, unset, push);
+        assertEquals(new BasicDBObject("price", 3.0).append("stock", 10).append("maker.country", "pt"), set);
+        assertEquals(new BasicDBObject("name", 1), unset);
+        BasicDBList appended = new BasicDBList();
+        appended.add("c");
+        assertEquals(new BasicDBObject("tags", new BasicDBObject("$each", appended)), push);
+    }
+
+    public void testDiffReplacesChangedListsAndIgnoresId() {
+        BSONObject old = document();
+        BasicDBObject current = document();
+        current.put("_id", new ObjectId());
+        BasicDBList tags = new BasicDBList();
+        tags.add("b");
+        current.put("tags", tags);
+        BasicDBObject set = new BasicDBObject();
+        BasicDBObject unset = new BasicDBObject();
+        BasicDBObject push = new BasicDBObject();
+        CollectionManager.diff("", old, current, set, unset, push);
+        assertEquals(new BasicDBObject("tags", tags), set);
+        assertTrue(unset.isEmpty());
+        assertTrue(push.isEmpty());
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * The blocks of values reserved by {@link IntegerGenerator}, handed out
+ * without a server.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>
+ */
+public class IntegerGeneratorTest extends TestCase {
+
+    private static final int BLOCK_SIZE = Integer.getInteger("mongocom.generator.blockSize", 100);
+
+    public void testEmptyBlockHandsOutNothing() {
+        assertEquals(0, new IntegerGenerator.Block().next());
+    }
+
+    public void testBlockHandsOutItsRangeInOrder() {
+        IntegerGenerator.Block block = new IntegerGenerator.Block();
+        block.reserve(BLOCK_SIZE);
+        for (int i = 1; i <= BLOCK_SIZE; i++) {
+            assertEquals(i, block.next());
+        }
+        assertEquals(0, block.next());
+        block.reserve(3 * BLOCK_SIZE);
+        assertEquals(2 * BLOCK_SIZE + 1, block.next());
+    }
+
+    public void testValuesAreUniqueBetweenThreads() throws Exception {
+        final IntegerGenerator.Block block = new IntegerGenerator.Block();
+        final Set<Integer> values = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger reserved = new AtomicInteger();
+        final int blocks = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        while (true) {
+                            int value = block.next();
+                            while (value == 0) {
+                                synchronized (block) {
+                                    value = block.next();
+                                    if (value == 0) {
+                                        if (reserved.get() == blocks * BLOCK_SIZE) {
+                                            return null;
+                                        }
+                                        block.reserve(reserved.addAndGet(BLOCK_SIZE));
+                                    }
+                                }
+                            }
+                            assertTrue("duplicate " + value, values.add(value));
+                        }
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(blocks * BLOCK_SIZE, values.size());
+        for (int i = 1; i <= blocks * BLOCK_SIZE; i++) {
+            assertTrue(values.contains(i));
+        }
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014 Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arquivolivre.mongocom.utils;
+
+import com.arquivolivre.mongocom.management.MongoQuery;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.bson.types.ObjectId;
+
+/**
+ * The queries built by binding a {@link QueryTemplate}, without a server.
+ *
+ * @author Thiago da Silva Gonzaga <thiagosg@sjrp.unesp.br>.
+ */
+public class QueryTemplateTest extends TestCase {
+
+    private static final String ID = "5f0000000000000000000001";
+
+    private static class Contact {
+    }
+
+    private static BasicDBList list(Object... items) {
+        BasicDBList list = new BasicDBList();
+        list.addAll(Arrays.asList(items));
+        return list;
+    }
+
+    public void testBindFillsTheParameters() {
+        QueryTemplate<Contact> template = QueryPrototype.select("name", "email")
+                .from(Contact.class)
+                .where("company").equalsTo(QueryPrototype.param("company"))
+                .and("age").greaterThanOrEqualTo(18).lessThan(QueryPrototype.param("age"))
+                .orderBy("name", MongoQuery.ORDER_ASC)
+                .skip(5)
+                .limit(10)
+                .compile();
+        assertEquals(Arrays.asList("company", "age"), template.getParameters());
+        MongoQuery query = template.bind("ACME", 65);
+        assertEquals(new BasicDBObject("company", "ACME").append("age", new BasicDBObject("$gte", 18).append("$lt", 65)),
+                query.getQuery().get("$query"));
+        assertEquals(new BasicDBObject("name", MongoQuery.ORDER_ASC), query.getOrderBy());
+        assertEquals(new BasicDBObject("name", 1).append("email", 1), query.getConstraits());
+        assertEquals(5, query.getSkip());
+        assertEquals(10, query.getLimit());
+    }
+
+    public void testBindByName() {
+        QueryTemplate<Contact> template = QueryPrototype.from(Contact.class)
+                .where("a").equalsTo(QueryPrototype.param("x"))
+                .and("b").equalsTo(QueryPrototype.param("y"))
+                .and("c").equalsTo(QueryPrototype.param("x"))
+                .compile();
+        assertEquals(Arrays.asList("x", "y"), template.getParameters());
+        Map<String, Object> values = new HashMap<>();
+        values.put("y", 2);
+        values.put("x", 1);
+        assertEquals(new BasicDBObject("a", 1).append("b", 2).append("c", 1), template.bind(values).getQuery());
+        values.remove("y");
+        try {
+            template.bind(values);
+            fail("a missing value should be rejected");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        try {
+            template.bind(1);
+            fail("a wrong number of values should be rejected");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    public void testBoundQueriesAreIndependent() {
+        QueryTemplate<Contact> template = QueryPrototype.from(Contact.class)
+                .where("a").equalsTo(QueryPrototype.param("a"))
+                .and("b").greaterThan(1)
+                .compile();
+        DBObject first = template.bind(1).getQuery();
+        DBObject second = template.bind(2).getQuery();
+        assertEquals(1, first.get("a"));
+        assertEquals(2, second.get("a"));
+        assertNotSame(first, second);
+    }
+
+    public void testIdsAndListParameters() {
+        QueryTemplate<Contact> template = QueryPrototype.from(Contact.class)
+                .where("_id").in(QueryPrototype.param("ids"))
+                .and("tag").notIn("x", QueryPrototype.param("tag"))
+                .compile();
+        MongoQuery query = template.bind(Collections.singletonList(ID), "y");
+        assertEquals(new BasicDBObject("$in", list(new ObjectId(ID))), query.getQuery().get("_id"));
+        assertEquals(new BasicDBObject("$nin", list("x", "y")), query.getQuery().get("tag"));
+        assertEquals(new BasicDBObject("$in", list(new ObjectId(ID))),
+                template.bind(new String[]{ID}, "y").getQuery().get("_id"));
+        try {
+            template.bind(ID, "y");
+            fail("a list parameter needs a collection or an array");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        assertEquals(new BasicDBObject("_id", new ObjectId(ID)),
+                QueryPrototype.from(Contact.class).where("_id").equalsTo(ID).compile().bind().getQuery());
+    }
+
+    public void testAndBindsTighterThanOr() {
+        QueryTemplate<Contact> template = QueryPrototype.from(Contact.class)
+                .where("a").equalsTo(1)
+                .and("b").equalsTo(QueryPrototype.param("b"))
+                .or("c").equalsTo(3)
+                .or("d").lessThan(QueryPrototype.param("d")).and("e").exists()
+                .compile();
+        DBObject expected = new BasicDBObject("$or", list(
+                new BasicDBObject("a", 1).append("b", 2),
+                new BasicDBObject("c", 3),
+                new BasicDBObject("d", new BasicDBObject("$lt", 4)).append("e", new BasicDBObject("$exists", true))));
+        assertEquals(expected, template.bind(2, 4).getQuery());
+    }
+
+    public void testMisplacedCriteriaAreRejected() {
+        try {
+            QueryPrototype.from(Contact.class).or("a");
+            fail("or must follow a criteria");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        try {
+            QueryPrototype.from(Contact.class).equalsTo(1);
+            fail("a criteria must follow a field");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        try {
+            QueryPrototype.from(Contact.class).where("a").equalsTo(1).and("a").equalsTo(2);
+            fail("a field has a single equality criteria");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        try {
+            QueryPrototype.from(Contact.class).where("a").equalsTo(1).or("b").compile();
+            fail("or must be followed by a criteria");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+
+}